@@ -0,0 +1,695 @@
+package com.projectn.bolt;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.security.MessageDigest;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.function.IntFunction;
+import java.util.zip.CRC32C;
+import java.util.zip.GZIPOutputStream;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * EmulatorSuite is an offline end-to-end test of the functions: it starts a GS and a Bolt StorageEmulator in this
+ * process, serves BoltGSOpsHandler and BoltGSValidateObjHandler with the Functions Framework's local invoker, pointed
+ * at the emulators, and sends each scenario's requests to them. Every response is checked (e.g. the md5 of a
+ * download against the seeded data), and throughput, latency percentiles and error counts are reported per
+ * scenario. The suite exits with status 1 if any response was wrong.
+ *
+ * Usage:
+ *   java -cp <classpath> com.projectn.bolt.EmulatorSuite --invoker-classpath <cp> --function-classpath <cp> [options]
+ *
+ * Options:
+ *   --invoker-classpath <cp>    classpath of the Functions Framework invoker (required)
+ *   --function-classpath <cp>   classpath of the functions (required)
+ *   --requests <n>              requests per scenario (default 200); large objects get a tenth of them
+ *   --concurrency <n>           number of requests in flight (default 16)
+ *   --gs-faults <k=v,...>       faults injected by the GS emulator (default latencyMs=20,jitterMs=5)
+ *   --bolt-faults <k=v,...>     faults injected by the Bolt emulator (default latencyMs=5,jitterMs=2)
+ *   --port <port>               port of BoltGSOpsHandler; BoltGSValidateObjHandler uses the next one (default 8090)
+ *   --scenarios <name,...>      scenarios to run (default all)
+ *   --output <text|json>        report format (default text)
+ *   --log-dir <dir>             directory of the invokers' logs (default: logs are discarded)
+ *
+ * See StorageEmulator.Faults for the faults that can be injected.
+ */
+public class EmulatorSuite {
+
+    private static final String BUCKET = "emulator-bucket";
+    private static final int SMALL_OBJECTS = 64;
+    private static final int SMALL_SIZE = 16 * 1024;
+    private static final int LARGE_SIZE = 24 * 1024 * 1024;
+    private static final int LARGE_CHUNK_SIZE = 4 * 1024 * 1024;
+    private static final int STREAM_SIZE = 256 * 1024;
+    private static final int COMPOSITE_SIZE = 6 * 1024 * 1024;
+    private static final int COMPOSITE_PART_SIZE = 1024 * 1024;
+    private static final int BATCH_KEYS = 20;
+    // Circuit breaker open time of the functions; short, so that the breaker scenario sees it close again.
+    private static final long BREAKER_OPEN_MS = 1000;
+    private static final Gson gson = new GsonBuilder().setPrettyPrinting().create();
+
+    private final String invokerClasspath;
+    private final String functionClasspath;
+    private final int requests;
+    private final int concurrency;
+    private final Map<String, String> gsFaults;
+    private final Map<String, String> boltFaults;
+    private final int opsPort;
+    private final int validatePort;
+    private final List<String> scenarioNames;
+    private final boolean json;
+    private final File logDir;
+
+    private final HttpClient http = HttpClient.newBuilder().connectTimeout(Duration.ofSeconds(5)).build();
+    private final StorageEmulator.Store store = new StorageEmulator.Store();
+    private StorageEmulator gs;
+    private StorageEmulator bolt;
+    private final List<Process> invokers = new ArrayList<>();
+
+    // Seeded objects, and what the functions must report for them.
+    private final List<String> smallKeys = new ArrayList<>();
+    private final Map<String, String> md5s = new LinkedHashMap<>();
+    private byte[] largeData;
+
+    private EmulatorSuite(Map<String, String> options) {
+        invokerClasspath = options.get("invoker-classpath");
+        functionClasspath = options.get("function-classpath");
+        if (invokerClasspath == null || functionClasspath == null) {
+            throw new IllegalArgumentException("--invoker-classpath and --function-classpath are required");
+        }
+        requests = Integer.parseInt(options.getOrDefault("requests", "200"));
+        concurrency = Integer.parseInt(options.getOrDefault("concurrency", "16"));
+        gsFaults = StorageEmulator.Faults.parse(options.getOrDefault("gs-faults", "latencyMs=20,jitterMs=5"));
+        boltFaults = StorageEmulator.Faults.parse(options.getOrDefault("bolt-faults", "latencyMs=5,jitterMs=2"));
+        opsPort = Integer.parseInt(options.getOrDefault("port", "8090"));
+        validatePort = opsPort + 1;
+        scenarioNames = options.containsKey("scenarios") ?
+                Arrays.asList(options.get("scenarios").split(",")) : null;
+        json = options.getOrDefault("output", "text").equalsIgnoreCase("json");
+        logDir = options.containsKey("log-dir") ? new File(options.get("log-dir")) : null;
+    }
+
+    public static void main(String[] args) {
+        EmulatorSuite suite;
+        try {
+            suite = new EmulatorSuite(parseArgs(args));
+        } catch (IllegalArgumentException e) {
+            System.err.println("ErrorMessage: " + e.getMessage());
+            System.err.println("Usage: EmulatorSuite --invoker-classpath <cp> --function-classpath <cp> " +
+                    "[--requests <n>] [--concurrency <n>] [--gs-faults <k=v,...>] [--bolt-faults <k=v,...>] " +
+                    "[--port <port>] [--scenarios <name,...>] [--output text|json] [--log-dir <dir>]");
+            System.exit(2);
+            return;
+        }
+
+        boolean passed;
+        try {
+            passed = suite.run();
+        } catch (Exception e) {
+            System.err.println("ErrorMessage: " + e.getMessage());
+            passed = false;
+        } finally {
+            suite.stop();
+        }
+        System.exit(passed ? 0 : 1);
+    }
+
+    private static Map<String, String> parseArgs(String[] args) {
+        Map<String, String> options = new LinkedHashMap<>();
+        for (int i = 0; i < args.length; i++) {
+            if (!args[i].startsWith("--") || i + 1 >= args.length) {
+                throw new IllegalArgumentException("Invalid argument: " + args[i]);
+            }
+            options.put(args[i].substring(2), args[++i]);
+        }
+        return options;
+    }
+
+    /**
+     * Runs the selected scenarios and prints the report.
+     * @return true if every response was as expected
+     */
+    private boolean run() throws IOException, InterruptedException {
+        gs = new StorageEmulator("GS", store, 0);
+        bolt = new StorageEmulator("BOLT", store, 0);
+        seed();
+
+        Map<String, String> env = new LinkedHashMap<>();
+        env.put("STORAGE_EMULATOR_HOST", gs.url());
+        env.put("BOLT_URL", bolt.url() + "/{region}");
+        env.put("GCE_METADATA_HOST", gs.hostAndPort());
+        env.put("RESILIENCE_OPEN_MS", String.valueOf(BREAKER_OPEN_MS));
+        startInvoker("com.projectn.bolt.BoltGSOpsHandler", opsPort, env);
+        startInvoker("com.projectn.bolt.BoltGSValidateObjHandler", validatePort, env);
+        awaitInvoker(opsPort);
+        awaitInvoker(validatePort);
+
+        // faults are injected once the functions are up, so that startup is not measured.
+        gs.faults().set(gsFaults);
+        bolt.faults().set(boltFaults);
+
+        List<Result> results = new ArrayList<>();
+        for (Scenario scenario : scenarios()) {
+            if (scenarioNames == null || scenarioNames.contains(scenario.name)) {
+                results.add(run(scenario));
+            }
+        }
+        if (scenarioNames == null || scenarioNames.contains("breaker")) {
+            results.add(breaker());
+        }
+
+        if (json) {
+            System.out.println(gson.toJson(report(results)));
+        } else {
+            print(results);
+        }
+        return results.stream().allMatch(result -> result.failures.isEmpty());
+    }
+
+    private void stop() {
+        for (Process invoker : invokers) {
+            invoker.destroy();
+        }
+        for (Process invoker : invokers) {
+            try {
+                invoker.waitFor(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (gs != null) {
+            gs.stop();
+        }
+        if (bolt != null) {
+            bolt.stop();
+        }
+    }
+
+    // Writes the objects read by the scenarios: small, gzip encoded and large ones, and objects to delete.
+    private void seed() throws IOException {
+        Random random = new Random(42);
+        for (int i = 0; i < SMALL_OBJECTS; i++) {
+            byte[] data = new byte[SMALL_SIZE];
+            random.nextBytes(data);
+            String key = "small/object-" + i;
+            store.put(BUCKET, key, data, "application/octet-stream", null, false);
+            smallKeys.add(key);
+            md5s.put(key, md5(data));
+        }
+
+        StringBuilder text = new StringBuilder();
+        while (text.length() < 1024 * 1024) {
+            text.append("line ").append(text.length()).append(" of a gzip encoded object\n");
+        }
+        byte[] plain = text.toString().getBytes(UTF_8);
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        try (GZIPOutputStream out = new GZIPOutputStream(compressed)) {
+            out.write(plain);
+        }
+        store.put(BUCKET, "gzip/object.gz", compressed.toByteArray(), "text/plain", "gzip", false);
+        md5s.put("gzip/object.gz", md5(plain));
+
+        largeData = new byte[LARGE_SIZE];
+        random.nextBytes(largeData);
+        store.put(BUCKET, "large/object", largeData, "application/octet-stream", null, false);
+        md5s.put("large/object", md5(largeData));
+
+        for (int i = 0; i < requests; i++) {
+            store.put(BUCKET, "delete/object-" + i, new byte[] {(byte) i}, "application/octet-stream", null, false);
+        }
+    }
+
+    /**
+     * Scenarios whose responses are checked one by one, in the order they run.
+     */
+    private List<Scenario> scenarios() {
+        List<Scenario> scenarios = new ArrayList<>();
+        for (String sdkType : new String[] {"BOLT", "GS"}) {
+            scenarios.add(new Scenario("get_object_md_" + sdkType.toLowerCase(), requests, i -> {
+                String key = smallKey(i);
+                return ops(request("get_object_md", sdkType, key), expect("Md5HexString: " + lowerCase(md5s.get(key))));
+            }));
+        }
+        scenarios.add(new Scenario("list_objects", requests, i -> {
+            JsonObject request = request("list_objects", "BOLT", null);
+            request.addProperty("prefix", "small/");
+            request.addProperty("pageSize", 100);
+            return ops(request, body -> lines(body).size() == SMALL_OBJECTS ? null :
+                    "expected " + SMALL_OBJECTS + " objects");
+        }));
+        scenarios.add(new Scenario("download_small", requests, i -> {
+            String key = smallKey(i);
+            return ops(request("download_object", "BOLT", key), expect("md5: " + md5s.get(key)));
+        }));
+        scenarios.add(new Scenario("download_gzip", requests, i ->
+                ops(request("download_object", "BOLT", "gzip/object.gz"),
+                        expect("md5: " + md5s.get("gzip/object.gz")))));
+        scenarios.add(new Scenario("download_large", Math.max(1, requests / 10), i -> {
+            JsonObject request = request("download_object", "BOLT", "large/object");
+            request.addProperty("chunkSize", LARGE_CHUNK_SIZE);
+            return ops(request, expect("md5: " + md5s.get("large/object")));
+        }));
+        scenarios.add(new Scenario("serve_range", requests, i -> {
+            int first = ThreadLocalRandom.current().nextInt(LARGE_SIZE - 1);
+            int last = Math.min(LARGE_SIZE - 1, first + ThreadLocalRandom.current().nextInt(1024 * 1024));
+            byte[] expected = Arrays.copyOfRange(largeData, first, last + 1);
+            HttpRequest request = HttpRequest.newBuilder(URI.create("http://localhost:" + opsPort +
+                            "/?requestType=download_object&sdkType=BOLT&serve=true&bucket=" + BUCKET +
+                            "&key=large/object"))
+                    .header("Range", "bytes=" + first + "-" + last)
+                    .GET().build();
+            return new Call(request, 0, response -> response.statusCode() != 206 ?
+                    "status " + response.statusCode() :
+                    Arrays.equals(response.body(), expected) ? null : "wrong bytes " + first + "-" + last);
+        }));
+        scenarios.add(new Scenario("upload_value", requests, i -> {
+            String value = "value of upload " + i + " " + System.nanoTime();
+            JsonObject request = request("upload_object", "BOLT", "uploads/value-" + i);
+            request.addProperty("value", value);
+            return ops(request, expect("MD5HexString: " + lowerCase(md5(value.getBytes(UTF_8)))));
+        }));
+        scenarios.add(new Scenario("upload_stream", requests, i ->
+                upload("uploads/stream-" + i, STREAM_SIZE, "", data ->
+                        expect("MD5HexString: " + lowerCase(md5(data)), "Size: " + data.length))));
+        scenarios.add(new Scenario("upload_composite", Math.max(1, requests / 10), i ->
+                upload("uploads/composite-" + i, COMPOSITE_SIZE,
+                        "&composite=true&concurrency=4&partSize=" + COMPOSITE_PART_SIZE, data ->
+                                expect("CRC32C: " + crc32c(data), "Parts: " + COMPOSITE_SIZE / COMPOSITE_PART_SIZE))));
+        scenarios.add(new Scenario("delete_object", requests, i ->
+                ops(request("delete_object", "BOLT", "delete/object-" + i), expect("Deleted: true"))));
+        scenarios.add(new Scenario("batch_get_object_md", requests, i -> {
+            JsonObject request = request("get_object_md", "BOLT", null);
+            JsonArray keys = new JsonArray();
+            List<String> expected = new ArrayList<>();
+            for (int k = 0; k < BATCH_KEYS; k++) {
+                String key = smallKey(i + k);
+                keys.add(key);
+                expected.add(key + ": ");
+                expected.add("Md5HexString=" + lowerCase(md5s.get(key)));
+            }
+            request.add("keys", keys);
+            request.addProperty("batch", true);
+            return ops(request, expect(expected.toArray(new String[0])));
+        }));
+        scenarios.add(new Scenario("validate_md5", requests, i -> {
+            String key = smallKey(i);
+            JsonObject request = request(null, null, key);
+            request.addProperty("compare", "md5");
+            return validate(request, expect("gs-md5: " + md5s.get(key), "bolt-md5: " + md5s.get(key)));
+        }));
+        scenarios.add(new Scenario("validate_metadata", requests, i -> {
+            JsonObject request = request(null, null, smallKey(i));
+            request.addProperty("compare", "metadata");
+            return validate(request, expect("match: true"));
+        }));
+        return scenarios;
+    }
+
+    private Result run(Scenario scenario) throws InterruptedException {
+        Result result = new Result(scenario.name);
+        ExecutorService pool = Executors.newFixedThreadPool(concurrency);
+        try {
+            long start = System.nanoTime();
+            List<Future<?>> futures = new ArrayList<>();
+            for (int i = 0; i < scenario.requests; i++) {
+                int index = i;
+                futures.add(pool.submit(() ->
+                        result.record(scenario.name + " " + index, send(scenario.call.apply(index)))));
+            }
+            for (Future<?> future : futures) {
+                try {
+                    future.get();
+                } catch (Exception e) {
+                    result.failures.add(String.valueOf(e.getMessage()));
+                }
+            }
+            result.nanos = System.nanoTime() - start;
+        } finally {
+            pool.shutdownNow();
+        }
+        return result;
+    }
+
+    // Sends one request and checks its response; a request that cannot be sent fails.
+    private Outcome send(Call call) {
+        long start = System.nanoTime();
+        try {
+            HttpResponse<byte[]> response = http.send(call.request, HttpResponse.BodyHandlers.ofByteArray());
+            long nanos = System.nanoTime() - start;
+            return new Outcome(nanos, call.requestBytes + response.body().length, call.check.apply(response),
+                    response.headers().firstValue("X-Resilience").orElse(""));
+        } catch (IOException e) {
+            return new Outcome(System.nanoTime() - start, 0, e.toString(), "");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return new Outcome(System.nanoTime() - start, 0, "interrupted", "");
+        }
+    }
+
+    /**
+     * Fails every request to the Bolt emulator until the functions' circuit breaker opens and reads are diverted
+     * to GS, then stops failing them and waits for the breaker to close again.
+     */
+    private Result breaker() throws InterruptedException {
+        Result result = new Result("breaker");
+        long start = System.nanoTime();
+        String key = smallKey(0);
+        // revalidated, so that each read reaches Bolt rather than being answered from the metadata cache.
+        JsonObject request = request("get_object_md", "BOLT", key);
+        request.addProperty("revalidate", true);
+        Call read = ops(request, expect("Md5HexString: " + lowerCase(md5s.get(key))));
+        Map<String, String> failing = new LinkedHashMap<>();
+        failing.put("errorRate", "1");
+        bolt.faults().set(failing);
+        try {
+            if (!awaitResilience(read, result, "diverted=BOLT->GS")) {
+                result.failures.add("breaker: reads were not diverted to GS while Bolt failed");
+            }
+        } finally {
+            Map<String, String> healthy = new LinkedHashMap<>();
+            healthy.put("errorRate", boltFaults.getOrDefault("errorRate", "0"));
+            bolt.faults().set(healthy);
+        }
+        TimeUnit.MILLISECONDS.sleep(BREAKER_OPEN_MS);
+        if (!awaitResilience(read, result, "BOLT=closed")) {
+            result.failures.add("breaker: the Bolt breaker did not close once Bolt recovered");
+        }
+        result.nanos = System.nanoTime() - start;
+        return result;
+    }
+
+    // Sends the request, one at a time, until a correct response carries the given text in its X-Resilience
+    // header. Wrong responses before then are expected, and counted as such.
+    private boolean awaitResilience(Call call, Result result, String expected) {
+        for (int attempt = 0; attempt < 200; attempt++) {
+            Outcome outcome = send(call);
+            result.record("breaker", new Outcome(outcome.nanos, outcome.bytes, null, outcome.resilience));
+            if (outcome.failure == null && outcome.resilience.contains(expected)) {
+                return true;
+            }
+            if (outcome.failure != null) {
+                result.expectedErrors++;
+            }
+        }
+        return false;
+    }
+
+    private String smallKey(int i) {
+        return smallKeys.get(i % smallKeys.size());
+    }
+
+    private static JsonObject request(String requestType, String sdkType, String key) {
+        JsonObject request = new JsonObject();
+        if (requestType != null) {
+            request.addProperty("requestType", requestType);
+        }
+        if (sdkType != null) {
+            request.addProperty("sdkType", sdkType);
+        }
+        request.addProperty("bucket", BUCKET);
+        if (key != null) {
+            request.addProperty("key", key);
+        }
+        return request;
+    }
+
+    private Call ops(JsonObject request, Check check) {
+        return post(opsPort, request, check);
+    }
+
+    private Call validate(JsonObject request, Check check) {
+        return post(validatePort, request, check);
+    }
+
+    private Call post(int port, JsonObject request, Check check) {
+        byte[] body = request.toString().getBytes(UTF_8);
+        return new Call(HttpRequest.newBuilder(URI.create("http://localhost:" + port + "/"))
+                .header("Content-Type", "application/json")
+                .POST(HttpRequest.BodyPublishers.ofByteArray(body))
+                .build(), body.length, response -> response.statusCode() != 200 ?
+                "status " + response.statusCode() : check.apply(new String(response.body(), UTF_8)));
+    }
+
+    // Uploads random data as the raw body of an upload_object request.
+    private Call upload(String key, int size, String parameters, Function<byte[], Check> check) {
+        byte[] data = new byte[size];
+        ThreadLocalRandom.current().nextBytes(data);
+        Check expected = check.apply(data);
+        return new Call(HttpRequest.newBuilder(URI.create("http://localhost:" + opsPort +
+                        "/?requestType=upload_object&sdkType=BOLT&bucket=" + BUCKET + "&key=" + key + parameters))
+                .header("Content-Type", "application/octet-stream")
+                .POST(HttpRequest.BodyPublishers.ofByteArray(data))
+                .build(), size, response -> response.statusCode() != 200 ?
+                "status " + response.statusCode() : expected.apply(new String(response.body(), UTF_8)));
+    }
+
+    // Checks that the response body contains every one of the given texts.
+    private static Check expect(String... texts) {
+        return body -> {
+            for (String text : texts) {
+                if (!body.contains(text)) {
+                    return "expected '" + text + "' in: " + abbreviate(body);
+                }
+            }
+            return null;
+        };
+    }
+
+    private static List<String> lines(String body) {
+        List<String> lines = new ArrayList<>();
+        for (String line : body.split("\n")) {
+            if (!line.trim().isEmpty()) {
+                lines.add(line);
+            }
+        }
+        return lines;
+    }
+
+    private static String abbreviate(String body) {
+        String line = body.replace('\n', ' ');
+        return line.length() > 200 ? line.substring(0, 200) + "..." : line;
+    }
+
+    private void startInvoker(String target, int port, Map<String, String> env) throws IOException {
+        List<String> command = new ArrayList<>();
+        command.add(System.getProperty("java.home") + "/bin/java");
+        command.add("-cp");
+        command.add(invokerClasspath);
+        command.add("com.google.cloud.functions.invoker.runner.Invoker");
+        command.add("--target");
+        command.add(target);
+        command.add("--port");
+        command.add(String.valueOf(port));
+        command.add("--classpath");
+        command.add(functionClasspath);
+        ProcessBuilder builder = new ProcessBuilder(command).redirectErrorStream(true);
+        if (logDir != null) {
+            logDir.mkdirs();
+            builder.redirectOutput(new File(logDir, target.substring(target.lastIndexOf('.') + 1) + ".log"));
+        } else {
+            builder.redirectOutput(ProcessBuilder.Redirect.DISCARD);
+        }
+        builder.environment().putAll(env);
+        invokers.add(builder.start());
+    }
+
+    // Waits until the invoker on the given port answers a request.
+    private void awaitInvoker(int port) throws IOException, InterruptedException {
+        HttpRequest request = HttpRequest.newBuilder(URI.create("http://localhost:" + port + "/"))
+                .header("Content-Type", "application/json")
+                .POST(HttpRequest.BodyPublishers.ofString("{\"requestType\": \"metrics\"}"))
+                .build();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(60);
+        while (true) {
+            for (Process invoker : invokers) {
+                if (!invoker.isAlive()) {
+                    throw new IOException("Invoker exited with code " + invoker.exitValue());
+                }
+            }
+            try {
+                http.send(request, HttpResponse.BodyHandlers.discarding());
+                return;
+            } catch (ConnectException e) {
+                if (System.nanoTime() > deadline) {
+                    throw new IOException("Invoker on port " + port + " did not start");
+                }
+                TimeUnit.MILLISECONDS.sleep(50);
+            }
+        }
+    }
+
+    private void print(List<Result> results) {
+        System.out.println(String.format("requests=%d concurrency=%d", requests, concurrency));
+        System.out.println("GS emulator:   " + gs.describe());
+        System.out.println("Bolt emulator: " + bolt.describe());
+        System.out.println(String.format("%-20s %9s %9s %9s %9s %9s %9s %8s %9s",
+                "scenario", "requests", "req/s", "p50(ms)", "p90(ms)", "p99(ms)", "max(ms)", "failures", "MBps"));
+        for (Result result : results) {
+            double seconds = result.nanos / 1e9;
+            System.out.println(String.format("%-20s %9d %9.1f %9.3f %9.3f %9.3f %9.3f %8d %9.3f",
+                    result.name, result.histogram.count(), result.histogram.count() / seconds,
+                    result.percentileMillis(50), result.percentileMillis(90), result.percentileMillis(99),
+                    result.histogram.maxMillis(), result.failures.size(), result.histogram.bytes() / seconds / 1e6));
+        }
+        for (Result result : results) {
+            result.failures.stream().limit(10).forEach(failure -> System.out.println("FAILED " + failure));
+        }
+    }
+
+    private JsonObject report(List<Result> results) {
+        JsonObject config = new JsonObject();
+        config.addProperty("requests", requests);
+        config.addProperty("concurrency", concurrency);
+        config.addProperty("gsEmulator", gs.describe());
+        config.addProperty("boltEmulator", bolt.describe());
+
+        JsonArray scenarios = new JsonArray();
+        for (Result result : results) {
+            double seconds = result.nanos / 1e9;
+            JsonObject scenario = new JsonObject();
+            scenario.addProperty("scenario", result.name);
+            scenario.addProperty("requests", result.histogram.count());
+            scenario.addProperty("requestsPerSecond", result.histogram.count() / seconds);
+            scenario.addProperty("p50Ms", result.percentileMillis(50));
+            scenario.addProperty("p90Ms", result.percentileMillis(90));
+            scenario.addProperty("p99Ms", result.percentileMillis(99));
+            scenario.addProperty("maxMs", result.histogram.maxMillis());
+            scenario.addProperty("bytes", result.histogram.bytes());
+            scenario.addProperty("expectedErrors", result.expectedErrors);
+            scenario.add("failures", gson.toJsonTree(new ArrayList<>(result.failures)));
+            scenarios.add(scenario);
+        }
+
+        JsonObject report = new JsonObject();
+        report.add("config", config);
+        report.add("scenarios", scenarios);
+        return report;
+    }
+
+    private static String md5(byte[] data) {
+        MessageDigest digest = ObjectDigests.newMd5();
+        return ObjectDigests.hex(digest.digest(data));
+    }
+
+    // Metadata responses print the MD5 with Blob.getMd5ToHexString(), in lower case; downloads and validations
+    // print it with ObjectDigests.hex(), in upper case, as md5() does.
+    private static String lowerCase(String hex) {
+        return hex.toLowerCase(Locale.ROOT);
+    }
+
+    private static String crc32c(byte[] data) {
+        CRC32C crc = new CRC32C();
+        crc.update(data, 0, data.length);
+        return ObjectDigests.crc32cToBase64(crc.getValue());
+    }
+
+    // Checks a response body; returns null if it is as expected, else what is wrong with it.
+    private interface Check {
+        String apply(String body);
+    }
+
+    // Checks a response; returns null if it is as expected, else what is wrong with it.
+    private interface ResponseCheck {
+        String apply(HttpResponse<byte[]> response);
+    }
+
+    /**
+     * Scenario is a named sequence of requests, sent 'concurrency' at a time.
+     */
+    private static final class Scenario {
+        private final String name;
+        private final int requests;
+        private final IntFunction<Call> call;
+
+        private Scenario(String name, int requests, IntFunction<Call> call) {
+            this.name = name;
+            this.requests = requests;
+            this.call = call;
+        }
+    }
+
+    /**
+     * Call is a request and the check of its response.
+     */
+    private static final class Call {
+        private final HttpRequest request;
+        private final long requestBytes;
+        private final ResponseCheck check;
+
+        private Call(HttpRequest request, long requestBytes, ResponseCheck check) {
+            this.request = request;
+            this.requestBytes = requestBytes;
+            this.check = check;
+        }
+    }
+
+    /**
+     * Outcome is the latency, bytes transferred, failure (or null) and X-Resilience header of one request.
+     */
+    private static final class Outcome {
+        private final long nanos;
+        private final long bytes;
+        private final String failure;
+        private final String resilience;
+
+        private Outcome(long nanos, long bytes, String failure, String resilience) {
+            this.nanos = nanos;
+            this.bytes = bytes;
+            this.failure = failure;
+            this.resilience = resilience;
+        }
+    }
+
+    /**
+     * Result is the latencies of the requests of one scenario and its failures, i.e. the wrong responses.
+     */
+    private static final class Result {
+        private final String name;
+        private final LatencyHistograms.Histogram histogram = new LatencyHistograms.Histogram();
+        private final ConcurrentLinkedQueue<String> failures = new ConcurrentLinkedQueue<>();
+        // failed responses the scenario provoked, e.g. while Bolt fails every request.
+        private long expectedErrors;
+        private long nanos;
+
+        private Result(String name) {
+            this.name = name;
+        }
+
+        private void record(String request, Outcome outcome) {
+            histogram.record(outcome.nanos, outcome.bytes);
+            if (outcome.failure != null) {
+                failures.add(request + ": " + outcome.failure);
+            }
+        }
+
+        private double percentileMillis(double percentile) {
+            return histogram.count() > 0 ? histogram.percentileMicros(percentile) / 1e3 : 0;
+        }
+    }
+}
@@ -0,0 +1,1037 @@
+package com.projectn.bolt;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TimeZone;
+import java.util.TreeSet;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32C;
+import java.util.zip.GZIPInputStream;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * StorageEmulator is an in-process HTTP server that plays GS or Bolt for offline tests. It implements the subset of
+ * the Storage JSON API used by the handlers: object get (metadata, and media with byte ranges), list, insert
+ * (multipart, media and resumable uploads), delete and compose, bucket get and list, and batch requests. It also
+ * answers the metadata server's zone request, so that a '{region}' placeholder in BOLT_URL can be resolved.
+ *
+ * Objects are kept in memory, in a Store that a GS and a Bolt emulator may share, as Bolt serves the objects of the
+ * GS buckets it fronts. Buckets are created by the first object written to them. Only the latest generation of an
+ * object is kept.
+ *
+ * Each emulator injects its own faults (see Faults): a fixed latency plus jitter per request, an aggregate bandwidth
+ * cap on request and response bodies, and a rate of failed requests. Faults are set when the emulator starts, and
+ * can be changed while it runs with POST /_emulator/faults?latencyMs=..&errorRate=.. . The Storage clients are
+ * pointed at the emulators with the 'STORAGE_EMULATOR_HOST' and 'BOLT_URL' environment variables, and the metadata
+ * server with 'GCE_METADATA_HOST'.
+ *
+ * Usage:
+ *   java -cp <classpath> com.projectn.bolt.StorageEmulator [options]
+ *
+ * Options:
+ *   --gs-port <port>            port of the GS emulator (default 9000)
+ *   --bolt-port <port>          port of the Bolt emulator (default 9001)
+ *   --gs-faults <k=v,...>       faults of the GS emulator, e.g. latencyMs=20,jitterMs=5,bandwidth=104857600
+ *   --bolt-faults <k=v,...>     faults of the Bolt emulator, e.g. latencyMs=2,errorRate=0.01
+ *   --buckets <bucket,...>      buckets created at startup (default none)
+ */
+public class StorageEmulator {
+
+    // Zone reported by the emulated metadata server, i.e. region us-central1.
+    static final String DEFAULT_ZONE = "projects/0/zones/us-central1-a";
+
+    // Path prefixes of the APIs served, in the order they are matched. Anything before them (e.g. a region
+    // resolved into BOLT_URL) is ignored.
+    private static final String UPLOAD = "/upload/storage/v1/";
+    private static final String DOWNLOAD = "/download/storage/v1/";
+    private static final String BATCH = "/batch/storage/v1";
+    private static final String JSON_API = "/storage/v1/";
+    private static final String METADATA = "/computeMetadata/v1/";
+    private static final String ADMIN = "/_emulator/";
+    private static final String[] APIS = {UPLOAD, DOWNLOAD, BATCH, JSON_API, METADATA, ADMIN};
+
+    private static final int DEFAULT_PAGE_SIZE = 1000;
+    // Size of the slices in which bodies are written, and paced if bandwidth is capped.
+    private static final int SLICE_SIZE = 64 * 1024;
+
+    private static final Gson gson = new GsonBuilder().disableHtmlEscaping().create();
+
+    private final String name;
+    private final Store store;
+    private final Faults faults = new Faults();
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final Map<String, Upload> uploads = new ConcurrentHashMap<>();
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong injectedErrors = new AtomicLong();
+
+    /**
+     * Starts an emulator.
+     * @param name name of the emulated endpoint, e.g. GS or BOLT
+     * @param store objects served
+     * @param port port to listen on, or 0 for any free port
+     */
+    StorageEmulator(String name, Store store, int port) throws IOException {
+        this.name = name;
+        this.store = store;
+        this.server = HttpServer.create(new InetSocketAddress("localhost", port), 0);
+        this.executor = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "emulator-" + name.toLowerCase());
+            thread.setDaemon(true);
+            return thread;
+        });
+        server.setExecutor(executor);
+        server.createContext("/", this::handle);
+        server.start();
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        Map<String, String> options = new LinkedHashMap<>();
+        for (int i = 0; i < args.length; i++) {
+            if (!args[i].startsWith("--") || i + 1 >= args.length) {
+                System.err.println("ErrorMessage: Invalid argument: " + args[i]);
+                System.err.println("Usage: StorageEmulator [--gs-port <port>] [--bolt-port <port>] " +
+                        "[--gs-faults <k=v,...>] [--bolt-faults <k=v,...>] [--buckets <bucket,...>]");
+                System.exit(2);
+            }
+            options.put(args[i].substring(2), args[++i]);
+        }
+
+        Store store = new Store();
+        for (String bucket : options.getOrDefault("buckets", "").split(",")) {
+            if (!bucket.trim().isEmpty()) {
+                store.createBucket(bucket.trim());
+            }
+        }
+        StorageEmulator gs = new StorageEmulator("GS", store,
+                Integer.parseInt(options.getOrDefault("gs-port", "9000")));
+        StorageEmulator bolt = new StorageEmulator("BOLT", store,
+                Integer.parseInt(options.getOrDefault("bolt-port", "9001")));
+        gs.faults().set(Faults.parse(options.getOrDefault("gs-faults", "")));
+        bolt.faults().set(Faults.parse(options.getOrDefault("bolt-faults", "")));
+
+        System.out.println("GS emulator:   " + gs.url() + " " + gs.faults().describe());
+        System.out.println("Bolt emulator: " + bolt.url() + " " + bolt.faults().describe());
+        System.out.println("Point the functions at them with:");
+        System.out.println("  STORAGE_EMULATOR_HOST=" + gs.url());
+        System.out.println("  BOLT_URL=" + bolt.url() + "/{region}");
+        System.out.println("  GCE_METADATA_HOST=" + gs.hostAndPort());
+        Thread.currentThread().join();
+    }
+
+    String url() {
+        return "http://" + hostAndPort();
+    }
+
+    String hostAndPort() {
+        return "localhost:" + server.getAddress().getPort();
+    }
+
+    Faults faults() {
+        return faults;
+    }
+
+    void stop() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    /**
+     * Returns a summary of the requests served, e.g. "requests=1200;injected-errors=12;latencyMs=20;..."
+     */
+    String describe() {
+        return String.format("requests=%d;injected-errors=%d;%s", requests.get(), injectedErrors.get(),
+                faults.describe());
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        requests.incrementAndGet();
+        try {
+            Call call = read(exchange);
+            Reply reply;
+            if (call.api.equals(ADMIN) || call.api.equals(METADATA)) {
+                reply = route(call);
+            } else {
+                faults.delay();
+                if (faults.fail()) {
+                    injectedErrors.incrementAndGet();
+                    reply = error(faults.errorCode, "Injected error (" + name + " emulator)");
+                } else {
+                    reply = route(call);
+                }
+            }
+            write(exchange, reply);
+        } catch (Exception e) {
+            write(exchange, error(500, String.valueOf(e.getMessage())));
+        } finally {
+            exchange.close();
+        }
+    }
+
+    // Reads the request, decoding a gzip encoded body as the Storage client sends them.
+    private Call read(HttpExchange exchange) throws IOException {
+        Map<String, String> headers = new LinkedHashMap<>();
+        for (Map.Entry<String, List<String>> header : exchange.getRequestHeaders().entrySet()) {
+            headers.put(header.getKey().toLowerCase(Locale.ROOT), header.getValue().get(0));
+        }
+        byte[] body;
+        try (InputStream in = exchange.getRequestBody()) {
+            body = in.readAllBytes();
+        }
+        faults.pace(body.length);
+        if ("gzip".equalsIgnoreCase(headers.get("content-encoding"))) {
+            try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(body))) {
+                body = in.readAllBytes();
+            }
+        }
+        return new Call(exchange.getRequestMethod(), exchange.getRequestURI().getRawPath(),
+                exchange.getRequestURI().getRawQuery(), headers, body);
+    }
+
+    private void write(HttpExchange exchange, Reply reply) throws IOException {
+        Headers headers = exchange.getResponseHeaders();
+        for (Map.Entry<String, String> header : reply.headers.entrySet()) {
+            headers.set(header.getKey(), header.getValue());
+        }
+        if (reply.length == 0) {
+            exchange.sendResponseHeaders(reply.status, -1);
+            return;
+        }
+        exchange.sendResponseHeaders(reply.status, reply.length);
+        OutputStream out = exchange.getResponseBody();
+        for (int offset = 0; offset < reply.length; offset += SLICE_SIZE) {
+            int length = Math.min(SLICE_SIZE, reply.length - offset);
+            faults.pace(length);
+            out.write(reply.body, reply.offset + offset, length);
+        }
+        out.flush();
+    }
+
+    private Reply route(Call call) throws IOException {
+        switch (call.api) {
+            case ADMIN:
+                return admin(call);
+            case METADATA:
+                return metadata(call);
+            case BATCH:
+                return batch(call);
+            case UPLOAD:
+                return upload(call);
+            default:
+                break;
+        }
+
+        List<String> path = call.segments();
+        boolean get = call.method.equals("GET");
+        if (path.size() == 1 && path.get(0).equals("b") && get) {
+            return listBuckets();
+        }
+        if (path.size() >= 2 && path.get(0).equals("b")) {
+            String bucket = path.get(1);
+            if (path.size() == 2 && get) {
+                return store.hasBucket(bucket) ? json(200, bucketJson(bucket)) :
+                        error(404, "The specified bucket does not exist.");
+            }
+            if (path.size() == 3 && path.get(2).equals("o") && get) {
+                return listObjects(call, bucket);
+            }
+            if (path.size() == 4 && path.get(2).equals("o")) {
+                if (get) {
+                    return getObject(call, bucket, path.get(3));
+                }
+                if (call.method.equals("DELETE")) {
+                    return store.delete(bucket, path.get(3)) ? new Reply(204) :
+                            error(404, "No such object: " + bucket + "/" + path.get(3));
+                }
+            }
+            if (path.size() == 5 && path.get(2).equals("o") && path.get(4).equals("compose") &&
+                    call.method.equals("POST")) {
+                return compose(call, bucket, path.get(3));
+            }
+        }
+        return error(400, "Unsupported request: " + call.method + " " + call.path);
+    }
+
+    private Reply listBuckets() {
+        JsonArray items = new JsonArray();
+        for (String bucket : store.buckets.keySet()) {
+            items.add(bucketJson(bucket));
+        }
+        JsonObject list = new JsonObject();
+        list.addProperty("kind", "storage#buckets");
+        list.add("items", items);
+        return json(200, list);
+    }
+
+    private static JsonObject bucketJson(String bucket) {
+        JsonObject json = new JsonObject();
+        json.addProperty("kind", "storage#bucket");
+        json.addProperty("id", bucket);
+        json.addProperty("name", bucket);
+        json.addProperty("location", "US-CENTRAL1");
+        json.addProperty("storageClass", "STANDARD");
+        json.addProperty("metageneration", "1");
+        json.addProperty("timeCreated", timestamp(0));
+        json.addProperty("updated", timestamp(0));
+        JsonObject versioning = new JsonObject();
+        versioning.addProperty("enabled", false);
+        json.add("versioning", versioning);
+        return json;
+    }
+
+    // Lists one page of objects, with the names under a delimiter rolled up into prefixes.
+    private Reply listObjects(Call call, String bucket) {
+        NavigableMap<String, StoredObject> objects = store.objects(bucket);
+        if (objects == null) {
+            return error(404, "The specified bucket does not exist.");
+        }
+        String prefix = call.query.getOrDefault("prefix", "");
+        String delimiter = call.query.get("delimiter");
+        int pageSize = call.query.containsKey("maxResults") ?
+                Integer.parseInt(call.query.get("maxResults")) : DEFAULT_PAGE_SIZE;
+        String pageToken = call.query.get("pageToken");
+
+        JsonArray items = new JsonArray();
+        TreeSet<String> prefixes = new TreeSet<>();
+        String last = null;
+        String nextPageToken = null;
+        NavigableMap<String, StoredObject> tail = pageToken != null ?
+                objects.tailMap(pageToken, false) : objects.tailMap(prefix, true);
+        for (StoredObject object : tail.values()) {
+            if (!object.name.startsWith(prefix)) {
+                break;
+            }
+            if (items.size() + prefixes.size() >= pageSize) {
+                nextPageToken = last;
+                break;
+            }
+            int end = delimiter != null ? object.name.indexOf(delimiter, prefix.length()) : -1;
+            if (end >= 0) {
+                prefixes.add(object.name.substring(0, end + delimiter.length()));
+            } else {
+                items.add(object.json());
+            }
+            last = object.name;
+        }
+
+        JsonObject list = new JsonObject();
+        list.addProperty("kind", "storage#objects");
+        list.add("items", items);
+        if (!prefixes.isEmpty()) {
+            list.add("prefixes", gson.toJsonTree(prefixes));
+        }
+        if (nextPageToken != null) {
+            list.addProperty("nextPageToken", nextPageToken);
+        }
+        return json(200, list);
+    }
+
+    private Reply getObject(Call call, String bucket, String objectName) {
+        StoredObject object = store.get(bucket, objectName);
+        String generation = call.query.get("generation");
+        if (object == null || (generation != null && Long.parseLong(generation) != object.generation)) {
+            return error(404, "No such object: " + bucket + "/" + objectName);
+        }
+        if (call.api.equals(DOWNLOAD) || "media".equals(call.query.get("alt"))) {
+            return media(call, object);
+        }
+        return json(200, object.json());
+    }
+
+    // Serves the object's data, or the byte range of the Range header. The stored bytes are served without a
+    // Content-Encoding header, so that clients read a gzip encoded object as stored, as the handlers expect.
+    private static Reply media(Call call, StoredObject object) {
+        int size = object.data.length;
+        Reply reply = new Reply(200);
+        reply.headers.put("Content-Type", object.contentType != null ? object.contentType :
+                "application/octet-stream");
+        reply.headers.put("ETag", object.etag());
+        reply.headers.put("X-Goog-Generation", String.valueOf(object.generation));
+        reply.headers.put("Accept-Ranges", "bytes");
+
+        String range = call.headers.get("range");
+        if (range == null || !range.startsWith("bytes=") || size == 0) {
+            return reply.body(object.data, 0, size);
+        }
+        String spec = range.substring("bytes=".length());
+        int dash = spec.indexOf('-');
+        long first;
+        long last;
+        if (dash == 0) {
+            long suffix = Long.parseLong(spec.substring(1));
+            first = Math.max(0, size - suffix);
+            last = size - 1;
+        } else {
+            first = Long.parseLong(spec.substring(0, dash));
+            last = dash == spec.length() - 1 ? size - 1 : Math.min(size - 1, Long.parseLong(spec.substring(dash + 1)));
+        }
+        if (first >= size || last < first) {
+            Reply unsatisfiable = error(416, "Requested range not satisfiable");
+            unsatisfiable.headers.put("Content-Range", "bytes */" + size);
+            return unsatisfiable;
+        }
+        reply.status = 206;
+        reply.headers.put("Content-Range", "bytes " + first + "-" + last + "/" + size);
+        return reply.body(object.data, (int) first, (int) (last - first + 1));
+    }
+
+    private Reply compose(Call call, String bucket, String objectName) {
+        JsonObject request = gson.fromJson(new String(call.body, UTF_8), JsonObject.class);
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        for (JsonElement element : request.getAsJsonArray("sourceObjects")) {
+            JsonObject source = element.getAsJsonObject();
+            StoredObject object = store.get(bucket, source.get("name").getAsString());
+            if (object == null || (source.has("generation") &&
+                    source.get("generation").getAsLong() != object.generation)) {
+                return error(404, "No such object: " + bucket + "/" + source.get("name").getAsString());
+            }
+            data.write(object.data, 0, object.data.length);
+        }
+        JsonObject destination = request.has("destination") ? request.getAsJsonObject("destination") :
+                new JsonObject();
+        StoredObject composed = store.put(bucket, objectName, data.toByteArray(),
+                string(destination, "contentType"), string(destination, "contentEncoding"), true);
+        return json(200, composed.json());
+    }
+
+    private Reply upload(Call call) {
+        String uploadId = call.query.get("upload_id");
+        if (uploadId != null) {
+            return resumableChunk(call, uploadId);
+        }
+        List<String> path = call.segments();
+        if (path.size() != 3 || !path.get(0).equals("b") || !path.get(2).equals("o")) {
+            return error(400, "Unsupported upload: " + call.path);
+        }
+        String bucket = path.get(1);
+        String uploadType = call.query.getOrDefault("uploadType", "media");
+        switch (uploadType) {
+            case "multipart": {
+                List<Part> parts = Part.parse(call.body, boundary(call.headers.get("content-type")));
+                if (parts.size() != 2) {
+                    return error(400, "Multipart upload must have 2 parts, has " + parts.size());
+                }
+                JsonObject metadata = gson.fromJson(new String(parts.get(0).content, UTF_8), JsonObject.class);
+                String contentType = string(metadata, "contentType");
+                StoredObject object = store.put(bucket, metadata.get("name").getAsString(), parts.get(1).content,
+                        contentType != null ? contentType : parts.get(1).headers.get("content-type"),
+                        string(metadata, "contentEncoding"), false);
+                return json(200, object.json());
+            }
+            case "media": {
+                StoredObject object = store.put(bucket, call.query.get("name"), call.body,
+                        call.headers.get("content-type"), null, false);
+                return json(200, object.json());
+            }
+            case "resumable": {
+                JsonObject metadata = call.body.length > 0 ?
+                        gson.fromJson(new String(call.body, UTF_8), JsonObject.class) : new JsonObject();
+                if (!metadata.has("name")) {
+                    metadata.addProperty("name", call.query.get("name"));
+                }
+                if (!metadata.has("contentType") && call.headers.containsKey("x-upload-content-type")) {
+                    metadata.addProperty("contentType", call.headers.get("x-upload-content-type"));
+                }
+                String id = UUID.randomUUID().toString();
+                uploads.put(id, new Upload(bucket, metadata));
+                Reply reply = new Reply(200);
+                reply.headers.put("Location", "http://" + call.headers.getOrDefault("host", hostAndPort()) +
+                        call.path + "?uploadType=resumable&upload_id=" + id);
+                return reply;
+            }
+            default:
+                return error(400, "Unsupported uploadType: " + uploadType);
+        }
+    }
+
+    // Appends a chunk to a resumable upload; the object is created once all of its bytes have arrived.
+    private Reply resumableChunk(Call call, String uploadId) {
+        Upload upload = uploads.get(uploadId);
+        if (upload == null) {
+            return error(404, "No such upload: " + uploadId);
+        }
+        String contentRange = call.headers.getOrDefault("content-range", "bytes */*");
+        String spec = contentRange.substring(contentRange.indexOf(' ') + 1);
+        String range = spec.substring(0, spec.indexOf('/'));
+        String total = spec.substring(spec.indexOf('/') + 1);
+
+        synchronized (upload) {
+            if (!range.equals("*")) {
+                long first = Long.parseLong(range.substring(0, range.indexOf('-')));
+                int received = upload.data.size();
+                if (first > received) {
+                    return error(400, "Chunk starts at " + first + ", " + received + " bytes were received");
+                }
+                // a chunk sent again after a failure may overlap the bytes already received.
+                int skip = (int) (received - first);
+                if (skip < call.body.length) {
+                    upload.data.write(call.body, skip, call.body.length - skip);
+                }
+            }
+            if (!total.equals("*") && upload.data.size() == Long.parseLong(total)) {
+                uploads.remove(uploadId);
+                StoredObject object = store.put(upload.bucket, upload.metadata.get("name").getAsString(),
+                        upload.data.toByteArray(), string(upload.metadata, "contentType"),
+                        string(upload.metadata, "contentEncoding"), false);
+                return json(200, object.json());
+            }
+            Reply reply = new Reply(308);
+            if (upload.data.size() > 0) {
+                reply.headers.put("Range", "bytes=0-" + (upload.data.size() - 1));
+            }
+            return reply;
+        }
+    }
+
+    // Runs every request of a multipart/mixed batch and answers them in a multipart/mixed response.
+    private Reply batch(Call call) throws IOException {
+        List<Part> parts = Part.parse(call.body, boundary(call.headers.get("content-type")));
+        String boundary = "batch_" + UUID.randomUUID();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (Part part : parts) {
+            Reply reply = route(Call.embedded(part.content));
+            StringBuilder head = new StringBuilder()
+                    .append("--").append(boundary).append("\r\n")
+                    .append("Content-Type: application/http\r\n");
+            String contentId = part.headers.get("content-id");
+            if (contentId != null) {
+                head.append("Content-ID: response-").append(contentId.replaceAll("[<>]", "")).append("\r\n");
+            }
+            head.append("\r\n")
+                    .append("HTTP/1.1 ").append(reply.status).append(' ').append(reason(reply.status)).append("\r\n");
+            for (Map.Entry<String, String> header : reply.headers.entrySet()) {
+                head.append(header.getKey()).append(": ").append(header.getValue()).append("\r\n");
+            }
+            head.append("Content-Length: ").append(reply.length).append("\r\n\r\n");
+            out.write(head.toString().getBytes(UTF_8));
+            out.write(reply.body, reply.offset, reply.length);
+            out.write("\r\n".getBytes(UTF_8));
+        }
+        out.write(("--" + boundary + "--\r\n").getBytes(UTF_8));
+        byte[] body = out.toByteArray();
+        Reply reply = new Reply(200).body(body, 0, body.length);
+        reply.headers.put("Content-Type", "multipart/mixed; boundary=" + boundary);
+        return reply;
+    }
+
+    private static Reply metadata(Call call) {
+        if (!"Google".equals(call.headers.get("metadata-flavor"))) {
+            return error(403, "Missing Metadata-Flavor: Google header");
+        }
+        if (call.rest.equals("instance/zone")) {
+            byte[] zone = DEFAULT_ZONE.getBytes(UTF_8);
+            Reply reply = new Reply(200).body(zone, 0, zone.length);
+            reply.headers.put("Content-Type", "application/text");
+            return reply;
+        }
+        return error(404, "Not found: " + call.path);
+    }
+
+    // GET /_emulator/faults returns, POST /_emulator/faults?k=v&.. changes, the faults of this emulator.
+    private Reply admin(Call call) {
+        if (call.rest.equals("faults")) {
+            if (call.method.equals("POST")) {
+                faults.set(call.query);
+            }
+            byte[] text = describe().getBytes(UTF_8);
+            return new Reply(200).body(text, 0, text.length);
+        }
+        return error(404, "Not found: " + call.path);
+    }
+
+    private static String boundary(String contentType) {
+        if (contentType != null) {
+            for (String parameter : contentType.split(";")) {
+                String trimmed = parameter.trim();
+                if (trimmed.startsWith("boundary=")) {
+                    return trimmed.substring("boundary=".length()).replace("\"", "");
+                }
+            }
+        }
+        throw new IllegalArgumentException("Missing multipart boundary: " + contentType);
+    }
+
+    private static String string(JsonObject json, String member) {
+        return json.has(member) && !json.get(member).isJsonNull() ? json.get(member).getAsString() : null;
+    }
+
+    private static Reply json(int status, JsonElement json) {
+        byte[] body = gson.toJson(json).getBytes(UTF_8);
+        Reply reply = new Reply(status).body(body, 0, body.length);
+        reply.headers.put("Content-Type", "application/json; charset=UTF-8");
+        return reply;
+    }
+
+    private static Reply error(int status, String message) {
+        JsonObject error = new JsonObject();
+        error.addProperty("code", status);
+        error.addProperty("message", message);
+        JsonObject json = new JsonObject();
+        json.add("error", error);
+        return json(status, json);
+    }
+
+    private static String reason(int status) {
+        switch (status) {
+            case 200: return "OK";
+            case 204: return "No Content";
+            case 206: return "Partial Content";
+            case 308: return "Resume Incomplete";
+            case 404: return "Not Found";
+            case 416: return "Requested Range Not Satisfiable";
+            default: return status >= 500 ? "Server Error" : "Client Error";
+        }
+    }
+
+    private static String timestamp(long millis) {
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'", Locale.ROOT);
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return format.format(new Date(millis));
+    }
+
+    // Decodes %XX escapes only: a '+' in a path segment is a plus sign.
+    private static String decodePath(String segment) {
+        return URLDecoder.decode(segment.replace("+", "%2B"), UTF_8);
+    }
+
+    /**
+     * Store holds the buckets and objects served by one or more emulators.
+     */
+    static final class Store {
+        private final Map<String, ConcurrentSkipListMap<String, StoredObject>> buckets =
+                new ConcurrentSkipListMap<>();
+        private final AtomicLong generations = new AtomicLong(System.currentTimeMillis() * 1000);
+
+        void createBucket(String bucket) {
+            buckets.computeIfAbsent(bucket, b -> new ConcurrentSkipListMap<>());
+        }
+
+        boolean hasBucket(String bucket) {
+            return buckets.containsKey(bucket);
+        }
+
+        /**
+         * Writes an object, replacing any previous generation, and returns it.
+         * @param composed true if the object is a composition, which has a CRC32C but no MD5
+         */
+        StoredObject put(String bucket, String name, byte[] data, String contentType, String contentEncoding,
+                         boolean composed) {
+            StoredObject object = new StoredObject(bucket, name, data, contentType, contentEncoding,
+                    generations.incrementAndGet(), composed);
+            buckets.computeIfAbsent(bucket, b -> new ConcurrentSkipListMap<>()).put(name, object);
+            return object;
+        }
+
+        StoredObject get(String bucket, String name) {
+            NavigableMap<String, StoredObject> objects = buckets.get(bucket);
+            return objects != null ? objects.get(name) : null;
+        }
+
+        boolean delete(String bucket, String name) {
+            NavigableMap<String, StoredObject> objects = buckets.get(bucket);
+            return objects != null && objects.remove(name) != null;
+        }
+
+        private NavigableMap<String, StoredObject> objects(String bucket) {
+            return buckets.get(bucket);
+        }
+    }
+
+    /**
+     * StoredObject is one generation of an object, with the checksums GS would report for it.
+     */
+    static final class StoredObject {
+        final String bucket;
+        final String name;
+        final byte[] data;
+        final String contentType;
+        final String contentEncoding;
+        final long generation;
+        final String md5;
+        final String crc32c;
+        private final long created = System.currentTimeMillis();
+
+        private StoredObject(String bucket, String name, byte[] data, String contentType, String contentEncoding,
+                             long generation, boolean composed) {
+            this.bucket = bucket;
+            this.name = name;
+            this.data = data;
+            this.contentType = contentType;
+            this.contentEncoding = contentEncoding;
+            this.generation = generation;
+            this.md5 = composed ? null : Base64.getEncoder().encodeToString(md5(data));
+            CRC32C crc = new CRC32C();
+            crc.update(data, 0, data.length);
+            this.crc32c = ObjectDigests.crc32cToBase64(crc.getValue());
+        }
+
+        private static byte[] md5(byte[] data) {
+            MessageDigest digest = ObjectDigests.newMd5();
+            digest.update(data);
+            return digest.digest();
+        }
+
+        String etag() {
+            return Long.toHexString(generation);
+        }
+
+        JsonObject json() {
+            JsonObject json = new JsonObject();
+            json.addProperty("kind", "storage#object");
+            json.addProperty("id", bucket + "/" + name + "/" + generation);
+            json.addProperty("bucket", bucket);
+            json.addProperty("name", name);
+            json.addProperty("generation", String.valueOf(generation));
+            json.addProperty("metageneration", "1");
+            json.addProperty("size", String.valueOf(data.length));
+            json.addProperty("contentType", contentType != null ? contentType : "application/octet-stream");
+            if (contentEncoding != null) {
+                json.addProperty("contentEncoding", contentEncoding);
+            }
+            if (md5 != null) {
+                json.addProperty("md5Hash", md5);
+            }
+            json.addProperty("crc32c", crc32c);
+            json.addProperty("etag", etag());
+            json.addProperty("storageClass", "STANDARD");
+            json.addProperty("timeCreated", timestamp(created));
+            json.addProperty("updated", timestamp(created));
+            return json;
+        }
+    }
+
+    /**
+     * Faults are the latency, bandwidth cap and error rate injected by an emulator. Latency is added to every
+     * request; the bandwidth cap is shared by all requests to the emulator, uploads and downloads alike.
+     * Parameters: latencyMs, jitterMs (a random delay up to jitterMs is added), bandwidth (bytes per second,
+     * 0 for unlimited), errorRate (fraction of requests failed) and errorCode (status of failed requests, 503).
+     */
+    static final class Faults {
+        private volatile long latencyMs;
+        private volatile long jitterMs;
+        private volatile long bandwidth;
+        private volatile double errorRate;
+        private volatile int errorCode = 503;
+        // time at which the bandwidth cap lets the next byte through.
+        private long nextFreeNanos;
+
+        /**
+         * Parses faults given as "name=value,name=value".
+         */
+        static Map<String, String> parse(String faults) {
+            Map<String, String> parameters = new LinkedHashMap<>();
+            for (String entry : faults.split(",")) {
+                int equals = entry.indexOf('=');
+                if (equals > 0) {
+                    parameters.put(entry.substring(0, equals).trim(), entry.substring(equals + 1).trim());
+                }
+            }
+            return parameters;
+        }
+
+        /**
+         * Sets the given parameters; the others are left as they are.
+         */
+        void set(Map<String, String> parameters) {
+            for (Map.Entry<String, String> parameter : parameters.entrySet()) {
+                String value = parameter.getValue();
+                switch (parameter.getKey()) {
+                    case "latencyMs":
+                        latencyMs = Long.parseLong(value);
+                        break;
+                    case "jitterMs":
+                        jitterMs = Long.parseLong(value);
+                        break;
+                    case "bandwidth":
+                        bandwidth = Long.parseLong(value);
+                        break;
+                    case "errorRate":
+                        errorRate = Double.parseDouble(value);
+                        break;
+                    case "errorCode":
+                        errorCode = Integer.parseInt(value);
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown fault: " + parameter.getKey());
+                }
+            }
+        }
+
+        String describe() {
+            return String.format("latencyMs=%d;jitterMs=%d;bandwidth=%d;errorRate=%.3f;errorCode=%d",
+                    latencyMs, jitterMs, bandwidth, errorRate, errorCode);
+        }
+
+        private void delay() throws InterruptedException {
+            long millis = latencyMs + (jitterMs > 0 ? ThreadLocalRandom.current().nextLong(jitterMs + 1) : 0);
+            if (millis > 0) {
+                TimeUnit.MILLISECONDS.sleep(millis);
+            }
+        }
+
+        private boolean fail() {
+            return errorRate > 0 && ThreadLocalRandom.current().nextDouble() < errorRate;
+        }
+
+        // Waits until the bandwidth cap lets the given number of bytes through.
+        private void pace(long bytes) {
+            long rate = bandwidth;
+            if (rate <= 0 || bytes <= 0) {
+                return;
+            }
+            long until;
+            synchronized (this) {
+                long now = System.nanoTime();
+                nextFreeNanos = Math.max(now, nextFreeNanos) + bytes * 1_000_000_000L / rate;
+                until = nextFreeNanos;
+            }
+            long wait = until - System.nanoTime();
+            if (wait > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(wait);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+    }
+
+    /**
+     * Call is a request to the emulator, or one of the requests of a batch.
+     */
+    private static final class Call {
+        private final String method;
+        private final String path;
+        // API the request is sent to (one of APIS), and the path that follows it.
+        private final String api;
+        private final String rest;
+        private final Map<String, String> query = new LinkedHashMap<>();
+        private final Map<String, String> headers;
+        private final byte[] body;
+
+        private Call(String method, String path, String rawQuery, Map<String, String> headers, byte[] body) {
+            this.method = method;
+            this.path = path;
+            this.headers = headers;
+            this.body = body;
+            String api = JSON_API;
+            int start = -1;
+            for (String candidate : APIS) {
+                start = path.indexOf(candidate);
+                if (start >= 0) {
+                    api = candidate;
+                    break;
+                }
+            }
+            this.rest = start >= 0 ? path.substring(Math.min(path.length(), start + api.length())) : path;
+            // the client puts the upload and download prefixes before the path of its host, e.g.
+            // '/upload/us-central1/storage/v1/' for a BOLT_URL resolved to '.../us-central1'.
+            if (api.equals(JSON_API) && path.startsWith("/upload/")) {
+                api = UPLOAD;
+            } else if (api.equals(JSON_API) && path.startsWith("/download/")) {
+                api = DOWNLOAD;
+            }
+            this.api = api;
+            if (rawQuery != null) {
+                for (String parameter : rawQuery.split("&")) {
+                    int equals = parameter.indexOf('=');
+                    if (equals > 0) {
+                        query.put(URLDecoder.decode(parameter.substring(0, equals), UTF_8),
+                                URLDecoder.decode(parameter.substring(equals + 1), UTF_8));
+                    }
+                }
+            }
+        }
+
+        // Parses a request embedded in a batch: request line, headers, blank line and body.
+        private static Call embedded(byte[] content) {
+            String text = new String(content, StandardCharsets.ISO_8859_1);
+            int headersEnd = text.indexOf("\r\n\r\n");
+            String head = headersEnd >= 0 ? text.substring(0, headersEnd) : text;
+            byte[] body = new byte[0];
+            if (headersEnd >= 0 && headersEnd + 4 < content.length) {
+                body = Arrays.copyOfRange(content, headersEnd + 4, content.length);
+            }
+            String[] lines = head.split("\r\n");
+            String[] requestLine = lines[0].split(" ");
+            String target = requestLine[1].replaceFirst("^https?://[^/]+", "");
+            int question = target.indexOf('?');
+            Map<String, String> headers = new LinkedHashMap<>();
+            for (int i = 1; i < lines.length; i++) {
+                int colon = lines[i].indexOf(':');
+                if (colon > 0) {
+                    headers.put(lines[i].substring(0, colon).trim().toLowerCase(Locale.ROOT),
+                            lines[i].substring(colon + 1).trim());
+                }
+            }
+            return new Call(requestLine[0], question >= 0 ? target.substring(0, question) : target,
+                    question >= 0 ? target.substring(question + 1) : null, headers, body);
+        }
+
+        // Decoded path segments after the API prefix, e.g. [b, bucket, o, dir/object].
+        private List<String> segments() {
+            List<String> segments = new ArrayList<>();
+            for (String segment : rest.split("/")) {
+                if (!segment.isEmpty()) {
+                    segments.add(decodePath(segment));
+                }
+            }
+            return segments;
+        }
+    }
+
+    /**
+     * Reply is the status, headers and body of a response.
+     */
+    private static final class Reply {
+        private int status;
+        private final Map<String, String> headers = new LinkedHashMap<>();
+        private byte[] body = new byte[0];
+        private int offset;
+        private int length;
+
+        private Reply(int status) {
+            this.status = status;
+        }
+
+        private Reply body(byte[] body, int offset, int length) {
+            this.body = body;
+            this.offset = offset;
+            this.length = length;
+            return this;
+        }
+    }
+
+    /**
+     * Part is a part of a multipart/related (multipart upload) or multipart/mixed (batch) body.
+     */
+    private static final class Part {
+        private final Map<String, String> headers;
+        private final byte[] content;
+
+        private Part(Map<String, String> headers, byte[] content) {
+            this.headers = headers;
+            this.content = content;
+        }
+
+        private static List<Part> parse(byte[] body, String boundary) {
+            byte[] delimiter = ("--" + boundary).getBytes(UTF_8);
+            List<Part> parts = new ArrayList<>();
+            int start = indexOf(body, delimiter, 0);
+            while (start >= 0) {
+                int partStart = start + delimiter.length;
+                if (partStart + 1 < body.length && body[partStart] == '-' && body[partStart + 1] == '-') {
+                    break;
+                }
+                partStart = skipLineBreak(body, partStart);
+                int end = indexOf(body, delimiter, partStart);
+                if (end < 0) {
+                    break;
+                }
+                // the line break before the delimiter belongs to the delimiter.
+                int partEnd = end;
+                if (partEnd >= 2 && body[partEnd - 2] == '\r' && body[partEnd - 1] == '\n') {
+                    partEnd -= 2;
+                } else if (partEnd >= 1 && body[partEnd - 1] == '\n') {
+                    partEnd -= 1;
+                }
+                parts.add(part(body, partStart, partEnd));
+                start = end;
+            }
+            return parts;
+        }
+
+        private static Part part(byte[] body, int start, int end) {
+            Map<String, String> headers = new LinkedHashMap<>();
+            int position = start;
+            while (position < end) {
+                int lineEnd = indexOf(body, new byte[] {'\n'}, position);
+                if (lineEnd < 0 || lineEnd > end) {
+                    lineEnd = end;
+                }
+                String line = new String(body, position, lineEnd - position, StandardCharsets.ISO_8859_1).trim();
+                position = Math.min(end, lineEnd + 1);
+                if (line.isEmpty()) {
+                    break;
+                }
+                int colon = line.indexOf(':');
+                if (colon > 0) {
+                    headers.put(line.substring(0, colon).trim().toLowerCase(Locale.ROOT),
+                            line.substring(colon + 1).trim());
+                }
+            }
+            return new Part(headers, Arrays.copyOfRange(body, position, end));
+        }
+
+        private static int skipLineBreak(byte[] body, int position) {
+            if (position < body.length && body[position] == '\r') {
+                position++;
+            }
+            if (position < body.length && body[position] == '\n') {
+                position++;
+            }
+            return position;
+        }
+
+        private static int indexOf(byte[] data, byte[] pattern, int from) {
+            outer:
+            for (int i = from; i <= data.length - pattern.length; i++) {
+                for (int j = 0; j < pattern.length; j++) {
+                    if (data[i + j] != pattern[j]) {
+                        continue outer;
+                    }
+                }
+                return i;
+            }
+            return -1;
+        }
+    }
+
+    /**
+     * Upload is a resumable upload session: the object's metadata and the bytes received so far.
+     */
+    private static final class Upload {
+        private final String bucket;
+        private final JsonObject metadata;
+        private final ByteArrayOutputStream data = new ByteArrayOutputStream();
+
+        private Upload(String bucket, JsonObject metadata) {
+            this.bucket = bucket;
+            this.metadata = metadata;
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package com.projectn.bolt;
+
+import com.google.api.client.http.HttpTransport;
+import com.google.api.client.http.javanet.NetHttpTransport;
+import com.google.cloud.NoCredentials;
+import com.google.cloud.http.HttpTransportOptions;
+import com.google.cloud.storage.Storage;
+import com.google.cloud.storage.StorageOptions;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ClientBenchmark measures the cost of obtaining a Storage service object: building one per request, as the
+ * handlers originally did, against reusing the one cached by StorageClients. Clients are built with no
+ * credentials and a fixed project id, so no credentials or metadata server lookups take place and nothing is
+ * sent over the network.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ClientBenchmark {
+
+    private static final String HOST = "http://localhost:9";
+
+    private HttpTransport transport;
+
+    @Setup
+    public void setup() {
+        transport = new NetHttpTransport();
+        StorageClients.bolt(HOST);
+    }
+
+    @Benchmark
+    public Storage buildClient() {
+        return StorageOptions.newBuilder()
+                .setProjectId("bench")
+                .setCredentials(NoCredentials.getInstance())
+                .setHost(HOST)
+                .build()
+                .getService();
+    }
+
+    @Benchmark
+    public Storage buildClientSharedTransport() {
+        HttpTransportOptions transportOptions = HttpTransportOptions.newBuilder()
+                .setHttpTransportFactory(() -> transport)
+                .build();
+        return StorageOptions.newBuilder()
+                .setProjectId("bench")
+                .setCredentials(NoCredentials.getInstance())
+                .setHost(HOST)
+                .setTransportOptions(transportOptions)
+                .build()
+                .getService();
+    }
+
+    @Benchmark
+    public Storage acquireCached() {
+        return StorageClients.bolt(HOST);
+    }
+}
@@ -0,0 +1,225 @@
+package com.projectn.bolt;
+
+import com.google.cloud.ReadChannel;
+import com.google.cloud.RestorableState;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.xml.bind.DatatypeConverter;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * DigestBenchmark measures the MD5 (and gunzip + MD5, sequential and parallel BGZF) paths used to download and validate objects, over
+ * in-memory objects of several sizes and compression ratios, so no endpoint is needed.
+ *
+ * 'content' selects how compressible the object is: random (ratio ~1), text (ratio ~4) or zeros (ratio ~1000).
+ * Throughput in bytes per second is the object size divided by the reported time per operation.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class DigestBenchmark {
+
+    @Param({"65536", "1048576", "16777216"})
+    int size;
+
+    @Param({"random", "text", "zeros"})
+    String content;
+
+    private byte[] object;
+    private byte[] gzipped;
+    private byte[] bgzipped;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        object = content(content, size);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (GZIPOutputStream gzip = new GZIPOutputStream(out)) {
+            gzip.write(object);
+        }
+        gzipped = out.toByteArray();
+        bgzipped = bgzip(object);
+    }
+
+    @Benchmark
+    public String md5Stream() throws IOException {
+        return ObjectDigests.md5(new ByteArrayInputStream(object), false);
+    }
+
+    @Benchmark
+    public String md5Channel() throws IOException {
+        return ObjectDigests.md5(new ByteArrayReadChannel(object), false);
+    }
+
+    @Benchmark
+    public String md5GunzipStream() throws IOException {
+        return ObjectDigests.md5(new ByteArrayInputStream(gzipped), true);
+    }
+
+    @Benchmark
+    public String md5GunzipChannel() throws IOException {
+        return ObjectDigests.md5(new ByteArrayReadChannel(gzipped), true);
+    }
+
+    /**
+     * The object compressed as BGZF members, which ParallelGunzip inflates in parallel.
+     */
+    @Benchmark
+    public String md5GunzipBgzfStream() throws IOException {
+        return ObjectDigests.md5(new ByteArrayInputStream(bgzipped), true);
+    }
+
+    /**
+     * Baseline: the object is held in memory and decompressed through a 1 KiB buffer into a second
+     * in-memory copy before being hashed, as App.getObject does.
+     */
+    @Benchmark
+    public String md5GunzipInMemory() throws Exception {
+        MessageDigest md = MessageDigest.getInstance("MD5");
+        GZIPInputStream gis = new GZIPInputStream(new ByteArrayInputStream(gzipped));
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1024];
+        int len;
+        while ((len = gis.read(buffer)) > 0) {
+            output.write(buffer, 0, len);
+        }
+        md.update(output.toByteArray());
+        return DatatypeConverter.printHexBinary(md.digest()).toUpperCase();
+    }
+
+    static byte[] content(String kind, int size) {
+        byte[] data = new byte[size];
+        Random random = new Random(42);
+        switch (kind) {
+            case "random":
+                random.nextBytes(data);
+                break;
+            case "text":
+                // log-like lines drawn from a small vocabulary.
+                String[] words = {"GET", "PUT", "bucket", "object", "200", "404", "bolt", "gs", "latency",
+                        "bytes", "2021-01-15T10:00:00Z", "us-central1", "md5", "ok"};
+                StringBuilder text = new StringBuilder(size + 64);
+                while (text.length() < size) {
+                    text.append(words[random.nextInt(words.length)])
+                            .append(random.nextInt(8) == 0 ? '\n' : ' ');
+                }
+                System.arraycopy(text.toString().getBytes(StandardCharsets.US_ASCII), 0, data, 0, size);
+                break;
+            case "zeros":
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown content: " + kind);
+        }
+        return data;
+    }
+
+    /**
+     * Compresses the data as bgzip does: gzip members of up to 65280 input bytes, each carrying its compressed
+     * size in a BC extra subfield, followed by an empty end-of-file member.
+     */
+    static byte[] bgzip(byte[] data) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        byte[] compressed = new byte[65536];
+        int offset = 0;
+        while (offset < data.length) {
+            int length = Math.min(65280, data.length - offset);
+            deflater.reset();
+            deflater.setInput(data, offset, length);
+            deflater.finish();
+            int compressedLength = 0;
+            while (!deflater.finished()) {
+                compressedLength += deflater.deflate(compressed, compressedLength,
+                        compressed.length - compressedLength);
+            }
+            CRC32 crc = new CRC32();
+            crc.update(data, offset, length);
+            ByteBuffer member = ByteBuffer.allocate(18 + compressedLength + 8).order(ByteOrder.LITTLE_ENDIAN);
+            member.put(new byte[] {0x1f, (byte) 0x8b, 8, 4, 0, 0, 0, 0, 0, (byte) 0xff, 6, 0, 'B', 'C', 2, 0});
+            member.putShort((short) (18 + compressedLength + 8 - 1));
+            member.put(compressed, 0, compressedLength);
+            member.putInt((int) crc.getValue());
+            member.putInt(length);
+            out.write(member.array());
+            offset += length;
+        }
+        deflater.end();
+        // end-of-file marker
+        out.write(new byte[] {0x1f, (byte) 0x8b, 8, 4, 0, 0, 0, 0, 0, (byte) 0xff, 6, 0, 'B', 'C', 2, 0, 0x1b, 0,
+                3, 0, 0, 0, 0, 0, 0, 0, 0, 0});
+        return out.toByteArray();
+    }
+
+    /**
+     * ByteArrayReadChannel is a ReadChannel over an in-memory object, standing in for a Storage reader.
+     */
+    static final class ByteArrayReadChannel implements ReadChannel {
+        private final byte[] data;
+        private int position;
+        private boolean open = true;
+
+        ByteArrayReadChannel(byte[] data) {
+            this.data = data;
+        }
+
+        @Override
+        public int read(ByteBuffer dst) {
+            if (position >= data.length) {
+                return -1;
+            }
+            int len = Math.min(dst.remaining(), data.length - position);
+            dst.put(data, position, len);
+            position += len;
+            return len;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return open;
+        }
+
+        @Override
+        public void close() {
+            open = false;
+        }
+
+        @Override
+        public void seek(long position) {
+            this.position = (int) position;
+        }
+
+        @Override
+        public void setChunkSize(int chunkSize) {
+        }
+
+        @Override
+        public RestorableState<ReadChannel> capture() {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
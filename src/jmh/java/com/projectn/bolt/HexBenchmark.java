@@ -0,0 +1,48 @@
+package com.projectn.bolt;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.xml.bind.DatatypeConverter;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * HexBenchmark measures the hex encoding of MD5 digests, done once per object.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class HexBenchmark {
+
+    private final byte[] digest = new byte[16];
+
+    @Setup
+    public void setup() {
+        new Random(42).nextBytes(digest);
+    }
+
+    @Benchmark
+    public String hex() {
+        return ObjectDigests.hex(digest);
+    }
+
+    /**
+     * Baseline: JAXB's hex encoding, upper cased again as the handlers originally did.
+     */
+    @Benchmark
+    public String printHexBinary() {
+        return DatatypeConverter.printHexBinary(digest).toUpperCase();
+    }
+}
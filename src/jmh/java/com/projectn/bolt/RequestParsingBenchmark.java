@@ -0,0 +1,74 @@
+package com.projectn.bolt;
+
+import com.google.cloud.storage.Storage.BlobField;
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.StringReader;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * RequestParsingBenchmark measures the request parsing done at the start of every request (BoltGSOpsClient's
+ * parseJson and parseParams), for a single object request and for a bulk request of 1000 keys.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class RequestParsingBenchmark {
+
+    private static final Gson gson = new Gson();
+
+    private String downloadRequest;
+    private String keysRequest;
+    private JsonElement fields;
+
+    @Setup
+    public void setup() {
+        downloadRequest = "{\"requestType\": \"download_object\", \"sdkType\": \"BOLT\", \"bucket\": \"bench-bucket\", " +
+                "\"key\": \"logs/2021/01/15/part-00042.json.gz\", \"chunkSize\": 16777216, \"concurrency\": 4}";
+
+        JsonArray keys = new JsonArray();
+        for (int i = 0; i < 1000; i++) {
+            keys.add("logs/2021/01/15/part-" + String.format("%05d", i) + ".json.gz");
+        }
+        JsonObject request = new JsonObject();
+        request.addProperty("requestType", "get_object_md");
+        request.addProperty("sdkType", "BOLT");
+        request.addProperty("bucket", "bench-bucket");
+        request.add("keys", keys);
+        keysRequest = gson.toJson(request);
+
+        fields = gson.fromJson("[\"size\", \"etag\", \"md5Hash\", \"generation\", \"updated\"]", JsonElement.class);
+    }
+
+    @Benchmark
+    public BoltGSOpsClient.Params parseDownloadRequest() {
+        return BoltGSOpsClient.parseParams(BoltGSOpsClient.parseJson(new StringReader(downloadRequest)));
+    }
+
+    @Benchmark
+    public BoltGSOpsClient.Params parseKeysRequest() {
+        return BoltGSOpsClient.parseParams(BoltGSOpsClient.parseJson(new StringReader(keysRequest)));
+    }
+
+    @Benchmark
+    public List<BlobField> parseFields() {
+        return MetadataFields.parseBlobFields(fields);
+    }
+}
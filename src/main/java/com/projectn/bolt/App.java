@@ -1,88 +1,380 @@
 package com.projectn.bolt;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
-import java.util.zip.GZIPInputStream;
-
-import javax.xml.bind.DatatypeConverter;
+import java.util.concurrent.atomic.AtomicLong;
 
+import com.google.cloud.ReadChannel;
 import com.google.cloud.storage.*;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
 
-import okhttp3.OkHttpClient;
-import okhttp3.Request;
-import okhttp3.Response;
-
+/**
+ * App is a load generator that sends the same mix of requests to GS and Bolt side by side, and reports
+ * throughput, latency percentiles and error rates per endpoint.
+ *
+ * Usage:
+ *   java -cp <classpath> com.projectn.bolt.App --bucket <bucket> [options]
+ *
+ * Options:
+ *   --bucket <bucket>        bucket to send requests to (required)
+ *   --prefix <prefix>        objects read by GET/HEAD are listed under this prefix (default: whole bucket)
+ *   --max-keys <n>           number of objects listed to read from (default 1000)
+ *   --sdk <GS,BOLT>          endpoints to compare (default GS,BOLT)
+ *   --bolt-url <url>         Bolt service url (default: resolved from the 'BOLT_URL' environment variable)
+ *   --mix <op=weight,...>    operation mix, of GET, HEAD, LIST and PUT (default GET=100)
+ *   --put-size <bytes>       size of the objects written by PUT, under '<prefix>loadgen/' (default 65536)
+ *   --concurrency <n>        number of requests in flight (default 16)
+ *   --duration <seconds>     length of the measured run (default 30)
+ *   --warmup <seconds>       requests sent before measuring, e.g. to warm up connections (default 5)
+ *   --output <text|json>     report format (default text)
+ *
+ * Requests alternate between the endpoints, so both see the same load at the same time.
+ */
 public class App {
-    // Indicates if source bucket is cleaned post crunch.
-    enum BucketClean {
-        // bucket is cleaned post crunch
-        ON,
-        // bucket is not cleaned post crunch
-        OFF
+
+    // Operations sent by the load generator.
+    enum Operation {
+        // read an object (all of its data)
+        GET,
+        // read an object's metadata
+        HEAD,
+        // list one page of objects under the prefix
+        LIST,
+        // write an object of 'put-size' bytes
+        PUT
     }
 
-    private static String getObject(Storage storage, String bucketName, String objectName) throws IOException, NoSuchAlgorithmException{
-        Blob blob = storage.get(BlobId.of(bucketName, objectName));
-        byte[] content = blob.getContent();
-        // Parse the MD5 of the returned object
-        MessageDigest md = MessageDigest.getInstance("MD5");
-        String md5;
-
-        // If Object is gzip encoded, compute MD5 on the decompressed object.
-        String encoding = blob.getContentEncoding();
-        if ((encoding != null && encoding.equalsIgnoreCase("gzip")) ||
-                objectName.endsWith(".gz")) {
-
-            // MD5 of the object after gzip decompression.
-            ByteArrayInputStream bis = new ByteArrayInputStream(content);
-            GZIPInputStream gis = new GZIPInputStream(bis);
-            ByteArrayOutputStream output = new ByteArrayOutputStream();
-            byte[] buffer = new byte[1024];
-            int len;
+    private static final int PUT_KEYS = 16;
+    private static final Gson gson = new GsonBuilder().setPrettyPrinting().create();
 
-            while ((len = gis.read(buffer)) > 0) {
-                output.write(buffer, 0, len);
-            }
+    private final String bucketName;
+    private final String prefix;
+    private final int maxKeys;
+    private final List<BoltGSOpsClient.SdkType> sdkTypes;
+    private final String boltUrl;
+    private final Map<Operation, Integer> mix;
+    private final int putSize;
+    private final int concurrency;
+    private final int durationSeconds;
+    private final int warmupSeconds;
+    private final boolean json;
 
-            md.update(output.toByteArray());
-            md5 = DatatypeConverter.printHexBinary(md.digest()).toUpperCase();
-            output.close();
-            gis.close();
-        } else {
-            md.update(content);
-            md5 = DatatypeConverter.printHexBinary(md.digest()).toUpperCase();
+    private final Map<BoltGSOpsClient.SdkType, Storage> storages = new LinkedHashMap<>();
+    private final AtomicLong sequence = new AtomicLong();
+    private List<String> keys = new ArrayList<>();
+    private byte[] putData;
+    // Stats of the measured run, per endpoint and operation. null during warmup.
+    private volatile Map<String, Stats> stats;
+
+    private App(Map<String, String> options) {
+        bucketName = options.get("bucket");
+        if (bucketName == null) {
+            throw new IllegalArgumentException("--bucket is required");
+        }
+        prefix = options.getOrDefault("prefix", "");
+        maxKeys = Integer.parseInt(options.getOrDefault("max-keys", "1000"));
+        sdkTypes = new ArrayList<>();
+        for (String sdkType : options.getOrDefault("sdk", "GS,BOLT").split(",")) {
+            sdkTypes.add(BoltGSOpsClient.SdkType.valueOf(sdkType.trim().toUpperCase()));
         }
-        return md5;
+        boltUrl = options.get("bolt-url");
+        mix = parseMix(options.getOrDefault("mix", "GET=100"));
+        putSize = Integer.parseInt(options.getOrDefault("put-size", "65536"));
+        concurrency = Integer.parseInt(options.getOrDefault("concurrency", "16"));
+        durationSeconds = Integer.parseInt(options.getOrDefault("duration", "30"));
+        warmupSeconds = Integer.parseInt(options.getOrDefault("warmup", "5"));
+        json = options.getOrDefault("output", "text").equalsIgnoreCase("json");
     }
 
-    public static void main(String[] args){
-        String bucketName = "bolt-test-gs-code";
-        String objectName = "file_1.txt";
-        
+    public static void main(String[] args) {
+        App app;
         try {
-            Storage gsStorage = StorageOptions.getDefaultInstance().getService();
-            String gsMD5Output = getObject(gsStorage, bucketName, objectName);
-            System.out.println("From GCS "+gsMD5Output);
-        } catch (NoSuchAlgorithmException e) {
-            e.printStackTrace();
-        } catch (IOException e) {
-            e.printStackTrace();
+            app = new App(parseArgs(args));
+        } catch (IllegalArgumentException e) {
+            System.err.println("ErrorMessage: " + e.getMessage());
+            System.err.println("Usage: App --bucket <bucket> [--prefix <prefix>] [--max-keys <n>] [--sdk GS,BOLT] " +
+                    "[--bolt-url <url>] [--mix GET=80,HEAD=15,LIST=5,PUT=0] [--put-size <bytes>] " +
+                    "[--concurrency <n>] [--duration <seconds>] [--warmup <seconds>] [--output text|json]");
+            System.exit(2);
+            return;
         }
 
-        String boltMD5Output = "";            
         try {
-            String boltUrl = System.getenv("BOLT_URL");
-            Storage boltStorage = StorageOptions.newBuilder().setHost(boltUrl).build().getService();
-            System.out.println(boltUrl);
-            boltMD5Output = getObject(boltStorage, bucketName, objectName);
-        } catch (NoSuchAlgorithmException | IOException e) {
-            e.printStackTrace();
-        }
-        System.out.println("From Bolt "+boltMD5Output);
-        
+            app.run();
+        } catch (Exception e) {
+            System.err.println("ErrorMessage: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    private static Map<String, String> parseArgs(String[] args) {
+        Map<String, String> options = new LinkedHashMap<>();
+        for (int i = 0; i < args.length; i++) {
+            if (!args[i].startsWith("--") || i + 1 >= args.length) {
+                throw new IllegalArgumentException("Invalid argument: " + args[i]);
+            }
+            options.put(args[i].substring(2), args[++i]);
+        }
+        return options;
+    }
+
+    private static Map<Operation, Integer> parseMix(String mix) {
+        Map<Operation, Integer> weights = new LinkedHashMap<>();
+        for (String entry : mix.split(",")) {
+            String[] parts = entry.split("=");
+            if (parts.length != 2) {
+                throw new IllegalArgumentException("Invalid mix entry: " + entry);
+            }
+            int weight = Integer.parseInt(parts[1].trim());
+            if (weight > 0) {
+                weights.put(Operation.valueOf(parts[0].trim().toUpperCase()), weight);
+            }
+        }
+        if (weights.isEmpty()) {
+            throw new IllegalArgumentException("Empty operation mix: " + mix);
+        }
+        return weights;
+    }
+
+    private void run() throws IOException, InterruptedException {
+        // Clients without retries or circuit breakers, so that each request measures its endpoint.
+        for (BoltGSOpsClient.SdkType sdkType : sdkTypes) {
+            storages.put(sdkType, StorageClients.unguarded(sdkType, sdkType == BoltGSOpsClient.SdkType.BOLT ?
+                    (boltUrl != null ? boltUrl : EndpointResolver.resolve().boltUrl()) : null));
+        }
+
+        // Objects read by GET/HEAD, listed from the first endpoint.
+        if (mix.containsKey(Operation.GET) || mix.containsKey(Operation.HEAD)) {
+            KeyCursor cursor = KeyCursor.forPrefix(storages.get(sdkTypes.get(0)), bucketName, prefix,
+                    Math.min(maxKeys, KeyCursor.DEFAULT_PAGE_SIZE), null);
+            KeyCursor.Entry entry;
+            while (keys.size() < maxKeys && (entry = cursor.next()) != null) {
+                keys.add(entry.key);
+            }
+            if (keys.isEmpty()) {
+                throw new IllegalArgumentException("No objects found in " + bucketName + "/" + prefix);
+            }
+        }
+        putData = new byte[putSize];
+        ThreadLocalRandom.current().nextBytes(putData);
+
+        long start = System.nanoTime();
+        long measureStart = start + TimeUnit.SECONDS.toNanos(warmupSeconds);
+        long deadline = measureStart + TimeUnit.SECONDS.toNanos(durationSeconds);
+
+        // Each worker keeps one request in flight until the deadline.
+        ExecutorService executor = Executors.newFixedThreadPool(concurrency);
+        for (int i = 0; i < concurrency; i++) {
+            executor.submit(() -> work(deadline));
+        }
+        TimeUnit.NANOSECONDS.sleep(Math.max(0, measureStart - System.nanoTime()));
+        Map<String, Stats> measured = new LinkedHashMap<>();
+        for (Operation operation : mix.keySet()) {
+            for (BoltGSOpsClient.SdkType sdkType : sdkTypes) {
+                measured.put(statsKey(sdkType, operation), new Stats(sdkType, operation));
+            }
+        }
+        stats = measured;
+        executor.shutdown();
+        executor.awaitTermination(durationSeconds + 60L, TimeUnit.SECONDS);
+        double seconds = (System.nanoTime() - measureStart) / 1e9;
+
+        if (json) {
+            System.out.println(gson.toJson(report(measured, seconds)));
+        } else {
+            print(measured, seconds);
+        }
+    }
+
+    private void work(long deadline) {
+        int totalWeight = mix.values().stream().mapToInt(Integer::intValue).sum();
+        while (System.nanoTime() < deadline) {
+            BoltGSOpsClient.SdkType sdkType = sdkTypes.get((int) (sequence.getAndIncrement() % sdkTypes.size()));
+            Operation operation = pick(totalWeight);
+            Storage storage = storages.get(sdkType);
+
+            long start = System.nanoTime();
+            long bytes = 0;
+            boolean failed = false;
+            try {
+                bytes = execute(storage, operation);
+            } catch (Exception e) {
+                failed = true;
+            }
+            long nanos = System.nanoTime() - start;
+
+            Map<String, Stats> current = stats;
+            if (current != null) {
+                current.get(statsKey(sdkType, operation)).record(nanos, bytes, failed);
+            }
+        }
+    }
+
+    private Operation pick(int totalWeight) {
+        int value = ThreadLocalRandom.current().nextInt(totalWeight);
+        for (Map.Entry<Operation, Integer> entry : mix.entrySet()) {
+            value -= entry.getValue();
+            if (value < 0) {
+                return entry.getKey();
+            }
+        }
+        throw new IllegalStateException();
+    }
+
+    /**
+     * Sends one request and returns the number of bytes transferred.
+     */
+    private long execute(Storage storage, Operation operation) throws IOException {
+        switch (operation) {
+            case GET:
+                return read(storage, BlobId.of(bucketName, randomKey()));
+            case HEAD: {
+                Blob blob = storage.get(BlobId.of(bucketName, randomKey()));
+                if (blob == null) {
+                    throw new StorageException(404, "Object not found");
+                }
+                return 0;
+            }
+            case LIST:
+                storage.list(bucketName, Storage.BlobListOption.prefix(prefix), Storage.BlobListOption.pageSize(100))
+                        .getValues().iterator().hasNext();
+                return 0;
+            case PUT: {
+                String key = prefix + "loadgen/" + ThreadLocalRandom.current().nextInt(PUT_KEYS);
+                storage.create(BlobInfo.newBuilder(bucketName, key).build(), putData);
+                return putData.length;
+            }
+            default:
+                throw new IllegalArgumentException("Unsupported operation: " + operation);
+        }
+    }
+
+    private static long read(Storage storage, BlobId blobId) throws IOException {
+        long bytes = 0;
+        ByteBuffer buffer = ByteBuffer.allocate(ObjectDigests.BUFFER_SIZE);
+        try (ReadChannel reader = storage.reader(blobId)) {
+            reader.setChunkSize(ObjectDigests.READ_CHUNK_SIZE);
+            int len;
+            while ((len = reader.read(buffer)) >= 0) {
+                bytes += len;
+                buffer.clear();
+            }
+        }
+        return bytes;
+    }
+
+    private String randomKey() {
+        return keys.get(ThreadLocalRandom.current().nextInt(keys.size()));
+    }
+
+    private static String statsKey(BoltGSOpsClient.SdkType sdkType, Operation operation) {
+        return operation + " " + sdkType;
+    }
+
+    private void print(Map<String, Stats> measured, double seconds) {
+        System.out.println(String.format("bucket=%s prefix=%s keys=%d concurrency=%d duration=%.1fs mix=%s",
+                bucketName, prefix, keys.size(), concurrency, seconds, mix));
+        System.out.println(String.format("%-6s %-5s %10s %10s %10s %10s %10s %10s %8s %10s",
+                "op", "sdk", "requests", "req/s", "p50(ms)", "p99(ms)", "p999(ms)", "max(ms)", "errors", "MBps"));
+        for (Stats stat : measured.values()) {
+            System.out.println(String.format("%-6s %-5s %10d %10.1f %10.3f %10.3f %10.3f %10.3f %7.2f%% %10.3f",
+                    stat.operation, stat.sdkType, stat.requests(), stat.requests() / seconds,
+                    stat.percentileMillis(50), stat.percentileMillis(99), stat.percentileMillis(99.9),
+                    stat.histogram.maxMillis(), stat.errorRate() * 100, stat.histogram.bytes() / seconds / 1e6));
+        }
+
+        // Bolt latency relative to GS, per operation.
+        if (sdkTypes.contains(BoltGSOpsClient.SdkType.GS) && sdkTypes.contains(BoltGSOpsClient.SdkType.BOLT)) {
+            for (Operation operation : mix.keySet()) {
+                Stats gs = measured.get(statsKey(BoltGSOpsClient.SdkType.GS, operation));
+                Stats bolt = measured.get(statsKey(BoltGSOpsClient.SdkType.BOLT, operation));
+                if (gs.histogram.count() > 0 && bolt.histogram.count() > 0) {
+                    System.out.println(String.format("%s BOLT/GS: p50=%.2fx p99=%.2fx p999=%.2fx", operation,
+                            bolt.percentileMillis(50) / gs.percentileMillis(50),
+                            bolt.percentileMillis(99) / gs.percentileMillis(99),
+                            bolt.percentileMillis(99.9) / gs.percentileMillis(99.9)));
+                }
+            }
+        }
+    }
+
+    private JsonObject report(Map<String, Stats> measured, double seconds) {
+        JsonObject config = new JsonObject();
+        config.addProperty("bucket", bucketName);
+        config.addProperty("prefix", prefix);
+        config.addProperty("keys", keys.size());
+        config.addProperty("concurrency", concurrency);
+        config.addProperty("durationSeconds", seconds);
+        config.addProperty("warmupSeconds", warmupSeconds);
+        config.add("mix", gson.toJsonTree(mix));
+
+        JsonArray results = new JsonArray();
+        for (Stats stat : measured.values()) {
+            JsonObject result = new JsonObject();
+            result.addProperty("operation", stat.operation.name());
+            result.addProperty("sdkType", stat.sdkType.name());
+            result.addProperty("requests", stat.requests());
+            result.addProperty("errors", stat.errors.get());
+            result.addProperty("errorRate", stat.errorRate());
+            result.addProperty("requestsPerSecond", stat.requests() / seconds);
+            result.addProperty("p50Ms", stat.percentileMillis(50));
+            result.addProperty("p99Ms", stat.percentileMillis(99));
+            result.addProperty("p999Ms", stat.percentileMillis(99.9));
+            result.addProperty("maxMs", stat.histogram.maxMillis());
+            result.addProperty("bytes", stat.histogram.bytes());
+            results.add(result);
+        }
+
+        JsonObject report = new JsonObject();
+        report.add("config", config);
+        report.add("results", results);
+        return report;
+    }
+
+    /**
+     * Stats are the latencies of the successful requests of one operation to one endpoint, and its error count.
+     */
+    private static final class Stats {
+        private final BoltGSOpsClient.SdkType sdkType;
+        private final Operation operation;
+        private final LatencyHistograms.Histogram histogram = new LatencyHistograms.Histogram();
+        private final AtomicLong errors = new AtomicLong();
+
+        private Stats(BoltGSOpsClient.SdkType sdkType, Operation operation) {
+            this.sdkType = sdkType;
+            this.operation = operation;
+        }
+
+        private void record(long nanos, long bytes, boolean failed) {
+            if (failed) {
+                errors.incrementAndGet();
+            } else {
+                histogram.record(nanos, bytes);
+            }
+        }
+
+        private long requests() {
+            return histogram.count() + errors.get();
+        }
+
+        private double errorRate() {
+            long requests = requests();
+            return requests > 0 ? (double) errors.get() / requests : 0;
+        }
+
+        private double percentileMillis(double percentile) {
+            return histogram.count() > 0 ? histogram.percentileMicros(percentile) / 1e3 : 0;
+        }
     }
 }
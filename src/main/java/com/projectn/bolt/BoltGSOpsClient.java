@@ -1,6 +1,7 @@
 package com.projectn.bolt;
 
 import com.google.api.gax.paging.Page;
+import com.google.cloud.WriteChannel;
 import com.google.cloud.functions.HttpRequest;
 import com.google.cloud.functions.HttpResponse;
 import com.google.cloud.storage.*;
@@ -8,19 +9,21 @@ import com.google.gson.Gson;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonParseException;
-import okhttp3.OkHttpClient;
-import okhttp3.Request;
-import okhttp3.Response;
 
 import java.io.BufferedWriter;
 import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.security.MessageDigest;
-import javax.xml.bind.DatatypeConverter;
+import java.io.InputStream;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
-import java.util.concurrent.TimeUnit;
-import java.util.zip.GZIPInputStream;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.Future;
 
 import static java.nio.charset.StandardCharsets.UTF_8;
 
@@ -38,7 +41,9 @@ public class BoltGSOpsClient {
         GET_OBJECT_MD,
         UPLOAD_OBJECT,
         DOWNLOAD_OBJECT,
-        DELETE_OBJECT
+        DELETE_OBJECT,
+        METRICS,
+        PREFETCH
     }
 
     // endpoints supported
@@ -48,14 +53,20 @@ public class BoltGSOpsClient {
         BOLT
     }
 
-    private Storage storage;
-    private String boltUrl;
     private static final Gson gson = new Gson();
-    private HttpResponse response;
 
-    public BoltGSOpsClient(HttpResponse response) {
-        storage = null;
-        this.response = response;
+    // Number of concurrent storage calls (or batches) made by multi-key requests.
+    static final int DEFAULT_PARALLELISM = 16;
+
+    // Maximum number of calls per batch request accepted by the storage JSON API.
+    private static final int MAX_BATCH_SIZE = 100;
+
+    /**
+     * A BoltGSOpsClient holds no per-request state: everything a request needs is passed along in its own
+     * Context, and the Storage service objects are shared and thread-safe. A single instance therefore serves
+     * any number of concurrent requests.
+     */
+    public BoltGSOpsClient() {
     }
 
     /**
@@ -63,81 +74,137 @@ public class BoltGSOpsClient {
      * uses those parameters to send an Object/Bucket CRUD request to Bolt/GS and returns back an
      * appropriate response.
      * @param request incoming http request
+     * @param response outgoing http response, written by this request only
      * @return result of the requested operation returned by the endpoint (sdkType)
      */
-    public void processEvent(HttpRequest request) throws IOException {
+    public void processEvent(HttpRequest request, HttpResponse response) throws IOException {
 
+        RequestTimer timer = new RequestTimer("UNKNOWN");
+        Resilience.Budget budget = Resilience.begin();
         try {
-            // Parse JSON Request.
-            String bucketName = null;
-            String objectName = null;
-            String value = null;
-            RequestType requestType = null;
-            SdkType sdkType = null;
+            // A request with a raw body (see isRawBody) carries its parameters in the query string and the object
+            // data (upload_object) in the body. So does a GET request, which has no body.
+            boolean rawBody = isRawBody(request);
+            Params params = parseParams(rawBody || "GET".equalsIgnoreCase(request.getMethod()) ?
+                    queryParameters(request) : parseJson(request.getReader()));
+            RequestType requestType = params.requestType;
+            SdkType sdkType = params.sdkType;
+            Double hedgeDelayMs = params.hedgeDelayMs;
 
-            JsonElement requestParsed = gson.fromJson(request.getReader(), JsonElement.class);
-            JsonObject requestJson = null;
+            timer.lap("parse");
+            timer.setOperation(String.valueOf(requestType));
+            timer.setEndpoint(sdkType == SdkType.BOLT ? SdkType.BOLT.name() : SdkType.GS.name());
 
-            if (requestParsed != null && requestParsed.isJsonObject()) {
-                requestJson = requestParsed.getAsJsonObject();
+            // While the circuit breaker of the requested endpoint is open, reads are sent to the other endpoint.
+            if (requestType != null && isRead(requestType) && !params.hedge) {
+                sdkType = Resilience.divert(sdkType, System.getenv("BOLT_URL") != null);
+                timer.setEndpoint(sdkType == SdkType.BOLT ? SdkType.BOLT.name() : SdkType.GS.name());
             }
 
-            if (requestJson != null) {
-                if (requestJson.has("bucket")) {
-                    bucketName = requestJson.get("bucket").getAsString();
-                }
-                if (requestJson.has("requestType")) {
-                    String requestTypeStr = requestJson.get("requestType").getAsString();
-                    requestType = RequestType.valueOf(requestTypeStr.toUpperCase());
-                }
-                if (requestJson.has("sdkType")) {
-                    String sdkTypeStr = requestJson.get("sdkType").getAsString();
-                    sdkType = (sdkTypeStr != null && !sdkTypeStr.isEmpty()) ?
-                            SdkType.valueOf(sdkTypeStr.toUpperCase()) : null;
-                }
-                if (requestJson.has("key")) {
-                    objectName= requestJson.get("key").getAsString();
-                }
-                if (requestJson.has("value")) {
-                    value = requestJson.get("value").getAsString();
-                }
+            // METRICS reports on the requests served by this instance and does not access any endpoint.
+            if (requestType == RequestType.METRICS) {
+                timer = null;
+                metrics(response, params.reset);
+                return;
             }
 
-            boltUrl = System.getenv("BOLT_URL").replace("{region}", region());
+            // Resolve the Bolt service url (cached after the first request) if the request is sent to Bolt.
+            String boltUrl = null;
+            if (sdkType == SdkType.BOLT) {
+                EndpointResolver.Resolution resolution = EndpointResolver.resolve();
+                boltUrl = resolution.boltUrl();
+                response.appendHeader("X-Endpoint-Resolve", resolution.describe());
+            }
+            timer.lap("resolve");
 
-            // create an Google/Bolt Storage service Object depending on the 'sdkType'
-            // If sdkType is not specified, create an Google Storage Service Object.
-            if (sdkType == null || sdkType == SdkType.GS) {
-                storage = StorageOptions.getDefaultInstance().getService();
-            } else if (sdkType == SdkType.BOLT) {
-                storage = StorageOptions.newBuilder().setHost(boltUrl).build().getService();
+            // get the shared Google/Bolt Storage service Object depending on the 'sdkType'
+            // If sdkType is not specified, use the Google Storage Service Object.
+            if (requestType == RequestType.PREFETCH && sdkType != SdkType.BOLT) {
+                throw new IllegalArgumentException("prefetch requires sdkType BOLT");
             }
+            StorageClients.Acquired client = StorageClients.acquire(sdkType, boltUrl);
+            response.appendHeader("X-Storage-Client", client.describe());
+            Storage gsStorage = null;
+            if (params.hedge) {
+                if (params.serve) {
+                    throw new IllegalArgumentException("hedge is not supported with serve");
+                }
+                if (sdkType != SdkType.BOLT) {
+                    throw new IllegalArgumentException("hedge requires sdkType BOLT");
+                }
+                gsStorage = StorageClients.gs();
+                if (hedgeDelayMs == null) {
+                    hedgeDelayMs = HedgedRead.adaptiveDelayMillis(requestType.name());
+                }
+            }
+            Context ctx = new Context(response, timer, sdkType, client.storage(), gsStorage,
+                    hedgeDelayMs != null ? hedgeDelayMs : 0);
+            timer.lap("client");
 
             // Perform a GS / Bolt operation based on the input 'requestType'
             switch (requestType) {
                 case LIST_OBJECTS:
-                    listObjects(bucketName);
+                    listObjects(ctx, params.bucketName, params.prefix, params.delimiter, params.pageSize,
+                            params.pageToken, params.fields != null ?
+                                    MetadataFields.parseBlobFields(params.fields) : Collections.emptyList());
                     break;
                 case LIST_BUCKETS:
-                    listBuckets();
+                    listBuckets(ctx);
                 case GET_BUCKET_MD:
-                    getBucketMetadata(bucketName);
+                    getBucketMetadata(ctx, params.bucketName,
+                            params.fields != null ?
+                                    MetadataFields.parseBucketFields(params.fields) : Collections.emptyList(),
+                            params.revalidate);
                     break;
                 case GET_OBJECT_MD:
-                    getObjectMetadata(bucketName, objectName);
+                    if (params.keys != null) {
+                        getObjectsMetadata(ctx, params.bucketName, params.keys, params.batch, params.parallelism);
+                    } else {
+                        getObjectMetadata(ctx, params.bucketName, params.objectName,
+                                params.fields != null ?
+                                        MetadataFields.parseBlobFields(params.fields) : Collections.emptyList(),
+                                params.revalidate);
+                    }
                     break;
                 case UPLOAD_OBJECT:
-                    uploadObject(bucketName, objectName, value);
+                    if (params.composite) {
+                        uploadObjectComposite(ctx, params.bucketName, params.objectName, rawBody ? request : null,
+                                params.value, params.partSize, params.concurrency);
+                    } else if (rawBody) {
+                        uploadObjectStream(ctx, params.bucketName, params.objectName, request,
+                                params.chunkSize(RangedDownload.DEFAULT_CHUNK_SIZE));
+                    } else {
+                        uploadObject(ctx, params.bucketName, params.objectName, params.value);
+                    }
                     break;
                 case DOWNLOAD_OBJECT:
-                    downloadObject(bucketName, objectName);
+                    if (params.serve) {
+                        serveObject(ctx, request, params.bucketName, params.objectName, params.offset, params.length,
+                                params.chunkSize(ObjectServer.DEFAULT_CHUNK_SIZE));
+                    } else {
+                        downloadObject(ctx, params.bucketName, params.objectName,
+                                params.chunkSize(RangedDownload.DEFAULT_CHUNK_SIZE), params.concurrency);
+                    }
                     break;
                 case DELETE_OBJECT:
-                    deleteObject(bucketName, objectName);
+                    if (params.keys != null) {
+                        deleteObjects(ctx, params.bucketName, params.keys, params.batch, params.parallelism);
+                    } else {
+                        deleteObject(ctx, params.bucketName, params.objectName);
+                    }
+                    break;
+                case PREFETCH:
+                    ctx.timer.addBytes(Prefetcher.prefetch(ctx.storage, params.bucketName, params.prefix,
+                            params.keys, params.parallelism, params.resumeToken, params.timeBudgetMs,
+                            response.getWriter()));
                     break;
                 default:
                     break;
             }
+            timer.lap("operation");
+        } catch (ObjectServer.AbortedException e) {
+            // part of the object has been sent: no error text may follow it, the response is aborted instead.
+            throw e;
         } catch (JsonParseException | IOException e) {
             response.getWriter().write("Error parsing JSON: " + e.getMessage());
         } catch (StorageException e) {
@@ -146,22 +213,289 @@ public class BoltGSOpsClient {
             response.getWriter().write("ErrorMessage: " + e.getMessage());
         } catch (Exception e) {
             response.getWriter().write("ErrorMessage: " + e.getMessage());
+        } finally {
+            if (timer != null) {
+                response.appendHeader("X-Resilience", budget.describe());
+                timer.finish(response);
+            }
+            Resilience.end();
+        }
+    }
+
+    /**
+     * Indicates if a request only reads, i.e. can be served by either endpoint.
+     */
+    private static boolean isRead(RequestType requestType) {
+        switch (requestType) {
+            case LIST_OBJECTS:
+            case LIST_BUCKETS:
+            case GET_BUCKET_MD:
+            case GET_OBJECT_MD:
+            case DOWNLOAD_OBJECT:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Params are the parameters of a request, with their defaults, as parsed by parseParams.
+     */
+    static final class Params {
+        String bucketName;
+        String objectName;
+        String value;
+        // null unless given: serve mode defaults to a smaller chunk size than downloads and uploads.
+        Integer chunkSize;
+        int concurrency = RangedDownload.DEFAULT_CONCURRENCY;
+        String prefix;
+        String delimiter;
+        Long pageSize;
+        String pageToken;
+        JsonElement fields;
+        List<String> keys;
+        boolean batch;
+        int parallelism = DEFAULT_PARALLELISM;
+        RequestType requestType;
+        boolean revalidate;
+        boolean reset;
+        boolean hedge;
+        boolean composite;
+        boolean serve;
+        Long offset;
+        Long length;
+        int partSize = CompositeUpload.DEFAULT_PART_SIZE;
+        Double hedgeDelayMs;
+        String resumeToken;
+        long timeBudgetMs = Prefetcher.DEFAULT_TIME_BUDGET_MS;
+        SdkType sdkType;
+
+        private Params() {
+        }
+
+        int chunkSize(int defaultChunkSize) {
+            return chunkSize != null ? chunkSize : defaultChunkSize;
+        }
+    }
+
+    /**
+     * Parses a JSON request body.
+     * @return the request's JSON object, or null if the body is not a JSON object
+     */
+    static JsonObject parseJson(Reader reader) {
+        JsonElement requestParsed = gson.fromJson(reader, JsonElement.class);
+        return requestParsed != null && requestParsed.isJsonObject() ? requestParsed.getAsJsonObject() : null;
+    }
+
+    /**
+     * Parses the parameters of a request, given as a JSON object (see parseJson and queryParameters).
+     * @param requestJson request parameters, or null
+     * @return parameters, with defaults for those not given
+     */
+    static Params parseParams(JsonObject requestJson) {
+        Params params = new Params();
+        if (requestJson != null) {
+            if (requestJson.has("bucket")) {
+                params.bucketName = requestJson.get("bucket").getAsString();
+            }
+            if (requestJson.has("requestType")) {
+                String requestTypeStr = requestJson.get("requestType").getAsString();
+                params.requestType = RequestType.valueOf(requestTypeStr.toUpperCase());
+            }
+            if (requestJson.has("sdkType")) {
+                String sdkTypeStr = requestJson.get("sdkType").getAsString();
+                params.sdkType = (sdkTypeStr != null && !sdkTypeStr.isEmpty()) ?
+                        SdkType.valueOf(sdkTypeStr.toUpperCase()) : null;
+            }
+            if (requestJson.has("key")) {
+                params.objectName = requestJson.get("key").getAsString();
+            }
+            if (requestJson.has("value")) {
+                params.value = requestJson.get("value").getAsString();
+            }
+            if (requestJson.has("chunkSize")) {
+                params.chunkSize = requestJson.get("chunkSize").getAsInt();
+                if (params.chunkSize < 1) {
+                    throw new IllegalArgumentException("chunkSize must be at least 1");
+                }
+            }
+            if (requestJson.has("concurrency")) {
+                params.concurrency = requestJson.get("concurrency").getAsInt();
+                if (params.concurrency < 1) {
+                    throw new IllegalArgumentException("concurrency must be at least 1");
+                }
+            }
+            if (requestJson.has("prefix")) {
+                params.prefix = requestJson.get("prefix").getAsString();
+            }
+            if (requestJson.has("delimiter")) {
+                params.delimiter = requestJson.get("delimiter").getAsString();
+            }
+            if (requestJson.has("pageSize")) {
+                params.pageSize = requestJson.get("pageSize").getAsLong();
+            }
+            if (requestJson.has("pageToken")) {
+                params.pageToken = requestJson.get("pageToken").getAsString();
+            }
+            if (requestJson.has("fields")) {
+                params.fields = requestJson.get("fields");
+            }
+            if (requestJson.has("keys")) {
+                params.keys = new ArrayList<>();
+                for (JsonElement key : requestJson.getAsJsonArray("keys")) {
+                    params.keys.add(key.getAsString());
+                }
+            }
+            if (requestJson.has("revalidate")) {
+                params.revalidate = requestJson.get("revalidate").getAsBoolean();
+            }
+            if (requestJson.has("hedge")) {
+                params.hedge = requestJson.get("hedge").getAsBoolean();
+            }
+            if (requestJson.has("hedgeDelayMs")) {
+                params.hedgeDelayMs = requestJson.get("hedgeDelayMs").getAsDouble();
+            }
+            if (requestJson.has("reset")) {
+                params.reset = requestJson.get("reset").getAsBoolean();
+            }
+            if (requestJson.has("batch")) {
+                params.batch = requestJson.get("batch").getAsBoolean();
+            }
+            if (requestJson.has("parallelism")) {
+                params.parallelism = requestJson.get("parallelism").getAsInt();
+                if (params.parallelism < 1) {
+                    throw new IllegalArgumentException("parallelism must be at least 1");
+                }
+            }
+            if (requestJson.has("serve")) {
+                params.serve = requestJson.get("serve").getAsBoolean();
+            }
+            if (requestJson.has("offset")) {
+                params.offset = requestJson.get("offset").getAsLong();
+            }
+            if (requestJson.has("length")) {
+                params.length = requestJson.get("length").getAsLong();
+            }
+            if (requestJson.has("composite")) {
+                params.composite = requestJson.get("composite").getAsBoolean();
+            }
+            if (requestJson.has("partSize")) {
+                params.partSize = requestJson.get("partSize").getAsInt();
+                if (params.partSize < 1) {
+                    throw new IllegalArgumentException("partSize must be at least 1");
+                }
+            }
+            if (requestJson.has("resumeToken")) {
+                params.resumeToken = requestJson.get("resumeToken").getAsString();
+            }
+            if (requestJson.has("timeBudgetMs")) {
+                params.timeBudgetMs = requestJson.get("timeBudgetMs").getAsLong();
+            }
+        }
+        return params;
+    }
+
+    /**
+     * Context is everything a single request needs once its parameters are parsed: the response it writes to,
+     * its timer, its endpoint and the shared Storage service objects. It is immutable and never shared between
+     * requests.
+     */
+    private static final class Context {
+        private final HttpResponse response;
+        private final RequestTimer timer;
+        private final SdkType sdkType;
+        private final Storage storage;
+        // Set for hedged reads (see HedgedRead): GS service object, and the delay before reads are sent to it.
+        private final Storage gsStorage;
+        private final double hedgeDelayMs;
+
+        private Context(HttpResponse response, RequestTimer timer, SdkType sdkType, Storage storage,
+                        Storage gsStorage, double hedgeDelayMs) {
+            this.response = response;
+            this.timer = timer;
+            this.sdkType = sdkType;
+            this.storage = storage;
+            this.gsStorage = gsStorage;
+            this.hedgeDelayMs = hedgeDelayMs;
         }
     }
 
     /**
-     * Returns a list of objects from the given bucket in Bolt/GS
+     * Returns the latency histograms (p50/p90/p99) and throughput of the requests served by this function
+     * instance, per operation and endpoint, followed by the cache and hedging counters and the state of the
+     * circuit breakers (see Resilience).
+     * @param reset if true, the histograms are cleared after being returned
+     * @throws IOException
+     */
+    private static void metrics(HttpResponse response, boolean reset) throws IOException {
+        BufferedWriter writer = response.getWriter();
+        LatencyHistograms.write(writer);
+        writer.write("MetadataCache: " + MetadataCache.describe());
+        writer.newLine();
+        writer.write("HedgedRead: " + HedgedRead.describe());
+        writer.newLine();
+        writer.write("ObjectCache: " + ObjectCache.describe());
+        writer.newLine();
+        writer.write("Resilience: " + Resilience.describe());
+        if (reset) {
+            LatencyHistograms.reset();
+        }
+    }
+
+    /**
+     * Returns a list of objects from the given bucket in Bolt/GS.
+     * Only the object names, plus any requested fields, are fetched from the endpoint. The response is
+     * flushed after every page, so that the first objects reach the caller while later pages are listed.
      * @param bucketName bucket name
+     * @param prefix if not null, only objects whose name starts with prefix are listed
+     * @param delimiter if not null, objects are listed as in a directory, with sub directories ('prefixes')
+     *                  listed instead of their objects
+     * @param pageSize if not null, a single page of at most pageSize objects is returned, followed by the
+     *                 token of the next page
+     * @param pageToken if not null, listing continues from this page (NextPageToken of a previous response)
+     * @param fields object fields reported in addition to the object name
      * @throws Exception
      */
-    private void listObjects(String bucketName) throws Exception {
-        Bucket bucket = storage.get(bucketName);
-        Page<Blob> blobs = bucket.list();
+    private void listObjects(Context ctx, String bucketName, String prefix, String delimiter, Long pageSize,
+                             String pageToken, List<Storage.BlobField> fields) throws Exception {
+        List<Storage.BlobListOption> options = new ArrayList<>();
+        options.add(Storage.BlobListOption.fields(MetadataFields.with(fields, Storage.BlobField.NAME)));
+        if (prefix != null) {
+            options.add(Storage.BlobListOption.prefix(prefix));
+        }
+        if (delimiter != null) {
+            options.add(Storage.BlobListOption.delimiter(delimiter));
+        }
+        if (pageSize != null) {
+            options.add(Storage.BlobListOption.pageSize(pageSize));
+        }
+        if (pageToken != null) {
+            options.add(Storage.BlobListOption.pageToken(pageToken));
+        }
 
-        BufferedWriter writer = response.getWriter();
-        for (Blob blob : blobs.iterateAll()) {
-            writer.write(blob.getName());
-            writer.newLine();
+        BufferedWriter writer = ctx.response.getWriter();
+        Page<Blob> blobs = ctx.storage.list(bucketName, options.toArray(new Storage.BlobListOption[0]));
+        while (blobs != null) {
+            for (Blob blob : blobs.getValues()) {
+                writer.write(blob.getName());
+                if (!blob.isDirectory()) {
+                    for (Storage.BlobField field : fields) {
+                        if (field != Storage.BlobField.NAME) {
+                            writer.write(" " + MetadataFields.label(field) + "=" + MetadataFields.value(blob, field));
+                        }
+                    }
+                }
+                writer.newLine();
+            }
+            writer.flush();
+
+            if (pageSize != null) {
+                if (blobs.hasNextPage()) {
+                    writer.write("NextPageToken: " + blobs.getNextPageToken());
+                }
+                break;
+            }
+            blobs = blobs.getNextPage();
         }
     }
 
@@ -169,10 +503,10 @@ public class BoltGSOpsClient {
      * Returns list of buckets
      * @throws Exception
      */
-    private void listBuckets() throws Exception {
-        Page<Bucket> buckets = storage.list();
+    private void listBuckets(Context ctx) throws Exception {
+        Page<Bucket> buckets = ctx.storage.list();
 
-        BufferedWriter writer = response.getWriter();
+        BufferedWriter writer = ctx.response.getWriter();
         for (Bucket bucket : buckets.iterateAll()) {
             writer.write(bucket.getName());
             writer.newLine();
@@ -180,16 +514,43 @@ public class BoltGSOpsClient {
     }
 
     /**
-     * Get Bucket Metadata from Bolt/ GS
+     * Get Bucket Metadata from Bolt/ GS. Metadata is served from the instance's MetadataCache when possible.
      * @param bucketName bucket name
+     * @param fields if not empty, only these fields are retrieved and returned
+     * @param revalidate if true, cached metadata is only used if the bucket's metageneration is unchanged
      * @throws Exception
      */
-    private void getBucketMetadata(String bucketName) throws Exception {
-        Bucket bucket = storage.get(bucketName,
-                Storage.BucketGetOption.fields(
-                        Storage.BucketField.values()));
+    private void getBucketMetadata(Context ctx, String bucketName, List<Storage.BucketField> fields,
+                                   boolean revalidate) throws Exception {
+        String cacheKey = MetadataCache.bucketKey(ctx.sdkType, bucketName) + MetadataFields.key(fields);
+        long epoch = MetadataCache.epoch(cacheKey);
+        Bucket bucket = MetadataCache.get(cacheKey, Bucket.class);
+        if (bucket != null && revalidate) {
+            Bucket current = ctx.storage.get(bucketName,
+                    Storage.BucketGetOption.fields(Storage.BucketField.METAGENERATION));
+            if (current == null || !Objects.equals(current.getMetageneration(), bucket.getMetageneration())) {
+                MetadataCache.revalidated();
+                bucket = null;
+            }
+        }
+        ctx.response.appendHeader("X-Metadata-Cache",
+                (bucket != null ? "hit;" : "miss;") + MetadataCache.describe());
+        if (bucket == null) {
+            bucket = ctx.storage.get(bucketName,
+                    Storage.BucketGetOption.fields(fields.isEmpty() ?
+                            Storage.BucketField.values() :
+                            MetadataFields.with(fields, Storage.BucketField.METAGENERATION)));
+            MetadataCache.put(cacheKey, bucket, epoch);
+        }
 
-        BufferedWriter writer = response.getWriter();
+        BufferedWriter writer = ctx.response.getWriter();
+        if (!fields.isEmpty()) {
+            for (Storage.BucketField field : fields) {
+                writer.write(MetadataFields.label(field) + ": " + MetadataFields.value(bucket, field));
+                writer.newLine();
+            }
+            return;
+        }
         writer.write("BucketName: " + bucket.getName());
         writer.newLine();
         writer.write("Location: " + bucket.getLocation());
@@ -206,12 +567,16 @@ public class BoltGSOpsClient {
      * @param value object data
      * @throws Exception
      */
-    private void uploadObject(String bucketName, String objectName, String value) throws Exception {
+    private void uploadObject(Context ctx, String bucketName, String objectName, String value) throws Exception {
         BlobId blobId = BlobId.of(bucketName, objectName);
         BlobInfo blobInfo = BlobInfo.newBuilder(blobId).setContentType("text/plain").build();
-        Blob blob = storage.create(blobInfo, value.getBytes(UTF_8));
+        byte[] data = value.getBytes(UTF_8);
+        Blob blob = ctx.storage.create(blobInfo, data);
+        ctx.timer.addBytes(data.length);
+        MetadataCache.invalidate(MetadataCache.objectKey(ctx.sdkType, bucketName, objectName));
+        ObjectCache.invalidate(ctx.sdkType, bucketName, objectName);
 
-        BufferedWriter writer = response.getWriter();
+        BufferedWriter writer = ctx.response.getWriter();
         writer.write("ETag: " + blob.getEtag());
         writer.newLine();
         writer.write("MD5: " + blob.getMd5());
@@ -220,61 +585,266 @@ public class BoltGSOpsClient {
     }
 
     /**
-     * Gets the object from Bolt/GS, computes and returns the object's MD5 hash.
-     * If the object is gzip encoded, object is decompressed before computing its MD5.
+     * Uploads an object to Bolt/GS by streaming the body of the http request, chunk by chunk, through a
+     * resumable upload session. Memory use is bounded by chunkSize regardless of object size.
+     * The object's content type and content encoding are taken from the request's headers.
      * @param bucketName bucket name
      * @param objectName object name
+     * @param request http request whose body is the object data
+     * @param chunkSize size of each chunk sent to the endpoint
      * @throws Exception
      */
-    private void downloadObject(String bucketName, String objectName) throws Exception {
-        Blob blob = storage.get(BlobId.of(bucketName, objectName));
-        byte[] content = blob.getContent();
-
-        // Parse the MD5 of the returned object
-        MessageDigest md = MessageDigest.getInstance("MD5");
-        String md5;
+    private void uploadObjectStream(Context ctx, String bucketName, String objectName, HttpRequest request,
+                                    int chunkSize) throws Exception {
+        BlobId blobId = BlobId.of(bucketName, objectName);
+        BlobInfo.Builder blobInfo = BlobInfo.newBuilder(blobId)
+                .setContentType(request.getContentType().orElse("application/octet-stream"));
+        request.getFirstHeader("Content-Encoding").ifPresent(blobInfo::setContentEncoding);
 
-        // If Object is gzip encoded, compute MD5 on the decompressed object.
-        String encoding = blob.getContentEncoding();
-        System.out.println(encoding);
-        if ((encoding != null && encoding.equalsIgnoreCase("gzip")) ||
-                objectName.endsWith(".gz")) {
-
-            // MD5 of the object after gzip decompression.
-            ByteArrayInputStream bis = new ByteArrayInputStream(content);
-            GZIPInputStream gis = new GZIPInputStream(bis);
-            ByteArrayOutputStream output = new ByteArrayOutputStream();
-            byte[] buffer = new byte[1024];
+        long size = 0;
+        byte[] buffer = new byte[ObjectDigests.BUFFER_SIZE];
+        try (WriteChannel channel = ctx.storage.writer(blobInfo.build());
+             InputStream in = request.getInputStream()) {
+            channel.setChunkSize(chunkSize);
             int len;
+            while ((len = in.read(buffer)) >= 0) {
+                ByteBuffer data = ByteBuffer.wrap(buffer, 0, len);
+                while (data.hasRemaining()) {
+                    channel.write(data);
+                }
+                size += len;
+            }
+        }
+        ctx.timer.addBytes(size);
+        MetadataCache.invalidate(MetadataCache.objectKey(ctx.sdkType, bucketName, objectName));
+        ObjectCache.invalidate(ctx.sdkType, bucketName, objectName);
+        Blob blob = ctx.storage.get(blobId);
 
-            while ((len = gis.read(buffer)) > 0) {
-                output.write(buffer, 0, len);
+        BufferedWriter writer = ctx.response.getWriter();
+        writer.write("ETag: " + blob.getEtag());
+        writer.newLine();
+        writer.write("MD5: " + blob.getMd5());
+        writer.newLine();
+        writer.write("MD5HexString: " + blob.getMd5ToHexString());
+        writer.newLine();
+        writer.write("Size: " + size);
+    }
+
+    /**
+     * Uploads an object to Bolt/GS as a parallel composite upload (see CompositeUpload): the data is split into
+     * parts of partSize bytes, which are uploaded concurrently as temporary objects and composed into the object.
+     * Data that fits in a single part is uploaded with a single request. Composed objects have a CRC32C but no MD5.
+     * @param bucketName bucket name
+     * @param objectName object name
+     * @param request http request whose body is the object data, or null to upload value
+     * @param value object data, used if request is null
+     * @param partSize size of each part
+     * @param concurrency number of parts uploaded concurrently
+     * @throws Exception
+     */
+    private void uploadObjectComposite(Context ctx, String bucketName, String objectName, HttpRequest request,
+                                       String value, int partSize, int concurrency) throws Exception {
+        BlobInfo.Builder blobInfo = BlobInfo.newBuilder(BlobId.of(bucketName, objectName));
+        CompositeUpload upload;
+        Blob blob;
+        if (request != null) {
+            blobInfo.setContentType(request.getContentType().orElse("application/octet-stream"));
+            request.getFirstHeader("Content-Encoding").ifPresent(blobInfo::setContentEncoding);
+            upload = new CompositeUpload(ctx.storage, blobInfo.build(), partSize, concurrency);
+            try (InputStream in = request.getInputStream()) {
+                blob = upload.upload(in);
             }
+        } else {
+            blobInfo.setContentType("text/plain");
+            upload = new CompositeUpload(ctx.storage, blobInfo.build(), partSize, concurrency);
+            blob = upload.upload(new ByteArrayInputStream(value.getBytes(UTF_8)));
+        }
+        ctx.timer.addBytes(upload.size());
+        MetadataCache.invalidate(MetadataCache.objectKey(ctx.sdkType, bucketName, objectName));
+        ObjectCache.invalidate(ctx.sdkType, bucketName, objectName);
+
+        BufferedWriter writer = ctx.response.getWriter();
+        writer.write("ETag: " + blob.getEtag());
+        writer.newLine();
+        writer.write("MD5: " + blob.getMd5());
+        writer.newLine();
+        writer.write("CRC32C: " + blob.getCrc32c());
+        writer.newLine();
+        writer.write("Size: " + upload.size());
+        writer.newLine();
+        writer.write("Parts: " + upload.parts());
+    }
 
-            md.update(output.toByteArray());
-            md5 = DatatypeConverter.printHexBinary(md.digest()).toUpperCase();
-            output.close();
-            gis.close();
+    /**
+     * Gets the object from Bolt/GS, computes and returns the object's MD5 hash.
+     * If the object is gzip encoded, object is decompressed before computing its MD5.
+     * The object is hashed as it is streamed from the endpoint, so memory use does not grow with its size.
+     * Objects larger than chunkSize are fetched as byte ranges, up to 'concurrency' of them in parallel.
+     * @param bucketName bucket name
+     * @param objectName object name
+     * @param chunkSize size of each byte range
+     * @param concurrency number of byte ranges fetched concurrently
+     * @throws Exception
+     */
+    private void downloadObject(Context ctx, String bucketName, String objectName, int chunkSize,
+                                int concurrency) throws Exception {
+        ObjectSource source;
+        String md5;
+        if (ctx.gsStorage != null) {
+            // Hedged: each endpoint reads the object's metadata and data, the first to finish is used.
+            HedgedRead.Outcome<Digest> outcome = HedgedRead.read(RequestType.DOWNLOAD_OBJECT.name(),
+                    ctx.hedgeDelayMs,
+                    () -> digest(SdkType.BOLT, ctx.storage, bucketName, objectName, chunkSize, concurrency),
+                    () -> digest(SdkType.GS, ctx.gsStorage, bucketName, objectName, chunkSize, concurrency));
+            ctx.response.appendHeader("X-Hedge", outcome.describe() + ";" + HedgedRead.describe());
+            source = outcome.value().source;
+            md5 = outcome.value().md5;
+            ctx.timer.lap("hedged-read");
         } else {
-            md.update(content);
-            md5 = DatatypeConverter.printHexBinary(md.digest()).toUpperCase();
+            Blob blob = ctx.storage.get(BlobId.of(bucketName, objectName));
+            ctx.timer.lap("metadata");
+
+            // If Object is gzip encoded, compute MD5 on the decompressed object.
+            source = new ObjectSource(ctx.storage, blob, chunkSize, concurrency);
+            md5 = ObjectCache.md5(ctx.sdkType, source, ObjectDigests.isGzip(blob, objectName), ctx.timer);
+            ctx.timer.lap("digest");
         }
+        ctx.response.appendHeader("X-Object-Cache", ObjectCache.describe());
+        List<RangedDownload.ChunkTiming> timings = source.timings();
 
-        BufferedWriter writer = response.getWriter();
+        BufferedWriter writer = ctx.response.getWriter();
         writer.write("md5: " + md5);
+        if (!timings.isEmpty()) {
+            writer.newLine();
+            writer.write("Chunks: " + timings.size());
+            for (RangedDownload.ChunkTiming timing : timings) {
+                writer.newLine();
+                writer.write("Chunk: " + timing);
+            }
+        }
     }
 
     /**
-     * Retrieves the object's metadata from Bolt / GS.
+     * Serves the object's content, or a byte range of it, as the response body (see ObjectServer). The range is
+     * given by offset/length or by the request's Range header; a range is answered with 206 Partial Content.
+     * If the object cannot be read before its content starts, the response gets the endpoint's error status
+     * (e.g. 404, or 503 while its circuit breaker is open), or 502 for errors without one.
+     * @param request http request, whose Range header is used if neither offset nor length is set
      * @param bucketName bucket name
      * @param objectName object name
+     * @param offset first byte to serve, or null
+     * @param length number of bytes to serve, or null for the rest of the object
+     * @param chunkSize maximum number of bytes fetched from the endpoint per request
      * @throws Exception
      */
-    private void getObjectMetadata(String bucketName, String objectName) throws Exception {
-        Blob blob = storage.get(bucketName, objectName,
-                Storage.BlobGetOption.fields(Storage.BlobField.values()));
+    private void serveObject(Context ctx, HttpRequest request, String bucketName, String objectName, Long offset,
+                             Long length, int chunkSize) throws Exception {
+        try {
+            Blob blob = found(ctx.storage.get(BlobId.of(bucketName, objectName)), objectName);
+            ctx.timer.lap("metadata");
+            ObjectServer.Range range = ObjectServer.range(request, offset, length,
+                    blob.getSize() != null ? blob.getSize() : 0);
+            ObjectServer.serve(ctx.storage, blob, range, chunkSize, ctx.response, ctx.timer);
+        } catch (StorageException e) {
+            ctx.response.setStatusCode(e.getCode() >= 400 && e.getCode() < 600 ? e.getCode() : 502);
+            throw e;
+        } catch (ObjectServer.AbortedException e) {
+            throw e;
+        } catch (IOException e) {
+            ctx.response.setStatusCode(502);
+            throw e;
+        }
+        ctx.timer.lap("transfer");
+    }
 
-        BufferedWriter writer = response.getWriter();
+    /**
+     * Reads the object and computes its MD5 (on the decompressed object if it is gzip encoded).
+     */
+    private static Digest digest(SdkType sdkType, Storage storage, String bucketName, String objectName,
+                                 int chunkSize, int concurrency) throws IOException {
+        Blob blob = found(storage.get(BlobId.of(bucketName, objectName)), objectName);
+        ObjectSource source = new ObjectSource(storage, blob, chunkSize, concurrency);
+        return new Digest(source, ObjectCache.md5(sdkType, source, ObjectDigests.isGzip(blob, objectName), null));
+    }
+
+    /**
+     * Returns blob, or throws a 404 StorageException if the object does not exist, so that a hedged read
+     * that finds no object fails and the other endpoint's answer is used.
+     */
+    private static Blob found(Blob blob, String objectName) {
+        if (blob == null) {
+            throw new StorageException(404, "Object " + objectName + " not found");
+        }
+        return blob;
+    }
+
+    private static final class Digest {
+        private final ObjectSource source;
+        private final String md5;
+
+        private Digest(ObjectSource source, String md5) {
+            this.source = source;
+            this.md5 = md5;
+        }
+    }
+
+    /**
+     * Retrieves the object's metadata from Bolt / GS. Metadata is served from the instance's MetadataCache
+     * when possible.
+     * @param bucketName bucket name
+     * @param objectName object name
+     * @param fields if not empty, only these fields are retrieved and returned
+     * @param revalidate if true, cached metadata is only used if the object's generation and metageneration
+     *                   are unchanged
+     * @throws Exception
+     */
+    private void getObjectMetadata(Context ctx, String bucketName, String objectName,
+                                   List<Storage.BlobField> fields, boolean revalidate) throws Exception {
+        String cacheKey = MetadataCache.objectKey(ctx.sdkType, bucketName, objectName) +
+                MetadataFields.key(fields);
+        // read before the fetch, so that metadata fetched while the object is written or deleted is not cached.
+        long epoch = MetadataCache.epoch(cacheKey);
+        Blob blob = MetadataCache.get(cacheKey, Blob.class);
+        if (blob != null && revalidate) {
+            Blob current = ctx.storage.get(bucketName, objectName,
+                    Storage.BlobGetOption.fields(Storage.BlobField.GENERATION, Storage.BlobField.METAGENERATION));
+            if (current == null || !Objects.equals(current.getGeneration(), blob.getGeneration()) ||
+                    !Objects.equals(current.getMetageneration(), blob.getMetageneration())) {
+                MetadataCache.revalidated();
+                blob = null;
+            }
+        }
+        ctx.response.appendHeader("X-Metadata-Cache",
+                (blob != null ? "hit;" : "miss;") + MetadataCache.describe());
+        if (blob == null) {
+            Storage.BlobGetOption fieldsOption = Storage.BlobGetOption.fields(fields.isEmpty() ?
+                    Storage.BlobField.values() :
+                    MetadataFields.with(fields, Storage.BlobField.GENERATION, Storage.BlobField.METAGENERATION));
+            if (ctx.gsStorage != null) {
+                HedgedRead.Outcome<Blob> outcome = HedgedRead.read(RequestType.GET_OBJECT_MD.name(),
+                        ctx.hedgeDelayMs,
+                        () -> found(ctx.storage.get(bucketName, objectName, fieldsOption), objectName),
+                        () -> found(ctx.gsStorage.get(bucketName, objectName, fieldsOption), objectName));
+                ctx.response.appendHeader("X-Hedge", outcome.describe() + ";" + HedgedRead.describe());
+                blob = outcome.value();
+                // GS's metadata (e.g. its ETag) is not Bolt's: only an answer from Bolt is cached under its key.
+                if (outcome.winner() == SdkType.BOLT) {
+                    MetadataCache.put(cacheKey, blob, epoch);
+                }
+            } else {
+                blob = ctx.storage.get(bucketName, objectName, fieldsOption);
+                MetadataCache.put(cacheKey, blob, epoch);
+            }
+        }
+
+        BufferedWriter writer = ctx.response.getWriter();
+        if (!fields.isEmpty()) {
+            for (Storage.BlobField field : fields) {
+                writer.write(MetadataFields.label(field) + ": " + MetadataFields.value(blob, field));
+                writer.newLine();
+            }
+            return;
+        }
         writer.write("ContentEncoding: " + blob.getContentEncoding());
         writer.newLine();
         writer.write("ETag: " + blob.getEtag());
@@ -302,36 +872,190 @@ public class BoltGSOpsClient {
      * @param objectName object name
      * @throws Exception
      */
-    private void deleteObject(String bucketName, String objectName) throws Exception {
-        boolean deleted = storage.delete(bucketName, objectName);
+    private void deleteObject(Context ctx, String bucketName, String objectName) throws Exception {
+        boolean deleted = ctx.storage.delete(bucketName, objectName);
+        MetadataCache.invalidate(MetadataCache.objectKey(ctx.sdkType, bucketName, objectName));
+        ObjectCache.invalidate(ctx.sdkType, bucketName, objectName);
 
-        BufferedWriter writer = response.getWriter();
+        BufferedWriter writer = ctx.response.getWriter();
         writer.write("Deleted: " + deleted);
     }
 
     /**
-     * Get deployment region of the function
-     * @return region
-     * @throws IOException
+     * Retrieves the metadata of several objects from Bolt / GS. One line is written per key, in the given order.
+     * @param bucketName bucket name
+     * @param keys object names
+     * @param batch if true, keys are sent in batch requests of up to 100 calls; otherwise each key is sent
+     *              as its own request
+     * @param parallelism number of requests (or batch requests) in flight
+     * @throws Exception
      */
-    public static String region() throws IOException {
+    private void getObjectsMetadata(Context ctx, String bucketName, List<String> keys, boolean batch,
+                                    int parallelism) throws Exception {
+        Storage.BlobGetOption fields = Storage.BlobGetOption.fields(Storage.BlobField.CONTENT_ENCODING,
+                Storage.BlobField.ETAG, Storage.BlobField.MD5HASH, Storage.BlobField.SIZE,
+                Storage.BlobField.STORAGE_CLASS, Storage.BlobField.UPDATED);
+
+        forEachKey(ctx, bucketName, keys, batch, parallelism,
+                blobId -> ctx.storage.get(blobId, fields),
+                (storageBatch, blobId) -> storageBatch.get(blobId, fields),
+                (key, blob) -> blob == null ? key + ": NotFound" :
+                        key + ": ContentEncoding=" + blob.getContentEncoding() +
+                        " ETag=" + blob.getEtag() +
+                        " Md5HexString=" + blob.getMd5ToHexString() +
+                        " Size=" + blob.getSize() +
+                        " StorageClass=" + blob.getStorageClass() +
+                        " LastMetadataUpdate=" + new Date(blob.getUpdateTime()));
+    }
+
+    /**
+     * Deletes several objects from Bolt / GS. One line is written per key, in the given order.
+     * @param bucketName bucket name
+     * @param keys object names
+     * @param batch if true, keys are sent in batch requests of up to 100 calls; otherwise each key is sent
+     *              as its own request
+     * @param parallelism number of requests (or batch requests) in flight
+     * @throws Exception
+     */
+    private void deleteObjects(Context ctx, String bucketName, List<String> keys, boolean batch,
+                               int parallelism) throws Exception {
+        forEachKey(ctx, bucketName, keys, batch, parallelism,
+                blobId -> ctx.storage.delete(blobId),
+                (storageBatch, blobId) -> storageBatch.delete(blobId),
+                (key, deleted) -> key + ": Deleted=" + deleted);
+        for (String key : keys) {
+            MetadataCache.invalidate(MetadataCache.objectKey(ctx.sdkType, bucketName, key));
+            ObjectCache.invalidate(ctx.sdkType, bucketName, key);
+        }
+    }
+
+    /**
+     * Runs a storage call for every key, keeping up to 'parallelism' requests in flight, and writes one
+     * result line per key in the order of the keys. A failed call only fails the line of its key.
+     */
+    private <T> void forEachKey(Context ctx, String bucketName, List<String> keys, boolean batch,
+                                int parallelism, KeyCall<T> call, BatchCall<T> batchCall,
+                                KeyFormatter<T> formatter)
+            throws IOException {
+        int groupSize = batch ? MAX_BATCH_SIZE : 1;
+        ArrayDeque<Future<List<Object>>> inFlight = new ArrayDeque<>();
+        int next = 0;
+        int written = 0;
+
+        BufferedWriter writer = ctx.response.getWriter();
+        while (written < keys.size()) {
+            while (inFlight.size() < parallelism && next < keys.size()) {
+                List<String> group = keys.subList(next, Math.min(next + groupSize, keys.size()));
+                next += group.size();
+                inFlight.add(Workers.io().submit(() -> batch ?
+                        runBatch(ctx.storage, bucketName, group, batchCall) :
+                        runSingle(bucketName, group.get(0), call)));
+            }
+
+            int groupEnd = Math.min(written + groupSize, keys.size());
+            List<Object> results;
+            try {
+                results = Workers.await(inFlight.poll());
+            } catch (StorageException e) {
+                // the whole batch request failed, and with it the call of every key in the batch.
+                results = Collections.nCopies(groupEnd - written, e);
+            }
+            for (int i = written; i < groupEnd; i++) {
+                String key = keys.get(i);
+                Object result = results.get(i - written);
+                if (result instanceof StorageException) {
+                    StorageException e = (StorageException) result;
+                    writer.write(key + ": ErrorCode=" + e.getCode() + " ErrorMessage=" + e.getMessage());
+                } else {
+                    @SuppressWarnings("unchecked")
+                    T value = (T) result;
+                    writer.write(formatter.format(key, value));
+                }
+                writer.newLine();
+            }
+            writer.flush();
+            written = groupEnd;
+        }
+    }
+
+    private static <T> List<Object> runSingle(String bucketName, String key, KeyCall<T> call) {
+        try {
+            return Collections.singletonList(call.call(BlobId.of(bucketName, key)));
+        } catch (StorageException e) {
+            return Collections.singletonList(e);
+        }
+    }
 
-        String mdZoneUrl = "http://metadata.google.internal/computeMetadata/v1/instance/zone";
+    private static <T> List<Object> runBatch(Storage storage, String bucketName, List<String> keys,
+                                             BatchCall<T> call) {
+        StorageBatch storageBatch = storage.batch();
+        List<StorageBatchResult<T>> pending = new ArrayList<>(keys.size());
+        for (String key : keys) {
+            pending.add(call.add(storageBatch, BlobId.of(bucketName, key)));
+        }
+        storageBatch.submit();
 
-        OkHttpClient ok = new OkHttpClient.Builder()
-                .readTimeout(500, TimeUnit.MILLISECONDS)
-                .writeTimeout(500, TimeUnit.MILLISECONDS)
-                .build();
+        List<Object> results = new ArrayList<>(keys.size());
+        for (StorageBatchResult<T> result : pending) {
+            try {
+                results.add(result.get());
+            } catch (StorageException e) {
+                results.add(e);
+            }
+        }
+        return results;
+    }
 
-        Request request = new Request.Builder()
-                .url(mdZoneUrl)
-                .addHeader("Metadata-Flavor", "Google")
-                .get()
-                .build();
+    // A storage call for a single key.
+    private interface KeyCall<T> {
+        T call(BlobId blobId);
+    }
+
+    // Adds the storage call for a single key to a batch.
+    private interface BatchCall<T> {
+        StorageBatchResult<T> add(StorageBatch batch, BlobId blobId);
+    }
 
-        Response response = ok.newCall(request).execute();
-        String zoneMd = response.body().string();
-        String zone = zoneMd.substring(zoneMd.lastIndexOf("/") + 1);
-        return zone.substring(0, zone.lastIndexOf("-"));
+    // Formats the result line of a single key.
+    private interface KeyFormatter<T> {
+        String format(String key, T result);
+    }
+
+    /**
+     * Indicates if the body of the request is raw object data rather than a JSON document: the request carries its
+     * parameters (requestType or bucket) in the query string, or its body is application/octet-stream. Any other
+     * body is parsed as JSON whatever its content type, e.g. text/plain or form-urlencoded (curl -d).
+     */
+    private static boolean isRawBody(HttpRequest request) {
+        Map<String, List<String>> query = request.getQueryParameters();
+        if (query.containsKey("requestType") || query.containsKey("bucket")) {
+            return true;
+        }
+        return request.getContentType()
+                .map(contentType -> contentType.toLowerCase().startsWith("application/octet-stream"))
+                .orElse(false);
+    }
+
+    /**
+     * Returns the query parameters of the request as a JSON object, so that they are parsed the same way
+     * as the parameters of a JSON request.
+     */
+    private static JsonObject queryParameters(HttpRequest request) {
+        JsonObject parameters = new JsonObject();
+        for (Map.Entry<String, List<String>> parameter : request.getQueryParameters().entrySet()) {
+            if (!parameter.getValue().isEmpty()) {
+                parameters.addProperty(parameter.getKey(), parameter.getValue().get(0));
+            }
+        }
+        return parameters;
+    }
+
+    /**
+     * Get deployment region of the function. The region is looked up once per function instance.
+     * @return region
+     * @throws IOException
+     */
+    public static String region() throws IOException {
+        return EndpointResolver.region();
     }
 }
@@ -11,6 +11,13 @@ import java.io.IOException;
  */
 public class BoltGSOpsHandler implements HttpFunction {
 
+    // Shared by all requests, which may be served concurrently by one instance.
+    private static final BoltGSOpsClient client = new BoltGSOpsClient();
+
+    static {
+        Startup.prewarm();
+    }
+
     /**
      * service serves an incoming HTTP Request.
      *
@@ -27,6 +34,8 @@ public class BoltGSOpsHandler implements HttpFunction {
      *    e) download_object - get object (md5 hash)
      *    f) upload_object - upload object
      *    g) delete_object - delete object
+     *    h) metrics - latency percentiles and throughput of the requests served by this function instance
+     *    i) prefetch - read objects through Bolt, discarding their data, to warm Bolt's cache
      *
      * 3) bucket - bucket name
      *
@@ -54,6 +63,21 @@ public class BoltGSOpsHandler implements HttpFunction {
      * g) Delete object from Bolt:
      *     {"requestType": "delete_object", "sdkType": "BOLT", "bucket": "<bucket>", "key": "<key>"}
      *
+     * h) Warm Bolt's cache with all objects under a prefix, 32 objects at a time:
+     *     {"requestType": "prefetch", "sdkType": "BOLT", "bucket": "<bucket>", "prefix": "<prefix>", "parallelism": 32}
+     *
+     * Large or binary objects can be uploaded by sending the object data as the request body and the parameters
+     * in the query string (a body is raw data if requestType or bucket is in the query string, or if it is
+     * application/octet-stream; any other body is parsed as JSON), e.g.
+     *     POST ?requestType=upload_object&sdkType=BOLT&bucket=<bucket>&key=<key>&chunkSize=<bytes>
+     * The body is streamed to the endpoint through a resumable upload. The object's content type and encoding
+     * are taken from the request's Content-Type and Content-Encoding headers.
+     *
+     * Every response carries a Server-Timing header with the request's latency broken down into phases.
+     * Storage calls are retried, bounded by the function timeout, and guarded by a circuit breaker per endpoint;
+     * while Bolt's (or GS') breaker is open, reads are served by the other endpoint (see Resilience). The
+     * X-Resilience header reports the request's retries, any diversion and the state of both breakers.
+     *
      * @param request incoming Http Request
      * @param response outgoing Http Response
      * @throws IOException
@@ -62,7 +86,6 @@ public class BoltGSOpsHandler implements HttpFunction {
     public void service(HttpRequest request, HttpResponse response)
             throws IOException {
 
-        BoltGSOpsClient boltGSOpsClient = new BoltGSOpsClient(response);
-        boltGSOpsClient.processEvent(request);
+        client.processEvent(request, response);
     }
 }
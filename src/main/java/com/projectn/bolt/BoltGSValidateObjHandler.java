@@ -8,13 +8,13 @@ import com.google.gson.Gson;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 
-import javax.xml.bind.DatatypeConverter;
 import java.io.BufferedWriter;
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.security.MessageDigest;
-import java.util.zip.GZIPInputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 /**
  * BoltGSValidateObjHandler represents a Google Cloud Function that is invoked by an HTTP Request and performs
@@ -30,17 +30,52 @@ public class BoltGSValidateObjHandler implements HttpFunction {
         OFF
     }
 
+    // How the Bolt and GS objects are compared.
+    enum Compare {
+        // MD5 hashes of both objects are returned
+        MD5,
+        // objects are compared byte by byte, stopping at the first difference
+        BYTES,
+        // sizes and server side checksums (CRC32C, else MD5) are compared from metadata; objects are only
+        // downloaded, and their CRC32C computed, if checksums are missing or differ, or the object is gzip encoded
+        METADATA
+    }
+
+    // Number of objects validated concurrently by a bulk request.
+    static final int DEFAULT_PARALLELISM = 8;
+
+    // Time after which a bulk request stops validating further objects, below the default function timeout.
+    static final long DEFAULT_TIME_BUDGET_MS = 50_000;
+
     private static final Gson gson = new Gson();
 
+    static {
+        Startup.prewarm();
+    }
+
     /**
      * service serves an incoming HTTP Request for performing data validation tests.
      *
      * service accepts the following input parameters as part of the HTTP Request:
      * 1) bucket - bucket name
      * 2) key - key name
+     * 3) bucketClean - (optional) ON if the source bucket is cleaned post crunch, i.e. only Bolt has the object.
+     * 4) compare - (optional) md5 (default), bytes or metadata
+     *
+     * Instead of a single key, a bulk request validates all objects under a 'prefix' or in a list of 'keys'.
+     * Bulk requests accept the following optional parameters:
+     * a) parallelism - number of objects validated concurrently
+     * b) timeBudgetMs - time after which no further objects are validated
+     * c) resumeToken - token, returned by a bulk request that ran out of time, to continue from
      *
-     * service retrieves the object from Bolt and GS (if BucketClean is OFF), computes and returns their
-     * corresponding MD5 hash. If the object is gzip encoded, object is decompressed before computing its MD5.
+     * service retrieves the object from Bolt and GS (if BucketClean is OFF) concurrently, computes and returns
+     * their corresponding MD5 hash. If the object is gzip encoded, object is decompressed before computing its MD5.
+     * With compare=bytes, both objects are compared as they stream in and reading stops at the first differing
+     * byte, whose offset is returned. With compare=metadata, the sizes and checksums in the metadata of both
+     * objects are compared, and the objects are only downloaded (and their CRC32C computed) if that is not enough.
+     * Objects larger than 'chunkSize' are fetched as byte ranges, 'concurrency' of them in parallel.
+     * Storage calls are guarded by Resilience; the X-Resilience header reports the request's retries and the
+     * state of both circuit breakers.
      * @param request incoming http request
      * @param response outgoing http response
      * @return md5s of object retrieved from Bolt and GS.
@@ -49,109 +84,246 @@ public class BoltGSValidateObjHandler implements HttpFunction {
     public void service(HttpRequest request, HttpResponse response)
             throws IOException {
 
-        // Parse JSON Request.
-        String bucketName = null;
-        String objectName = null;
-        BucketClean bucketClean = BucketClean.OFF;
+        RequestTimer timer = new RequestTimer("VALIDATE");
+        Resilience.Budget budget = Resilience.begin();
 
-        JsonElement requestParsed = gson.fromJson(request.getReader(), JsonElement.class);
-        JsonObject requestJson = null;
+        try {
+            // Parse JSON Request.
+            String bucketName = null;
+            String objectName = null;
+            BucketClean bucketClean = BucketClean.OFF;
+            int chunkSize = RangedDownload.DEFAULT_CHUNK_SIZE;
+            int concurrency = RangedDownload.DEFAULT_CONCURRENCY;
+            Compare compare = Compare.MD5;
+            String prefix = null;
+            List<String> keys = null;
+            int parallelism = DEFAULT_PARALLELISM;
+            String resumeToken = null;
+            long timeBudgetMs = DEFAULT_TIME_BUDGET_MS;
 
-        if (requestParsed != null && requestParsed.isJsonObject()) {
-            requestJson = requestParsed.getAsJsonObject();
-        }
+            JsonElement requestParsed = gson.fromJson(request.getReader(), JsonElement.class);
+            JsonObject requestJson = null;
 
-        if (requestJson != null) {
-            if (requestJson.has("bucket")) {
-                bucketName = requestJson.get("bucket").getAsString();
-            }
-            if (requestJson.has("key")) {
-                objectName= requestJson.get("key").getAsString();
+            if (requestParsed != null && requestParsed.isJsonObject()) {
+                requestJson = requestParsed.getAsJsonObject();
             }
-            if (requestJson.has("bucketClean")) {
-                String bucketCleanStr = requestJson.get("bucketClean").getAsString();
-                bucketClean = (bucketCleanStr != null && !bucketCleanStr.isEmpty()) ?
-                        BucketClean.valueOf(bucketCleanStr.toUpperCase()) : BucketClean.OFF;
+
+            if (requestJson != null) {
+                if (requestJson.has("bucket")) {
+                    bucketName = requestJson.get("bucket").getAsString();
+                }
+                if (requestJson.has("key")) {
+                    objectName= requestJson.get("key").getAsString();
+                }
+                if (requestJson.has("bucketClean")) {
+                    String bucketCleanStr = requestJson.get("bucketClean").getAsString();
+                    bucketClean = (bucketCleanStr != null && !bucketCleanStr.isEmpty()) ?
+                            BucketClean.valueOf(bucketCleanStr.toUpperCase()) : BucketClean.OFF;
+                }
+                if (requestJson.has("compare")) {
+                    compare = Compare.valueOf(requestJson.get("compare").getAsString().toUpperCase());
+                }
+                if (requestJson.has("prefix")) {
+                    prefix = requestJson.get("prefix").getAsString();
+                }
+                if (requestJson.has("keys")) {
+                    keys = new ArrayList<>();
+                    for (JsonElement key : requestJson.getAsJsonArray("keys")) {
+                        keys.add(key.getAsString());
+                    }
+                }
+                if (requestJson.has("parallelism")) {
+                    parallelism = requestJson.get("parallelism").getAsInt();
+                    if (parallelism < 1) {
+                        throw new IllegalArgumentException("parallelism must be at least 1");
+                    }
+                }
+                if (requestJson.has("resumeToken")) {
+                    resumeToken = requestJson.get("resumeToken").getAsString();
+                }
+                if (requestJson.has("timeBudgetMs")) {
+                    timeBudgetMs = requestJson.get("timeBudgetMs").getAsLong();
+                }
+                if (requestJson.has("chunkSize")) {
+                    chunkSize = requestJson.get("chunkSize").getAsInt();
+                    if (chunkSize < 1) {
+                        throw new IllegalArgumentException("chunkSize must be at least 1");
+                    }
+                }
+                if (requestJson.has("concurrency")) {
+                    concurrency = requestJson.get("concurrency").getAsInt();
+                    if (concurrency < 1) {
+                        throw new IllegalArgumentException("concurrency must be at least 1");
+                    }
+                }
             }
-        }
 
-        Storage gsStorage = StorageOptions.getDefaultInstance().getService();
-        String boltUrl = System.getenv("BOLT_URL").replace("{region}", BoltGSOpsClient.region());
-        Storage boltStorage = StorageOptions.newBuilder().setHost(boltUrl).build().getService();
+            timer.lap("parse");
+            if (prefix != null || keys != null) {
+                timer.setOperation("VALIDATE_BULK");
+            }
+            timer.setEndpoint(bucketClean == BucketClean.OFF ? "BOLT+GS" : "BOLT");
 
-        try {
-            // Download Object from Bolt.
-            Blob boltBlob = boltStorage.get(BlobId.of(bucketName, objectName));
+            Storage gsStorage = StorageClients.gs();
+            EndpointResolver.Resolution resolution = EndpointResolver.resolve();
+            response.appendHeader("X-Endpoint-Resolve", resolution.describe());
+            timer.lap("resolve");
+            Storage boltStorage = StorageClients.bolt(resolution.boltUrl());
+            timer.lap("client");
 
-            // Get Object from GS if bucket clean is off.
-            Blob gsBlob = null;
-            if (bucketClean == BucketClean.OFF) {
-                gsBlob = gsStorage.get(BlobId.of(bucketName, objectName));
+            ObjectValidator validator = new ObjectValidator(gsStorage, boltStorage, bucketClean, compare,
+                    chunkSize, concurrency);
+            if (prefix != null || keys != null) {
+                validateBulk(validator, bucketName, prefix, keys, parallelism, resumeToken, timeBudgetMs,
+                        response.getWriter());
+                timer.lap("validate");
+                return;
             }
 
-            // Parse the MD5 of the returned object
-            MessageDigest md = MessageDigest.getInstance("MD5");
-            String gsMd5, boltMd5;
-
-            // If Object is gzip encoded, compute MD5 on the decompressed object.
-            String encoding = gsBlob.getContentEncoding();
-            if ((encoding != null && encoding.equalsIgnoreCase("gzip")) ||
-                    objectName.endsWith(".gz")) {
-                GZIPInputStream gis;
-                ByteArrayInputStream bis;
-                ByteArrayOutputStream output;
-                byte[] buffer = new byte[1024];
-                int len;
-
-                // MD5 of the GS object after gzip decompression.
-                bis = new ByteArrayInputStream(gsBlob.getContent());
-                gis = new GZIPInputStream(bis);
-                output = new ByteArrayOutputStream();
-
-                while ((len = gis.read(buffer)) > 0) {
-                    output.write(buffer, 0, len);
-                }
-
-                md.update(output.toByteArray());
-                gsMd5 = DatatypeConverter.printHexBinary(md.digest()).toUpperCase();
-                output.close();
-                gis.close();
-
-                // MD5 of the Bolt object after gzip decompression.
-                bis = new ByteArrayInputStream(boltBlob.getContent());
-                gis = new GZIPInputStream(bis);
-                output = new ByteArrayOutputStream();
-
-                while ((len = gis.read(buffer)) > 0) {
-                    output.write(buffer, 0, len);
-                }
-
-                md.reset();
-                md.update(output.toByteArray());
-                boltMd5 = DatatypeConverter.printHexBinary(md.digest()).toUpperCase();
-                output.close();
-                gis.close();
-            } else  {
-                // MD5 of the GS object
-                md.update(gsBlob.getContent());
-                gsMd5 = DatatypeConverter.printHexBinary(md.digest()).toUpperCase();
-
-                //MD5 of the Bolt object
-                md.reset();
-                md.update(boltBlob.getContent());
-                boltMd5 = DatatypeConverter.printHexBinary(md.digest()).toUpperCase();
+            ObjectValidator.Result result = validator.validate(bucketName, objectName, null);
+            if (result.downloaded()) {
+                timer.note("gs-read", result.gsNanos);
+                timer.note("bolt-read", result.boltNanos);
+                timer.addBytes(result.size);
             }
+            timer.lap("validate");
 
             BufferedWriter writer = response.getWriter();
-            writer.write("gs-md5: " + gsMd5);
-            writer.newLine();
-            writer.write("bolt-md5: " + boltMd5);
+            if (compare == Compare.BYTES) {
+                writer.write("match: " + result.matches());
+                if (!result.matches()) {
+                    writer.newLine();
+                    writer.write("first-mismatch-offset: " + result.mismatchOffset);
+                }
+            } else if (compare == Compare.METADATA) {
+                writer.write("match: " + result.matches());
+                writer.newLine();
+                writer.write("checksum-source: " + result.checksumSource);
+                if (result.gsChecksum != null) {
+                    writer.newLine();
+                    writer.write("gs-checksum: " + result.gsChecksum);
+                }
+                writer.newLine();
+                writer.write("bolt-checksum: " + result.boltChecksum);
+            } else {
+                if (result.gsMd5 != null) {
+                    writer.write("gs-md5: " + result.gsMd5);
+                    writer.newLine();
+                }
+                writer.write("bolt-md5: " + result.boltMd5);
+            }
+            for (RangedDownload.ChunkTiming timing : result.gsTimings()) {
+                writer.newLine();
+                writer.write("gs-chunk: " + timing);
+            }
+            for (RangedDownload.ChunkTiming timing : result.boltTimings()) {
+                writer.newLine();
+                writer.write("bolt-chunk: " + timing);
+            }
         } catch (StorageException e) {
             response.getWriter().write("ErrorCode: " + e.getCode());
             response.getWriter().newLine();
             response.getWriter().write("ErrorMessage: " + e.getMessage());
         } catch (Exception e) {
             response.getWriter().write("ErrorMessage: " + e.getMessage());
+        } finally {
+            response.appendHeader("X-Resilience", budget.describe());
+            timer.finish(response);
+            Resilience.end();
+        }
+    }
+
+    /**
+     * Validates all objects under a prefix, or in a list of keys, 'parallelism' objects at a time.
+     * One result line is written (and flushed) per object, in listing order, followed by a summary.
+     * If the time budget runs out before all objects are validated, the summary includes a resume token
+     * that continues the validation from the first object that was not validated.
+     */
+    private static void validateBulk(ObjectValidator validator, String bucketName, String prefix, List<String> keys,
+                                     int parallelism, String resumeToken, long timeBudgetMs,
+                                     BufferedWriter writer) throws IOException {
+        long start = System.nanoTime();
+        long deadline = start + TimeUnit.MILLISECONDS.toNanos(timeBudgetMs);
+        KeyCursor cursor = keys != null ?
+                KeyCursor.forKeys(keys, resumeToken) :
+                KeyCursor.forPrefix(validator.referenceStorage(), bucketName, prefix, KeyCursor.DEFAULT_PAGE_SIZE,
+                        resumeToken);
+
+        long objects = 0, mismatches = 0, errors = 0, bytes = 0, metadataOnly = 0;
+        ArrayDeque<Future<ObjectValidator.Result>> inFlight = new ArrayDeque<>();
+        ArrayDeque<String> inFlightKeys = new ArrayDeque<>();
+        boolean outOfTime = false;
+
+        while (true) {
+            // Keep up to 'parallelism' objects in flight, unless the time budget has run out.
+            while (inFlight.size() < parallelism && !(outOfTime = System.nanoTime() > deadline)) {
+                KeyCursor.Entry entry = cursor.next();
+                if (entry == null) {
+                    break;
+                }
+                inFlight.add(Workers.io().submit(() -> validator.validate(bucketName, entry.key, entry.listed)));
+                inFlightKeys.add(entry.key);
+            }
+            Future<ObjectValidator.Result> next = inFlight.poll();
+            if (next == null) {
+                break;
+            }
+            String key = inFlightKeys.poll();
+            objects++;
+            try {
+                ObjectValidator.Result result = Workers.await(next);
+                if (result.checksumSource != null) {
+                    if (!result.downloaded()) {
+                        metadataOnly++;
+                    } else {
+                        bytes += result.size;
+                    }
+                    if (!result.matches()) {
+                        mismatches++;
+                    }
+                    writer.write(key + (result.matches() ? ": OK " : ": MISMATCH ") + result.checksumSource +
+                            (result.gsChecksum != null ? " gs=" + result.gsChecksum : "") +
+                            " bolt=" + result.boltChecksum);
+                } else if (result.matches()) {
+                    bytes += result.size;
+                    writer.write(key + ": OK" + (result.boltMd5 == null ? "" :
+                            (result.gsMd5 != null ? " md5=" : " bolt-md5=") + result.boltMd5));
+                } else {
+                    bytes += result.size;
+                    mismatches++;
+                    writer.write(key + ": MISMATCH " + (result.mismatchOffset >= 0 ?
+                            "first-mismatch-offset=" + result.mismatchOffset :
+                            "gs-md5=" + result.gsMd5 + " bolt-md5=" + result.boltMd5));
+                }
+            } catch (StorageException e) {
+                errors++;
+                writer.write(key + ": ERROR " + e.getCode() + " " + e.getMessage());
+            } catch (Exception e) {
+                errors++;
+                writer.write(key + ": ERROR " + e.getMessage());
+            }
+            writer.newLine();
+            writer.flush();
+        }
+
+        double seconds = (System.nanoTime() - start) / 1e9;
+        writer.write("objects: " + objects);
+        writer.newLine();
+        writer.write("mismatches: " + mismatches);
+        writer.newLine();
+        writer.write("errors: " + errors);
+        writer.newLine();
+        writer.write("bytes: " + bytes);
+        writer.newLine();
+        if (validator.comparesMetadata()) {
+            writer.write("metadata-only: " + metadataOnly);
+            writer.newLine();
+        }
+        writer.write(String.format("objects-per-second: %.2f", seconds > 0 ? objects / seconds : 0));
+        String nextToken = outOfTime ? cursor.resumeToken() : null;
+        if (nextToken != null) {
+            writer.newLine();
+            writer.write("resume-token: " + nextToken);
         }
     }
 }
@@ -0,0 +1,203 @@
+package com.projectn.bolt;
+
+import com.google.cloud.storage.Blob;
+import com.google.cloud.storage.BlobId;
+import com.google.cloud.storage.BlobInfo;
+import com.google.cloud.storage.Storage;
+import com.google.cloud.storage.StorageException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Future;
+
+/**
+ * CompositeUpload uploads an object to Bolt/GS as a parallel composite upload: the data is split into parts of
+ * partSize bytes, up to 'concurrency' parts are uploaded at a time as temporary objects, and the parts are then
+ * composed into the final object and deleted.
+ *
+ * At most concurrency + 1 parts are buffered at any time, so memory use is bounded by (concurrency + 1) * partSize
+ * regardless of object size. Data that fits in a single part is uploaded with a single request instead.
+ */
+final class CompositeUpload {
+
+    static final int DEFAULT_PART_SIZE = 16 * 1024 * 1024;
+
+    // Maximum number of source objects of a single compose request.
+    private static final int MAX_COMPOSE_SOURCES = 32;
+
+    private final Storage storage;
+    private final BlobInfo target;
+    private final int partSize;
+    private final int concurrency;
+    private final BlockingQueue<byte[]> buffers;
+    // Temporary objects (parts and intermediate compositions), deleted once the upload is done.
+    private final List<BlobId> temporary = new ArrayList<>();
+    private final String uploadId = UUID.randomUUID().toString();
+    private int parts;
+    private long size;
+
+    /**
+     * @param storage Storage service object of the endpoint to upload to
+     * @param target bucket, name, content type and encoding of the final object
+     * @param partSize size of each part
+     * @param concurrency number of parts uploaded concurrently
+     */
+    CompositeUpload(Storage storage, BlobInfo target, int partSize, int concurrency) {
+        if (partSize <= 0 || concurrency <= 0) {
+            throw new IllegalArgumentException("partSize and concurrency must be positive");
+        }
+        this.storage = storage;
+        this.target = target;
+        this.partSize = partSize;
+        this.concurrency = concurrency;
+        this.buffers = new ArrayBlockingQueue<>(concurrency + 1);
+    }
+
+    /**
+     * Uploads the data of the given stream, which is read to its end (but not closed).
+     * @return the uploaded object
+     */
+    Blob upload(InputStream in) throws IOException {
+        byte[] first = buffer();
+        int length = in.readNBytes(first, 0, partSize);
+        if (length < partSize) {
+            // fits in a single part.
+            parts = 1;
+            size = length;
+            return storage.create(target, first, 0, length);
+        }
+
+        List<Future<Blob>> uploaded = new ArrayList<>();
+        try {
+            ArrayDeque<Future<Blob>> inFlight = new ArrayDeque<>();
+            byte[] buffer = first;
+            while (length > 0) {
+                // keep up to 'concurrency' parts in flight, and their buffers in use.
+                if (inFlight.size() == concurrency) {
+                    Workers.await(inFlight.poll());
+                }
+                Future<Blob> part = submitPart(parts++, buffer, length);
+                uploaded.add(part);
+                inFlight.add(part);
+                size += length;
+
+                buffer = buffer();
+                length = in.readNBytes(buffer, 0, partSize);
+            }
+
+            List<Blob> sources = new ArrayList<>(uploaded.size());
+            for (Future<Blob> part : uploaded) {
+                sources.add(Workers.await(part));
+            }
+            return compose(sources);
+        } finally {
+            // parts still in flight after a failure are deleted once they are done.
+            for (Future<Blob> part : uploaded) {
+                try {
+                    Workers.await(part);
+                } catch (IOException | RuntimeException e) {
+                    // reported by the upload itself.
+                }
+            }
+            deleteTemporary();
+        }
+    }
+
+    /**
+     * Number of parts uploaded; 1 if the data was uploaded with a single request.
+     */
+    int parts() {
+        return parts;
+    }
+
+    /**
+     * Number of bytes uploaded.
+     */
+    long size() {
+        return size;
+    }
+
+    private Future<Blob> submitPart(int index, byte[] buffer, int length) {
+        BlobId partId = BlobId.of(target.getBucket(), temporaryName("part", index));
+        synchronized (temporary) {
+            temporary.add(partId);
+        }
+        return Workers.io().submit(() -> {
+            try {
+                return storage.create(BlobInfo.newBuilder(partId).build(), buffer, 0, length);
+            } finally {
+                buffers.offer(buffer);
+            }
+        });
+    }
+
+    /**
+     * Composes the sources into the target, through intermediate compositions of up to 32 sources each if
+     * there are more than 32 of them.
+     */
+    private Blob compose(List<Blob> sources) throws IOException {
+        int level = 0;
+        while (sources.size() > MAX_COMPOSE_SOURCES) {
+            List<Future<Blob>> composed = new ArrayList<>();
+            for (int i = 0; i < sources.size(); i += MAX_COMPOSE_SOURCES) {
+                List<Blob> group = sources.subList(i, Math.min(i + MAX_COMPOSE_SOURCES, sources.size()));
+                BlobId intermediate = BlobId.of(target.getBucket(),
+                        temporaryName("compose" + level, i / MAX_COMPOSE_SOURCES));
+                synchronized (temporary) {
+                    temporary.add(intermediate);
+                }
+                composed.add(Workers.io().submit(() -> compose(group, BlobInfo.newBuilder(intermediate).build())));
+            }
+            sources = new ArrayList<>(composed.size());
+            for (Future<Blob> blob : composed) {
+                sources.add(Workers.await(blob));
+            }
+            level++;
+        }
+        return compose(sources, target);
+    }
+
+    private Blob compose(List<Blob> sources, BlobInfo composed) {
+        Storage.ComposeRequest.Builder request = Storage.ComposeRequest.newBuilder().setTarget(composed);
+        for (Blob source : sources) {
+            // pinned to the generation that was uploaded, if the endpoint reports it.
+            if (source.getGeneration() != null) {
+                request.addSource(source.getName(), source.getGeneration());
+            } else {
+                request.addSource(source.getName());
+            }
+        }
+        return storage.compose(request.build());
+    }
+
+    // Deletes the parts and intermediate compositions; a part that cannot be deleted is left behind.
+    private void deleteTemporary() {
+        List<BlobId> blobIds;
+        synchronized (temporary) {
+            blobIds = new ArrayList<>(temporary);
+        }
+        if (blobIds.isEmpty()) {
+            return;
+        }
+        try {
+            storage.delete(blobIds);
+        } catch (StorageException e) {
+            // best effort; the upload itself succeeded or failed regardless.
+        }
+    }
+
+    private String temporaryName(String kind, int index) {
+        return target.getName() + ".composite-" + uploadId + "." + kind + "-" + index;
+    }
+
+    private byte[] buffer() {
+        byte[] buffer = buffers.poll();
+        return buffer != null ? buffer : new byte[partSize];
+    }
+}
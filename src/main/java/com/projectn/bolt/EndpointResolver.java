@@ -0,0 +1,149 @@
+package com.projectn.bolt;
+
+import okhttp3.ConnectionPool;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * EndpointResolver resolves the Bolt service url configured via the 'BOLT_URL' environment variable.
+ *
+ * If 'BOLT_URL' contains a '{region}' placeholder, the deployment region of the function is looked up once
+ * from the metadata server and the resolved url is cached for the lifetime of the function instance.
+ * The metadata server host can be overridden via the 'GCE_METADATA_HOST' environment variable
+ * (e.g. "localhost:8081"), so that a local metadata stub can be used outside of GCP.
+ */
+final class EndpointResolver {
+
+    private static final String DEFAULT_METADATA_HOST = "metadata.google.internal";
+    private static final String ZONE_PATH = "/computeMetadata/v1/instance/zone";
+    private static final String REGION_PLACEHOLDER = "{region}";
+
+    private static final Object lock = new Object();
+    private static volatile Resolution resolution;
+
+    private EndpointResolver() {
+    }
+
+    /**
+     * Returns the resolved Bolt service url, resolving it on first use.
+     * @return resolution of the Bolt service url
+     * @throws IOException if the region could not be retrieved from the metadata server
+     */
+    static Resolution resolve() throws IOException {
+        Resolution resolved = resolution;
+        if (resolved != null) {
+            return resolved.cachedCopy();
+        }
+        synchronized (lock) {
+            if (resolution == null) {
+                long start = System.nanoTime();
+                String boltUrl = System.getenv("BOLT_URL");
+                if (boltUrl == null || boltUrl.isEmpty()) {
+                    throw new IllegalStateException("BOLT_URL environment variable is not set");
+                }
+                String region = null;
+                if (boltUrl.contains(REGION_PLACEHOLDER)) {
+                    region = fetchRegion();
+                    boltUrl = boltUrl.replace(REGION_PLACEHOLDER, region);
+                }
+                resolution = new Resolution(boltUrl, region, System.nanoTime() - start, false);
+                return resolution;
+            }
+            return resolution.cachedCopy();
+        }
+    }
+
+    /**
+     * Get deployment region of the function, as reported by the metadata server.
+     * @return region
+     * @throws IOException
+     */
+    static String region() throws IOException {
+        Resolution resolved = resolve();
+        return resolved.region() != null ? resolved.region() : fetchRegion();
+    }
+
+    private static String fetchRegion() throws IOException {
+        String metadataHost = System.getenv("GCE_METADATA_HOST");
+        if (metadataHost == null || metadataHost.isEmpty()) {
+            metadataHost = DEFAULT_METADATA_HOST;
+        }
+
+        Request request = new Request.Builder()
+                .url("http://" + metadataHost + ZONE_PATH)
+                .addHeader("Metadata-Flavor", "Google")
+                .get()
+                .build();
+
+        try (Response response = Http.client.newCall(request).execute()) {
+            ResponseBody body = response.body();
+            if (!response.isSuccessful() || body == null) {
+                throw new IOException("Metadata server returned " + response.code() + " for " + ZONE_PATH);
+            }
+            String zoneMd = body.string();
+            String zone = zoneMd.substring(zoneMd.lastIndexOf("/") + 1);
+            return zone.substring(0, zone.lastIndexOf("-"));
+        }
+    }
+
+    /**
+     * Resolution is a resolved Bolt service url and how long it took to resolve it.
+     */
+    static final class Resolution {
+        private final String boltUrl;
+        private final String region;
+        private final long resolveNanos;
+        private final boolean cached;
+
+        private Resolution(String boltUrl, String region, long resolveNanos, boolean cached) {
+            this.boltUrl = boltUrl;
+            this.region = region;
+            this.resolveNanos = resolveNanos;
+            this.cached = cached;
+        }
+
+        private Resolution cachedCopy() {
+            return new Resolution(boltUrl, region, resolveNanos, true);
+        }
+
+        String boltUrl() {
+            return boltUrl;
+        }
+
+        // null if 'BOLT_URL' has no region placeholder.
+        String region() {
+            return region;
+        }
+
+        boolean cached() {
+            return cached;
+        }
+
+        double resolveMillis() {
+            return resolveNanos / 1e6;
+        }
+
+        /**
+         * Returns a header friendly description, e.g. "cached=true;resolve=12.530ms"
+         */
+        String describe() {
+            return String.format("cached=%s;resolve=%.3fms", cached, resolveMillis());
+        }
+    }
+
+    // Holds the metadata server client, so that OkHttp is only loaded if BOLT_URL contains a placeholder.
+    private static final class Http {
+        // One connection pool shared by all metadata server calls.
+        private static final OkHttpClient client = new OkHttpClient.Builder()
+                .connectionPool(new ConnectionPool(1, 5, TimeUnit.MINUTES))
+                .connectTimeout(500, TimeUnit.MILLISECONDS)
+                .readTimeout(500, TimeUnit.MILLISECONDS)
+                .writeTimeout(500, TimeUnit.MILLISECONDS)
+                .build();
+    }
+}
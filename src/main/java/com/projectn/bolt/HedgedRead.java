@@ -0,0 +1,178 @@
+package com.projectn.bolt;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * HedgedRead sends a read to Bolt and, if Bolt has not answered after a delay, sends the same read to GS.
+ * The first successful answer is used and the other read is cancelled. If the Bolt read fails before the delay,
+ * the read is sent to GS right away.
+ *
+ * Unless given by the caller, the delay adapts to the observed p95 latency of Bolt reads of the same operation,
+ * so that only the slowest ~5% of reads are hedged. A Bolt read cancelled because GS answered first is recorded
+ * with the time it had taken until then, a lower bound of its latency: leaving out the slow reads would lower the
+ * p95, hedge more reads, and so hide ever more of them.
+ */
+final class HedgedRead {
+
+    // Delay used until Bolt latencies of the operation have been observed.
+    static final long DEFAULT_DELAY_MS = 100;
+    // Bounds of the adaptive delay.
+    private static final double MIN_DELAY_MS = 2;
+    private static final double MAX_DELAY_MS = 5_000;
+    private static final double DELAY_PERCENTILE = 95;
+    // Histogram (LatencyHistograms) endpoint under which the latency of each leg is recorded.
+    private static final String LEG = "-LEG";
+
+    private static final AtomicLong reads = new AtomicLong();
+    private static final AtomicLong hedged = new AtomicLong();
+    private static final AtomicLong boltFailures = new AtomicLong();
+    private static final AtomicLong gsWins = new AtomicLong();
+
+    private HedgedRead() {
+    }
+
+    /**
+     * Returns the delay after which reads of the given operation are hedged: the p95 latency of the Bolt
+     * reads of this operation seen by this instance, or DEFAULT_DELAY_MS if there are none yet.
+     */
+    static double adaptiveDelayMillis(String operation) {
+        double p95 = LatencyHistograms.percentileMillis(operation, BoltGSOpsClient.SdkType.BOLT.name() + LEG,
+                DELAY_PERCENTILE);
+        return p95 < 0 ? DEFAULT_DELAY_MS : Math.max(MIN_DELAY_MS, Math.min(MAX_DELAY_MS, p95));
+    }
+
+    /**
+     * Runs a hedged read.
+     * @param operation operation, e.g. DOWNLOAD_OBJECT, used to record per leg latencies
+     * @param delayMillis time to wait for Bolt before sending the read to GS
+     * @param bolt read from Bolt
+     * @param gs the same read from GS
+     * @return the first successful answer, along with the endpoint that sent it
+     * @throws IOException if both reads fail, the Bolt read's exception
+     */
+    static <T> Outcome<T> read(String operation, double delayMillis, Callable<T> bolt, Callable<T> gs)
+            throws IOException {
+        reads.incrementAndGet();
+        CompletionService<T> completion = new ExecutorCompletionService<>(Workers.io());
+        // set once the Bolt leg's latency is recorded, whether it completed or was cancelled.
+        AtomicBoolean boltRecorded = new AtomicBoolean();
+        long boltStart = System.nanoTime();
+        Future<T> boltFuture = completion.submit(timed(operation, BoltGSOpsClient.SdkType.BOLT, bolt, boltRecorded));
+        Future<T> gsFuture = null;
+        try {
+            Future<T> first = completion.poll((long) (delayMillis * 1000), TimeUnit.MICROSECONDS);
+            if (first != null && succeeded(first)) {
+                return new Outcome<>(first.get(), BoltGSOpsClient.SdkType.BOLT, false, delayMillis);
+            }
+            if (first != null) {
+                boltFailures.incrementAndGet();
+            } else {
+                hedged.incrementAndGet();
+            }
+            gsFuture = completion.submit(timed(operation, BoltGSOpsClient.SdkType.GS, gs, new AtomicBoolean()));
+
+            // Bolt (if still running) and GS race; the first success wins.
+            int pending = first != null ? 1 : 2;
+            while (pending-- > 0) {
+                Future<T> done = completion.take();
+                if (succeeded(done)) {
+                    BoltGSOpsClient.SdkType winner = done == gsFuture ?
+                            BoltGSOpsClient.SdkType.GS : BoltGSOpsClient.SdkType.BOLT;
+                    if (winner == BoltGSOpsClient.SdkType.GS) {
+                        gsWins.incrementAndGet();
+                    }
+                    return new Outcome<>(done.get(), winner, first == null, delayMillis);
+                }
+            }
+            // Both reads failed; report Bolt's failure.
+            return new Outcome<>(Workers.await(boltFuture), BoltGSOpsClient.SdkType.BOLT, first == null,
+                    delayMillis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for hedged read");
+        } catch (ExecutionException e) {
+            // not reached: only successful futures are read.
+            throw new IOException(e.getCause());
+        } finally {
+            if (boltFuture.cancel(true) && boltRecorded.compareAndSet(false, true)) {
+                LatencyHistograms.record(operation, BoltGSOpsClient.SdkType.BOLT.name() + LEG,
+                        System.nanoTime() - boltStart, 0);
+            }
+            if (gsFuture != null) {
+                gsFuture.cancel(true);
+            }
+        }
+    }
+
+    private static boolean succeeded(Future<?> future) throws InterruptedException {
+        try {
+            future.get();
+            return true;
+        } catch (ExecutionException e) {
+            return false;
+        }
+    }
+
+    // Records the latency of a leg that completes, unless it was already recorded as cancelled.
+    private static <T> Callable<T> timed(String operation, BoltGSOpsClient.SdkType sdkType, Callable<T> read,
+                                         AtomicBoolean recorded) {
+        return () -> {
+            long start = System.nanoTime();
+            T result = read.call();
+            if (recorded.compareAndSet(false, true)) {
+                LatencyHistograms.record(operation, sdkType.name() + LEG, System.nanoTime() - start, 0);
+            }
+            return result;
+        };
+    }
+
+    /**
+     * Returns a header friendly summary of the hedging counters,
+     * e.g. "reads=100;hedged=6;bolt-failures=1;gs-wins=4"
+     */
+    static String describe() {
+        return String.format("reads=%d;hedged=%d;bolt-failures=%d;gs-wins=%d",
+                reads.get(), hedged.get(), boltFailures.get(), gsWins.get());
+    }
+
+    /**
+     * Outcome is the answer of a hedged read and how it was obtained.
+     */
+    static final class Outcome<T> {
+        private final T value;
+        private final BoltGSOpsClient.SdkType winner;
+        private final boolean hedged;
+        private final double delayMillis;
+
+        private Outcome(T value, BoltGSOpsClient.SdkType winner, boolean hedged, double delayMillis) {
+            this.value = value;
+            this.winner = winner;
+            this.hedged = hedged;
+            this.delayMillis = delayMillis;
+        }
+
+        T value() {
+            return value;
+        }
+
+        BoltGSOpsClient.SdkType winner() {
+            return winner;
+        }
+
+        /**
+         * Returns a header friendly description, e.g. "winner=GS;hedged=true;delay=42.000ms"
+         */
+        String describe() {
+            return String.format("winner=%s;hedged=%s;delay=%.3fms", winner, hedged, delayMillis);
+        }
+    }
+}
@@ -0,0 +1,168 @@
+package com.projectn.bolt;
+
+import com.google.api.gax.paging.Page;
+import com.google.cloud.storage.Blob;
+import com.google.cloud.storage.Storage;
+
+import java.util.Base64;
+import java.util.Iterator;
+import java.util.List;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * KeyCursor iterates over the objects of a bulk request - either all objects under a prefix, listed one
+ * page at a time, or an explicit list of keys - and can be resumed from an opaque resume token.
+ *
+ * A resume token returned by resumeToken() points at the next object that has not been returned by next(),
+ * so a request that stops early can be continued by a later invocation without skipping or repeating objects.
+ */
+final class KeyCursor {
+
+    static final int DEFAULT_PAGE_SIZE = 1000;
+
+    private static final String PREFIX_TOKEN = "p";
+    private static final String KEYS_TOKEN = "k";
+
+    // Listing state (prefix mode).
+    private final Storage storage;
+    private final String bucketName;
+    private final String prefix;
+    private final int pageSize;
+    private String pageToken;
+    private Iterator<Blob> page;
+    private String nextPageToken;
+
+    // Key list state.
+    private final List<String> keys;
+
+    // Index of the next object within the current page (prefix mode) or key list.
+    private int index;
+
+    private KeyCursor(Storage storage, String bucketName, String prefix, int pageSize, List<String> keys) {
+        this.storage = storage;
+        this.bucketName = bucketName;
+        this.prefix = prefix;
+        this.pageSize = pageSize;
+        this.keys = keys;
+    }
+
+    /**
+     * Returns a cursor over all objects under the given prefix.
+     * @param storage Storage service object of the endpoint to list objects from
+     * @param bucketName bucket name
+     * @param prefix key prefix. An empty prefix lists the whole bucket.
+     * @param pageSize number of objects listed per request
+     * @param resumeToken token returned by a previous request, or null to start from the beginning
+     */
+    static KeyCursor forPrefix(Storage storage, String bucketName, String prefix, int pageSize, String resumeToken) {
+        KeyCursor cursor = new KeyCursor(storage, bucketName, prefix, pageSize, null);
+        if (resumeToken != null) {
+            String[] parts = decode(resumeToken, PREFIX_TOKEN);
+            cursor.index = Integer.parseInt(parts[1]);
+            cursor.pageToken = parts.length > 2 ? parts[2] : null;
+        }
+        return cursor;
+    }
+
+    /**
+     * Returns a cursor over the given keys.
+     * @param keys key names
+     * @param resumeToken token returned by a previous request, or null to start from the beginning
+     */
+    static KeyCursor forKeys(List<String> keys, String resumeToken) {
+        KeyCursor cursor = new KeyCursor(null, null, null, 0, keys);
+        if (resumeToken != null) {
+            cursor.index = Integer.parseInt(decode(resumeToken, KEYS_TOKEN)[1]);
+        }
+        return cursor;
+    }
+
+    /**
+     * Returns the next object, or null once all objects have been returned.
+     */
+    Entry next() {
+        if (keys != null) {
+            return index < keys.size() ? new Entry(keys.get(index++), null) : null;
+        }
+
+        while (true) {
+            if (page == null) {
+                Page<Blob> blobs = storage.list(bucketName, listOptions());
+                page = blobs.getValues().iterator();
+                nextPageToken = blobs.getNextPageToken();
+                // skip the objects of this page returned before the cursor was resumed.
+                for (int i = 0; i < index && page.hasNext(); i++) {
+                    page.next();
+                }
+            }
+            if (page.hasNext()) {
+                index++;
+                Blob blob = page.next();
+                return new Entry(blob.getName(), blob);
+            }
+            if (nextPageToken == null || nextPageToken.isEmpty()) {
+                return null;
+            }
+            pageToken = nextPageToken;
+            page = null;
+            index = 0;
+        }
+    }
+
+    /**
+     * Returns a token to resume at the next object not yet returned by next(), or null if there is none.
+     */
+    String resumeToken() {
+        if (keys != null) {
+            return index < keys.size() ? encode(KEYS_TOKEN, String.valueOf(index)) : null;
+        }
+        if (page != null && !page.hasNext() && (nextPageToken == null || nextPageToken.isEmpty())) {
+            return null;
+        }
+        if (page != null && !page.hasNext()) {
+            return encode(PREFIX_TOKEN, "0", nextPageToken);
+        }
+        return pageToken != null ?
+                encode(PREFIX_TOKEN, String.valueOf(index), pageToken) :
+                encode(PREFIX_TOKEN, String.valueOf(index));
+    }
+
+    private Storage.BlobListOption[] listOptions() {
+        Storage.BlobListOption size = Storage.BlobListOption.pageSize(pageSize);
+        Storage.BlobListOption prefixOption = Storage.BlobListOption.prefix(prefix == null ? "" : prefix);
+        return pageToken != null ?
+                new Storage.BlobListOption[] {size, prefixOption, Storage.BlobListOption.pageToken(pageToken)} :
+                new Storage.BlobListOption[] {size, prefixOption};
+    }
+
+    private static String encode(String... parts) {
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(String.join(":", parts).getBytes(UTF_8));
+    }
+
+    private static String[] decode(String token, String expectedType) {
+        String[] parts;
+        try {
+            parts = new String(Base64.getUrlDecoder().decode(token), UTF_8).split(":", 3);
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Invalid resumeToken: " + token);
+        }
+        if (parts.length < 2 || !parts[0].equals(expectedType)) {
+            throw new IllegalArgumentException("resumeToken does not belong to this kind of request: " + token);
+        }
+        return parts;
+    }
+
+    /**
+     * Entry is an object returned by the cursor: its key and, if it was listed, its listed metadata.
+     */
+    static final class Entry {
+        final String key;
+        final Blob listed;
+
+        private Entry(String key, Blob listed) {
+            this.key = key;
+            this.listed = listed;
+        }
+    }
+}
@@ -0,0 +1,140 @@
+package com.projectn.bolt;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * LatencyHistograms keeps in-memory latency histograms per operation and endpoint for the lifetime of a
+ * function instance, along with request and byte counts from which throughput is derived.
+ *
+ * Histograms are log-linear: every power of two (in microseconds) is split into SUB_BUCKETS buckets, so
+ * reported percentiles are accurate to within ~1/SUB_BUCKETS of their value while using a fixed, small
+ * amount of memory regardless of the number of requests.
+ */
+final class LatencyHistograms {
+
+    private static final ConcurrentHashMap<String, Histogram> histograms = new ConcurrentHashMap<>();
+
+    private LatencyHistograms() {
+    }
+
+    /**
+     * Records a request.
+     * @param operation operation, e.g. DOWNLOAD_OBJECT
+     * @param endpoint endpoint the request was sent to, e.g. BOLT
+     * @param nanos latency of the request
+     * @param bytes bytes transferred by the request
+     */
+    static void record(String operation, String endpoint, long nanos, long bytes) {
+        histograms.computeIfAbsent(operation + " " + endpoint, k -> new Histogram()).record(nanos, bytes);
+    }
+
+    /**
+     * Returns the given percentile (0-100) of an operation's latency in milliseconds, or -1 if no request
+     * of the operation has been recorded.
+     */
+    static double percentileMillis(String operation, String endpoint, double percentile) {
+        Histogram histogram = histograms.get(operation + " " + endpoint);
+        return histogram != null && histogram.count.get() > 0 ? histogram.percentileMicros(percentile) / 1e3 : -1;
+    }
+
+    /**
+     * Writes one line per operation and endpoint with its count, latency percentiles and throughput:
+     * requests per second over the lifetime of the instance, and MB per second while serving requests.
+     */
+    static void write(BufferedWriter writer) throws IOException {
+        for (Map.Entry<String, Histogram> entry : new TreeMap<>(histograms).entrySet()) {
+            writer.write(entry.getKey() + ": " + entry.getValue().summary());
+            writer.newLine();
+        }
+    }
+
+    /**
+     * Removes all recorded requests.
+     */
+    static void reset() {
+        histograms.clear();
+    }
+
+    static final class Histogram {
+        private static final int SUB_BUCKETS = 16;
+        // Covers 1us .. 2^40us (~12 days).
+        private static final int MAGNITUDES = 40;
+
+        private final AtomicLongArray buckets = new AtomicLongArray(MAGNITUDES * SUB_BUCKETS);
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong totalMicros = new AtomicLong();
+        private final AtomicLong maxMicros = new AtomicLong();
+        private final AtomicLong bytes = new AtomicLong();
+        private final long createdNanos = System.nanoTime();
+
+        void record(long nanos, long bytesTransferred) {
+            long micros = Math.max(1, nanos / 1000);
+            buckets.incrementAndGet(bucket(micros));
+            count.incrementAndGet();
+            totalMicros.addAndGet(micros);
+            maxMicros.accumulateAndGet(micros, Math::max);
+            bytes.addAndGet(bytesTransferred);
+        }
+
+        private static int bucket(long micros) {
+            int magnitude = 63 - Long.numberOfLeadingZeros(micros);
+            if (magnitude >= MAGNITUDES) {
+                return MAGNITUDES * SUB_BUCKETS - 1;
+            }
+            // position within [2^magnitude, 2^(magnitude+1))
+            long base = 1L << magnitude;
+            int sub = (int) ((micros - base) * SUB_BUCKETS / base);
+            return magnitude * SUB_BUCKETS + sub;
+        }
+
+        // Upper bound of a bucket, in microseconds.
+        private static double upperBound(int bucket) {
+            int magnitude = bucket / SUB_BUCKETS;
+            int sub = bucket % SUB_BUCKETS;
+            double base = Math.pow(2, magnitude);
+            return base + base * (sub + 1) / SUB_BUCKETS;
+        }
+
+        long count() {
+            return count.get();
+        }
+
+        long bytes() {
+            return bytes.get();
+        }
+
+        double maxMillis() {
+            return maxMicros.get() / 1e3;
+        }
+
+        double percentileMicros(double percentile) {
+            long total = count.get();
+            long rank = (long) Math.ceil(total * percentile / 100.0);
+            long seen = 0;
+            for (int i = 0; i < buckets.length(); i++) {
+                seen += buckets.get(i);
+                if (seen >= rank && seen > 0) {
+                    return Math.min(upperBound(i), maxMicros.get());
+                }
+            }
+            return maxMicros.get();
+        }
+
+        String summary() {
+            long requests = count.get();
+            double seconds = (System.nanoTime() - createdNanos) / 1e9;
+            return String.format("count=%d p50=%.3fms p90=%.3fms p99=%.3fms max=%.3fms mean=%.3fms " +
+                            "requests-per-second=%.2f bytes=%d MBps=%.3f",
+                    requests, percentileMicros(50) / 1e3, percentileMicros(90) / 1e3, percentileMicros(99) / 1e3,
+                    maxMicros.get() / 1e3, requests > 0 ? totalMicros.get() / 1e3 / requests : 0,
+                    requests / seconds, bytes.get(),
+                    totalMicros.get() > 0 ? (double) bytes.get() / totalMicros.get() : 0);
+        }
+    }
+}
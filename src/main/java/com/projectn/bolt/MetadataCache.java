@@ -0,0 +1,183 @@
+package com.projectn.bolt;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * MetadataCache is a process-wide LRU cache of object and bucket metadata, shared by the requests served by
+ * a warm function instance.
+ *
+ * Entries are keyed by endpoint (sdkType), bucket and object, expire after a TTL, and the least recently used
+ * entries are evicted once the cache holds more than its maximum number of entries. Writes and deletes made
+ * through this function invalidate the affected entries. A value fetched while its object was being written or
+ * deleted is not cached: put() only accepts a value if the object has not been invalidated since the caller read
+ * its epoch() before fetching it. TTL and size are configured via the
+ * 'METADATA_CACHE_TTL_MS' and 'METADATA_CACHE_SIZE' environment variables; a size of 0 disables the cache.
+ */
+final class MetadataCache {
+
+    private static final long DEFAULT_TTL_MS = 30_000;
+    private static final int DEFAULT_SIZE = 1000;
+    // Number of invalidation epochs; objects (and buckets) share them by hash.
+    private static final int EPOCH_STRIPES = 256;
+
+    private static final long ttlNanos =
+            TimeUnit.MILLISECONDS.toNanos(envLong("METADATA_CACHE_TTL_MS", DEFAULT_TTL_MS));
+    private static final int maxSize = (int) envLong("METADATA_CACHE_SIZE", DEFAULT_SIZE);
+
+    private static final AtomicLong hits = new AtomicLong();
+    private static final AtomicLong misses = new AtomicLong();
+    private static final AtomicLong revalidations = new AtomicLong();
+    private static final AtomicLong evictions = new AtomicLong();
+    private static final AtomicLong staleWrites = new AtomicLong();
+
+    // Invalidation count per stripe of objects (or buckets), i.e. the epoch of the values fetched meanwhile.
+    private static final AtomicLongArray epochs = new AtomicLongArray(EPOCH_STRIPES);
+
+    // Access ordered, i.e. iteration starts at the least recently used entry.
+    private static final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+            if (size() > maxSize) {
+                evictions.incrementAndGet();
+                return true;
+            }
+            return false;
+        }
+    };
+
+    private MetadataCache() {
+    }
+
+    /**
+     * Returns the cache key of an object's metadata.
+     */
+    static String objectKey(BoltGSOpsClient.SdkType sdkType, String bucketName, String objectName) {
+        return "o\n" + endpoint(sdkType) + "\n" + bucketName + "\n" + objectName + "\n";
+    }
+
+    /**
+     * Returns the cache key of a bucket's metadata.
+     */
+    static String bucketKey(BoltGSOpsClient.SdkType sdkType, String bucketName) {
+        return "b\n" + endpoint(sdkType) + "\n" + bucketName + "\n";
+    }
+
+    /**
+     * Returns the cached value for key, or null if there is none or it has expired.
+     */
+    static <T> T get(String key, Class<T> type) {
+        synchronized (entries) {
+            Entry entry = entries.get(key);
+            if (entry != null && System.nanoTime() - entry.cachedAt > ttlNanos) {
+                entries.remove(key);
+                entry = null;
+            }
+            if (entry == null) {
+                misses.incrementAndGet();
+                return null;
+            }
+            hits.incrementAndGet();
+            return type.cast(entry.value);
+        }
+    }
+
+    /**
+     * Returns the invalidation epoch of the object (or bucket) of the given key. Read it before fetching the
+     * value to cache, and pass it to put().
+     */
+    static long epoch(String key) {
+        return epochs.get(stripe(key));
+    }
+
+    /**
+     * Caches a value, unless its object (or bucket) was invalidated since the given epoch was read, i.e. the
+     * value may predate a write or delete.
+     */
+    static void put(String key, Object value, long epoch) {
+        if (maxSize <= 0 || value == null) {
+            return;
+        }
+        synchronized (entries) {
+            if (epochs.get(stripe(key)) != epoch) {
+                staleWrites.incrementAndGet();
+                return;
+            }
+            entries.put(key, new Entry(value, System.nanoTime()));
+        }
+    }
+
+    /**
+     * Counts a cached value that had to be fetched again because the object changed since it was cached.
+     */
+    static void revalidated() {
+        revalidations.incrementAndGet();
+    }
+
+    /**
+     * Removes every cached entry of the given key and of the keys it is a prefix of, e.g. all entries
+     * of an object.
+     */
+    static void invalidate(String keyPrefix) {
+        synchronized (entries) {
+            epochs.incrementAndGet(stripe(keyPrefix));
+            Iterator<String> keys = entries.keySet().iterator();
+            while (keys.hasNext()) {
+                if (keys.next().startsWith(keyPrefix)) {
+                    keys.remove();
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns a header friendly summary of the cache counters,
+     * e.g. "hits=10;misses=2;revalidations=1;evictions=0;stale-writes=0;size=2"
+     */
+    static String describe() {
+        int size;
+        synchronized (entries) {
+            size = entries.size();
+        }
+        return String.format("hits=%d;misses=%d;revalidations=%d;evictions=%d;stale-writes=%d;size=%d",
+                hits.get(), misses.get(), revalidations.get(), evictions.get(), staleWrites.get(), size);
+    }
+
+    private static String endpoint(BoltGSOpsClient.SdkType sdkType) {
+        return sdkType == null ? BoltGSOpsClient.SdkType.GS.name() : sdkType.name();
+    }
+
+    // Stripe of the object (or bucket) of a key: the key up to and including the object (or bucket) name.
+    private static int stripe(String key) {
+        int names = key.startsWith("o\n") ? 4 : 3;
+        int end = -1;
+        for (int i = 0; i < names; i++) {
+            int next = key.indexOf('\n', end + 1);
+            if (next < 0) {
+                end = key.length() - 1;
+                break;
+            }
+            end = next;
+        }
+        return (key.substring(0, end + 1).hashCode() & Integer.MAX_VALUE) % EPOCH_STRIPES;
+    }
+
+    private static long envLong(String name, long defaultValue) {
+        String value = System.getenv(name);
+        return value != null && !value.isEmpty() ? Long.parseLong(value) : defaultValue;
+    }
+
+    private static final class Entry {
+        private final Object value;
+        private final long cachedAt;
+
+        private Entry(Object value, long cachedAt) {
+            this.value = value;
+            this.cachedAt = cachedAt;
+        }
+    }
+}
@@ -0,0 +1,206 @@
+package com.projectn.bolt;
+
+import com.google.cloud.FieldSelector;
+import com.google.cloud.storage.Blob;
+import com.google.cloud.storage.Bucket;
+import com.google.cloud.storage.Storage.BlobField;
+import com.google.cloud.storage.Storage.BucketField;
+import com.google.gson.JsonElement;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * MetadataFields maps caller supplied field names onto Storage.BlobField / Storage.BucketField values, and
+ * reads those fields from a Blob / Bucket. Field names are matched case insensitively against the JSON API
+ * name (e.g. "md5Hash") or the enum name (e.g. "MD5HASH").
+ */
+final class MetadataFields {
+
+    // Object fields that can be requested by callers.
+    static final Set<BlobField> BLOB_FIELDS = EnumSet.of(
+            BlobField.NAME, BlobField.BUCKET, BlobField.SIZE, BlobField.CONTENT_TYPE, BlobField.CONTENT_ENCODING,
+            BlobField.CACHE_CONTROL, BlobField.ETAG, BlobField.MD5HASH, BlobField.CRC32C, BlobField.GENERATION,
+            BlobField.METAGENERATION, BlobField.STORAGE_CLASS, BlobField.TIME_CREATED, BlobField.UPDATED,
+            BlobField.RETENTION_EXPIRATION_TIME, BlobField.COMPONENT_COUNT, BlobField.METADATA);
+
+    // Bucket fields that can be requested by callers.
+    static final Set<BucketField> BUCKET_FIELDS = EnumSet.of(
+            BucketField.ID, BucketField.NAME, BucketField.LOCATION, BucketField.LOCATION_TYPE,
+            BucketField.STORAGE_CLASS, BucketField.VERSIONING, BucketField.METAGENERATION, BucketField.ETAG,
+            BucketField.TIME_CREATED, BucketField.UPDATED, BucketField.LABELS);
+
+    private MetadataFields() {
+    }
+
+    /**
+     * Parses a list of object field names, given either as a JSON array or as a comma separated string.
+     * @param fields field names
+     * @return requested fields, in the order given
+     * @throws IllegalArgumentException if a field is unknown or not supported
+     */
+    static List<BlobField> parseBlobFields(JsonElement fields) {
+        return parse(fields, BLOB_FIELDS, "object");
+    }
+
+    /**
+     * Parses a list of bucket field names, given either as a JSON array or as a comma separated string.
+     * @param fields field names
+     * @return requested fields, in the order given
+     * @throws IllegalArgumentException if a field is unknown or not supported
+     */
+    static List<BucketField> parseBucketFields(JsonElement fields) {
+        return parse(fields, BUCKET_FIELDS, "bucket");
+    }
+
+    private static <F extends Enum<F> & FieldSelector> List<F> parse(JsonElement fields, Set<F> supported,
+                                                                     String kind) {
+        List<String> names = new ArrayList<>();
+        if (fields.isJsonArray()) {
+            for (JsonElement field : fields.getAsJsonArray()) {
+                names.add(field.getAsString());
+            }
+        } else {
+            for (String field : fields.getAsString().split(",")) {
+                if (!field.trim().isEmpty()) {
+                    names.add(field.trim());
+                }
+            }
+        }
+
+        List<F> parsed = new ArrayList<>();
+        for (String name : names) {
+            F field = supported.stream()
+                    .filter(f -> f.getSelector().equalsIgnoreCase(name) || f.name().equalsIgnoreCase(name))
+                    .findFirst()
+                    .orElseThrow(() -> new IllegalArgumentException("Unsupported " + kind + " field: " + name));
+            if (!parsed.contains(field)) {
+                parsed.add(field);
+            }
+        }
+        return parsed;
+    }
+
+    /**
+     * Returns the given fields plus 'required', for use with Storage.BlobGetOption/BlobListOption.fields(...).
+     */
+    static BlobField[] with(List<BlobField> fields, BlobField... required) {
+        EnumSet<BlobField> all = EnumSet.noneOf(BlobField.class);
+        all.addAll(fields);
+        for (BlobField field : required) {
+            all.add(field);
+        }
+        return all.toArray(new BlobField[0]);
+    }
+
+    /**
+     * Returns the given fields plus 'required', for use with Storage.BucketGetOption.fields(...).
+     */
+    static BucketField[] with(List<BucketField> fields, BucketField... required) {
+        EnumSet<BucketField> all = EnumSet.noneOf(BucketField.class);
+        all.addAll(fields);
+        for (BucketField field : required) {
+            all.add(field);
+        }
+        return all.toArray(new BucketField[0]);
+    }
+
+    /**
+     * Returns a stable suffix that identifies a field selection, e.g. for use in cache keys.
+     */
+    static String key(List<? extends Enum<?>> fields) {
+        StringBuilder key = new StringBuilder();
+        fields.stream().map(Enum::name).sorted().forEach(name -> key.append(name).append(','));
+        return key.toString();
+    }
+
+    /**
+     * Returns the name under which a field is reported, i.e. its JSON API name.
+     */
+    static String label(FieldSelector field) {
+        return field.getSelector();
+    }
+
+    /**
+     * Returns the value of a field of the given object, formatted for output.
+     */
+    static String value(Blob blob, BlobField field) {
+        switch (field) {
+            case NAME:
+                return blob.getName();
+            case BUCKET:
+                return blob.getBucket();
+            case SIZE:
+                return String.valueOf(blob.getSize());
+            case CONTENT_TYPE:
+                return blob.getContentType();
+            case CONTENT_ENCODING:
+                return blob.getContentEncoding();
+            case CACHE_CONTROL:
+                return blob.getCacheControl();
+            case ETAG:
+                return blob.getEtag();
+            case MD5HASH:
+                return blob.getMd5();
+            case CRC32C:
+                return blob.getCrc32c();
+            case GENERATION:
+                return String.valueOf(blob.getGeneration());
+            case METAGENERATION:
+                return String.valueOf(blob.getMetageneration());
+            case STORAGE_CLASS:
+                return String.valueOf(blob.getStorageClass());
+            case TIME_CREATED:
+                return date(blob.getCreateTime());
+            case UPDATED:
+                return date(blob.getUpdateTime());
+            case RETENTION_EXPIRATION_TIME:
+                return date(blob.getRetentionExpirationTime());
+            case COMPONENT_COUNT:
+                return String.valueOf(blob.getComponentCount());
+            case METADATA:
+                return String.valueOf(blob.getMetadata());
+            default:
+                throw new IllegalArgumentException("Unsupported object field: " + field.getSelector());
+        }
+    }
+
+    /**
+     * Returns the value of a field of the given bucket, formatted for output.
+     */
+    static String value(Bucket bucket, BucketField field) {
+        switch (field) {
+            case ID:
+                return bucket.getGeneratedId();
+            case NAME:
+                return bucket.getName();
+            case LOCATION:
+                return bucket.getLocation();
+            case LOCATION_TYPE:
+                return bucket.getLocationType();
+            case STORAGE_CLASS:
+                return String.valueOf(bucket.getStorageClass());
+            case VERSIONING:
+                return String.valueOf(bucket.versioningEnabled());
+            case METAGENERATION:
+                return String.valueOf(bucket.getMetageneration());
+            case ETAG:
+                return bucket.getEtag();
+            case TIME_CREATED:
+                return date(bucket.getCreateTime());
+            case UPDATED:
+                return date(bucket.getUpdateTime());
+            case LABELS:
+                return String.valueOf(bucket.getLabels());
+            default:
+                throw new IllegalArgumentException("Unsupported bucket field: " + field.getSelector());
+        }
+    }
+
+    private static String date(Long millis) {
+        return millis != null ? new Date(millis).toString() : "null";
+    }
+}
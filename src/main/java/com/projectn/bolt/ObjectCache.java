@@ -0,0 +1,354 @@
+package com.projectn.bolt;
+
+import com.google.cloud.storage.Blob;
+
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * ObjectCache is a read-through cache of object content on the function instance's local filesystem, along
+ * with the MD5s computed on that content.
+ *
+ * Entries are keyed by endpoint (sdkType), bucket, object and generation, so an object that is overwritten is
+ * never served stale. Content is stored while it is first downloaded and hashed, read back through memory mapped
+ * files, and the least recently used entries are deleted once the cached content exceeds the byte budget.
+ * Digests (MD5, CRC32C) are memoized per entry, so repeating a digest of an unchanged object reads nothing at all.
+ *
+ * The cache is opt-in: it is enabled by setting the byte budget, 'OBJECT_CACHE_BYTES' (default 0, disabled), and
+ * its directory is 'OBJECT_CACHE_DIR' (default: a directory under java.io.tmpdir). Note that the tmp filesystem of
+ * Cloud Functions is held in memory and counts against the function's memory limit, so the budget must leave room
+ * for the function itself. Only the cache's own files ('*.obj', 'fill*.tmp') are ever deleted from the directory.
+ */
+final class ObjectCache {
+
+    // Names of the cache's files: stored objects, and the temporary files they are downloaded to.
+    private static final String FILE_SUFFIX = ".obj";
+    private static final String FILL_PREFIX = "fill";
+    private static final String FILL_SUFFIX = ".tmp";
+    // Entries holding only memoized digests (of objects too large to store) that are kept, at most.
+    private static final int MAX_ENTRIES = 10_000;
+
+    private static final long budget = envLong("OBJECT_CACHE_BYTES", 0);
+    // Objects larger than this are not stored, so one object cannot evict the whole cache.
+    private static final long maxObjectSize = Math.min(budget / 4, Integer.MAX_VALUE);
+    private static final Path directory = Paths.get(System.getenv("OBJECT_CACHE_DIR") != null ?
+            System.getenv("OBJECT_CACHE_DIR") :
+            System.getProperty("java.io.tmpdir") + File.separator + "bolt-object-cache");
+
+    private static final AtomicLong digestHits = new AtomicLong();
+    private static final AtomicLong fileHits = new AtomicLong();
+    private static final AtomicLong misses = new AtomicLong();
+    private static final AtomicLong evictions = new AtomicLong();
+
+    // Access ordered, i.e. iteration starts at the least recently used entry. Guarded by itself.
+    private static final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private static long cachedBytes;
+
+    static {
+        if (budget > 0) {
+            // Files left by a previous instance are not accounted for, start afresh.
+            deleteFiles();
+        }
+    }
+
+    private ObjectCache() {
+    }
+
+    /**
+     * Returns the MD5 hash of the object, from the memoized digests if the object was hashed before, from the
+     * cached content if it is stored, and otherwise by downloading it from the endpoint (storing it on the way).
+     * @param sdkType endpoint the object is read from
+     * @param source source of the object
+     * @param gunzip if true, the object is decompressed before computing its MD5.
+     * @param timer timer of the request, or null
+     * @return md5 hash of the (decompressed) object
+     * @throws IOException
+     */
+    static String md5(BoltGSOpsClient.SdkType sdkType, ObjectSource source, boolean gunzip, RequestTimer timer)
+            throws IOException {
+        return digest(sdkType, source, gunzip, ObjectDigests.Algorithm.MD5, timer);
+    }
+
+    /**
+     * Returns the digest of the object, as md5() does for MD5s.
+     * @param sdkType endpoint the object is read from
+     * @param source source of the object
+     * @param gunzip if true, the object is decompressed before computing its digest.
+     * @param algorithm digest to compute
+     * @param timer timer of the request, or null
+     * @return digest of the (decompressed) object
+     * @throws IOException
+     */
+    static String digest(BoltGSOpsClient.SdkType sdkType, ObjectSource source, boolean gunzip,
+                         ObjectDigests.Algorithm algorithm, RequestTimer timer) throws IOException {
+        Blob blob = source.blob();
+        if (budget <= 0 || blob.getGeneration() == null) {
+            return source.digest(gunzip, algorithm, timer);
+        }
+        String key = key(sdkType, blob.getBucket(), blob.getName()) + blob.getGeneration();
+        String digestKey = algorithm + (gunzip ? ":gunzip" : ":raw");
+
+        Entry entry;
+        synchronized (entries) {
+            entry = entries.get(key);
+            if (entry != null && entry.digests.containsKey(digestKey)) {
+                digestHits.incrementAndGet();
+                return entry.digests.get(digestKey);
+            }
+        }
+
+        if (entry != null && entry.path != null) {
+            try {
+                String digest = ObjectDigests.digest(map(entry.path), gunzip, algorithm);
+                fileHits.incrementAndGet();
+                memoize(key, entry, digestKey, digest);
+                return digest;
+            } catch (IOException e) {
+                // evicted meanwhile; read from the endpoint below.
+            }
+        }
+
+        misses.incrementAndGet();
+        Long size = blob.getSize();
+        if (size == null || size > maxObjectSize) {
+            String digest = source.digest(gunzip, algorithm, timer);
+            memoize(key, new Entry(null, 0), digestKey, digest);
+            return digest;
+        }
+        return fill(key, source, size, gunzip, algorithm, digestKey, timer);
+    }
+
+    /**
+     * Removes the cached content and digests of all generations of an object, e.g. after it is overwritten
+     * or deleted through this function.
+     */
+    static void invalidate(BoltGSOpsClient.SdkType sdkType, String bucketName, String objectName) {
+        String prefix = key(sdkType, bucketName, objectName);
+        synchronized (entries) {
+            Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet().iterator();
+            while (iterator.hasNext()) {
+                Map.Entry<String, Entry> next = iterator.next();
+                if (next.getKey().startsWith(prefix)) {
+                    iterator.remove();
+                    release(next.getValue());
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns a header friendly summary of the cache counters,
+     * e.g. "digest-hits=3;file-hits=1;misses=2;evictions=0;bytes=1048576;entries=2"
+     */
+    static String describe() {
+        synchronized (entries) {
+            return String.format("digest-hits=%d;file-hits=%d;misses=%d;evictions=%d;bytes=%d;entries=%d",
+                    digestHits.get(), fileHits.get(), misses.get(), evictions.get(), cachedBytes, entries.size());
+        }
+    }
+
+    // Downloads and hashes the object, writing its raw content to a new cache file.
+    private static String fill(String key, ObjectSource source, long size, boolean gunzip,
+                               ObjectDigests.Algorithm algorithm, String digestKey, RequestTimer timer)
+            throws IOException {
+        Files.createDirectories(directory);
+        Path temp = Files.createTempFile(directory, FILL_PREFIX, FILL_SUFFIX);
+        boolean stored = false;
+        try {
+            String digest;
+            long written;
+            try (OutputStream out = Files.newOutputStream(temp);
+                 TeeInputStream tee = new TeeInputStream(timed(source.open(), timer), out)) {
+                digest = ObjectDigests.digest(new NonClosingInputStream(tee), gunzip, algorithm);
+                // decompression may stop at the gzip trailer; the whole object is stored.
+                tee.drain();
+                written = tee.written;
+            }
+            if (written != size) {
+                // object changed while being read; do not store it.
+                return digest;
+            }
+            Path path = directory.resolve(fileName(key));
+            Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            stored = true;
+            memoize(key, new Entry(path, size), digestKey, digest);
+            return digest;
+        } finally {
+            if (!stored) {
+                Files.deleteIfExists(temp);
+            }
+        }
+    }
+
+    private static InputStream timed(InputStream in, RequestTimer timer) {
+        return timer != null ? timer.time(in) : in;
+    }
+
+    // Adds a digest to the entry, registering the entry (and evicting others to fit the budget) if it is new.
+    private static void memoize(String key, Entry entry, String digestKey, String digest) {
+        synchronized (entries) {
+            Entry current = entries.get(key);
+            if (current == null || (current.path == null && entry.path != null)) {
+                if (current != null) {
+                    entry.digests.putAll(current.digests);
+                }
+                entries.put(key, entry);
+                cachedBytes += entry.size;
+                current = entry;
+            }
+            // else the object was stored concurrently by another request, to the same file.
+            current.digests.put(digestKey, digest);
+            evict();
+        }
+    }
+
+    // Guarded by entries.
+    private static void evict() {
+        Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet().iterator();
+        while ((cachedBytes > budget || entries.size() > MAX_ENTRIES) && iterator.hasNext()) {
+            Entry eldest = iterator.next().getValue();
+            iterator.remove();
+            release(eldest);
+            evictions.incrementAndGet();
+        }
+    }
+
+    // Guarded by entries.
+    private static void release(Entry entry) {
+        cachedBytes -= entry.size;
+        if (entry.path != null) {
+            try {
+                // A concurrent reader's mapping stays valid after the file is deleted.
+                Files.deleteIfExists(entry.path);
+            } catch (IOException e) {
+                // left behind; overwritten if the object is cached again.
+            }
+        }
+    }
+
+    private static MappedByteBuffer map(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+    }
+
+    private static String key(BoltGSOpsClient.SdkType sdkType, String bucketName, String objectName) {
+        return (sdkType == null ? BoltGSOpsClient.SdkType.GS : sdkType) + "\n" + bucketName + "\n" + objectName + "\n";
+    }
+
+    private static String fileName(String key) {
+        return ObjectDigests.hex(ObjectDigests.newMd5().digest(key.getBytes(UTF_8))) + FILE_SUFFIX;
+    }
+
+    // Deletes the cache files, and the fills left unfinished, in the directory; other files are left alone.
+    private static void deleteFiles() {
+        if (!Files.isDirectory(directory)) {
+            return;
+        }
+        try (Stream<Path> files = Files.list(directory)) {
+            files.filter(path -> isCacheFile(path.getFileName().toString()))
+                    .forEach(path -> path.toFile().delete());
+        } catch (IOException e) {
+            // nothing to clean up.
+        }
+    }
+
+    private static boolean isCacheFile(String name) {
+        return name.endsWith(FILE_SUFFIX) || (name.startsWith(FILL_PREFIX) && name.endsWith(FILL_SUFFIX));
+    }
+
+    private static long envLong(String name, long defaultValue) {
+        String value = System.getenv(name);
+        return value != null && !value.isEmpty() ? Long.parseLong(value) : defaultValue;
+    }
+
+    private static final class Entry {
+        // null if only digests are cached.
+        private final Path path;
+        private final long size;
+        // Digests of the object, keyed by algorithm and whether the object was decompressed.
+        private final Map<String, String> digests = new HashMap<>(2);
+
+        private Entry(Path path, long size) {
+            this.path = path;
+            this.size = size;
+        }
+    }
+
+    /**
+     * TeeInputStream copies everything read from a stream to an output stream.
+     */
+    private static final class TeeInputStream extends FilterInputStream {
+        private final OutputStream out;
+        private long written;
+
+        private TeeInputStream(InputStream in, OutputStream out) {
+            super(in);
+            this.out = out;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                out.write(b);
+                written++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) {
+                out.write(b, off, n);
+                written += n;
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            // skipped bytes must be stored too.
+            byte[] buffer = new byte[(int) Math.min(n, 8192)];
+            int read = read(buffer, 0, buffer.length);
+            return Math.max(read, 0);
+        }
+
+        private void drain() throws IOException {
+            byte[] buffer = new byte[ObjectDigests.BUFFER_SIZE];
+            while (read(buffer, 0, buffer.length) >= 0) {
+                // copied by read()
+            }
+        }
+    }
+
+    // Keeps ObjectDigests from closing the tee before it is drained.
+    private static final class NonClosingInputStream extends FilterInputStream {
+        private NonClosingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
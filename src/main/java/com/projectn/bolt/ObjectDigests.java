@@ -0,0 +1,281 @@
+package com.projectn.bolt;
+
+import com.google.cloud.ReadChannel;
+import com.google.cloud.storage.Blob;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+
+/**
+ * ObjectDigests computes MD5 hashes (or CRC32C checksums) of objects as they are read from Bolt/GS.
+ *
+ * Object data is hashed in fixed size chunks as it arrives, so memory use stays constant regardless
+ * of object size. Buffers are allocated once per thread and reused across requests. Gzip encoded objects are
+ * decompressed by ParallelGunzip, in parallel if they consist of BGZF members.
+ */
+final class ObjectDigests {
+
+    // Size of the read buffers.
+    static final int BUFFER_SIZE = 256 * 1024;
+
+    // Size of the chunks requested from the endpoint by a ReadChannel, i.e. bytes fetched per round trip. Larger
+    // than the read buffers, so that an object below RangedDownload's threshold takes at most two requests.
+    static final int READ_CHUNK_SIZE = 8 * 1024 * 1024;
+
+    private static final byte[] HEX_DIGITS = "0123456789ABCDEF".getBytes(StandardCharsets.ISO_8859_1);
+
+    private static final ThreadLocal<ByteBuffer> directBuffers =
+            ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(BUFFER_SIZE));
+    private static final ThreadLocal<byte[]> heapBuffers =
+            ThreadLocal.withInitial(() -> new byte[BUFFER_SIZE]);
+
+    private ObjectDigests() {
+    }
+
+    /**
+     * Indicates if the object must be decompressed before computing its MD5.
+     * @param blob object metadata
+     * @param objectName object name
+     * @return true if the object is gzip encoded or has a .gz extension
+     */
+    static boolean isGzip(Blob blob, String objectName) {
+        String encoding = blob.getContentEncoding();
+        return (encoding != null && encoding.equalsIgnoreCase("gzip")) || objectName.endsWith(".gz");
+    }
+
+    /**
+     * Reads the object from the given channel and returns its MD5 hash (upper case hex string).
+     * @param reader channel to read the object from. The channel is closed once the object is read.
+     * @param gunzip if true, the object is decompressed before computing its MD5.
+     * @return md5 hash of the (decompressed) object
+     * @throws IOException
+     */
+    static String md5(ReadChannel reader, boolean gunzip) throws IOException {
+        return digest(reader, gunzip, Algorithm.MD5);
+    }
+
+    /**
+     * Reads the object from the given stream and returns its MD5 hash (upper case hex string).
+     * @param in stream to read the object from. The stream is closed once the object is read.
+     * @param gunzip if true, the object is decompressed before computing its MD5.
+     * @return md5 hash of the (decompressed) object
+     * @throws IOException
+     */
+    static String md5(InputStream in, boolean gunzip) throws IOException {
+        return digest(in, gunzip, Algorithm.MD5);
+    }
+
+    /**
+     * Returns the MD5 hash (upper case hex string) of an object held in memory, e.g. a memory mapped file.
+     * @param data object content, from its position to its limit
+     * @param gunzip if true, the object is decompressed before computing its MD5.
+     * @return md5 hash of the (decompressed) object
+     * @throws IOException
+     */
+    static String md5(ByteBuffer data, boolean gunzip) throws IOException {
+        return digest(data, gunzip, Algorithm.MD5);
+    }
+
+    /**
+     * Reads the object from the given channel and returns its digest.
+     * @param reader channel to read the object from. The channel is closed once the object is read.
+     * @param gunzip if true, the object is decompressed before computing its digest.
+     * @param algorithm digest to compute
+     * @return digest of the (decompressed) object, formatted as described by the algorithm
+     * @throws IOException
+     */
+    static String digest(ReadChannel reader, boolean gunzip, Algorithm algorithm) throws IOException {
+        reader.setChunkSize(READ_CHUNK_SIZE);
+        if (gunzip) {
+            return digest(Channels.newInputStream(reader), true, algorithm);
+        }
+
+        Accumulator accumulator = algorithm.start();
+        ByteBuffer buffer = directBuffers.get();
+        try (ReadChannel channel = reader) {
+            buffer.clear();
+            while (channel.read(buffer) >= 0) {
+                checkInterrupted();
+                buffer.flip();
+                accumulator.update(buffer);
+                buffer.clear();
+            }
+        }
+        return accumulator.result();
+    }
+
+    /**
+     * Reads the object from the given stream and returns its digest.
+     * @param in stream to read the object from. The stream is closed once the object is read.
+     * @param gunzip if true, the object is decompressed before computing its digest.
+     * @param algorithm digest to compute
+     * @return digest of the (decompressed) object, formatted as described by the algorithm
+     * @throws IOException
+     */
+    static String digest(InputStream in, boolean gunzip, Algorithm algorithm) throws IOException {
+        Accumulator accumulator = algorithm.start();
+        byte[] buffer = heapBuffers.get();
+        try (InputStream stream = gunzip ? ParallelGunzip.open(in) : in) {
+            int len;
+            while ((len = stream.read(buffer)) >= 0) {
+                checkInterrupted();
+                accumulator.update(buffer, 0, len);
+            }
+        }
+        return accumulator.result();
+    }
+
+    /**
+     * Returns the digest of an object held in memory, e.g. a memory mapped file.
+     * @param data object content, from its position to its limit
+     * @param gunzip if true, the object is decompressed before computing its digest.
+     * @param algorithm digest to compute
+     * @return digest of the (decompressed) object, formatted as described by the algorithm
+     * @throws IOException
+     */
+    static String digest(ByteBuffer data, boolean gunzip, Algorithm algorithm) throws IOException {
+        if (gunzip) {
+            return digest(new ByteBufferInputStream(data), true, algorithm);
+        }
+        Accumulator accumulator = algorithm.start();
+        accumulator.update(data);
+        return accumulator.result();
+    }
+
+    // Stops reading an object whose read was cancelled, e.g. the losing read of a HedgedRead.
+    private static void checkInterrupted() throws InterruptedIOException {
+        if (Thread.interrupted()) {
+            throw new InterruptedIOException("Read cancelled");
+        }
+    }
+
+    static MessageDigest newMd5() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            // every Java platform is required to support MD5.
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Returns the upper case hex string of the given bytes.
+     */
+    static String hex(byte[] digest) {
+        byte[] chars = new byte[digest.length * 2];
+        for (int i = 0; i < digest.length; i++) {
+            chars[2 * i] = HEX_DIGITS[(digest[i] >> 4) & 0xf];
+            chars[2 * i + 1] = HEX_DIGITS[digest[i] & 0xf];
+        }
+        return new String(chars, StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * Algorithm is a digest computed on object content.
+     */
+    enum Algorithm {
+        // MD5, formatted as an upper case hex string.
+        MD5 {
+            @Override
+            Accumulator start() {
+                MessageDigest md = newMd5();
+                return new Accumulator() {
+                    @Override
+                    public void update(ByteBuffer data) {
+                        md.update(data);
+                    }
+
+                    @Override
+                    public void update(byte[] data, int offset, int length) {
+                        md.update(data, offset, length);
+                    }
+
+                    @Override
+                    public String result() {
+                        return hex(md.digest());
+                    }
+                };
+            }
+        },
+        // CRC32C (hardware accelerated where available), formatted as the base64 encoded big-endian value,
+        // i.e. as in the crc32c metadata of GS objects.
+        CRC32C {
+            @Override
+            Accumulator start() {
+                java.util.zip.CRC32C crc = new java.util.zip.CRC32C();
+                return new Accumulator() {
+                    @Override
+                    public void update(ByteBuffer data) {
+                        crc.update(data);
+                    }
+
+                    @Override
+                    public void update(byte[] data, int offset, int length) {
+                        crc.update(data, offset, length);
+                    }
+
+                    @Override
+                    public String result() {
+                        return crc32cToBase64(crc.getValue());
+                    }
+                };
+            }
+        };
+
+        abstract Accumulator start();
+    }
+
+    /**
+     * Formats a CRC32C value as in the crc32c metadata of GS objects.
+     */
+    static String crc32cToBase64(long crc) {
+        return Base64.getEncoder().encodeToString(ByteBuffer.allocate(4).putInt((int) crc).array());
+    }
+
+    // A digest being computed.
+    private interface Accumulator {
+        void update(ByteBuffer data);
+
+        void update(byte[] data, int offset, int length);
+
+        String result();
+    }
+
+    /**
+     * ByteBufferInputStream reads the remaining bytes of a buffer.
+     */
+    private static final class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer data;
+
+        private ByteBufferInputStream(ByteBuffer data) {
+            this.data = data;
+        }
+
+        @Override
+        public int read() {
+            return data.hasRemaining() ? data.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (!data.hasRemaining()) {
+                return -1;
+            }
+            int n = Math.min(len, data.remaining());
+            data.get(b, off, n);
+            return n;
+        }
+
+        @Override
+        public int available() {
+            return data.remaining();
+        }
+    }
+}
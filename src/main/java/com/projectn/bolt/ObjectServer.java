@@ -0,0 +1,201 @@
+package com.projectn.bolt;
+
+import com.google.cloud.ReadChannel;
+import com.google.cloud.functions.HttpRequest;
+import com.google.cloud.functions.HttpResponse;
+import com.google.cloud.storage.Blob;
+import com.google.cloud.storage.Storage;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * ObjectServer serves the content of an object, or a byte range of it (HTTP Range semantics), as the body of
+ * the response. Data is copied from the storage ReadChannel to the response's output stream through a per-thread
+ * buffer. The channel fetches at most chunkSize bytes at a time, and the client library holds each fetched chunk in
+ * memory, so a request uses about chunkSize bytes plus the buffer whatever the object or range size. The default
+ * chunk size, DEFAULT_CHUNK_SIZE, is kept small for that reason: a function instance may serve many requests at
+ * once. Only the bytes of the requested range are read from the endpoint.
+ *
+ * The object's stored bytes are served as is: a gzip encoded object is sent with its Content-Encoding.
+ */
+final class ObjectServer {
+
+    // Bytes fetched per request to the endpoint, unless the request sets chunkSize.
+    static final int DEFAULT_CHUNK_SIZE = 2 * 1024 * 1024;
+
+    private static final ThreadLocal<byte[]> buffers =
+            ThreadLocal.withInitial(() -> new byte[ObjectDigests.BUFFER_SIZE]);
+
+    private ObjectServer() {
+    }
+
+    /**
+     * Range is a byte range of an object, resolved against the object's size.
+     */
+    static final class Range {
+        final long offset;
+        final long length;
+        // false if the whole object is served.
+        final boolean partial;
+
+        private Range(long offset, long length, boolean partial) {
+            this.offset = offset;
+            this.length = length;
+            this.partial = partial;
+        }
+    }
+
+    /**
+     * Resolves the requested range against the object size. The range is given by 'offset' and 'length'
+     * parameters or, if neither is set, by the request's Range header (a single "bytes=first-last", "bytes=first-"
+     * or "bytes=-suffix" range).
+     * @return range to serve, or null if the range does not overlap the object (416 Range Not Satisfiable)
+     */
+    static Range range(HttpRequest request, Long offset, Long length, long size) {
+        if (offset == null && length == null) {
+            String header = request.getFirstHeader("Range").orElse(null);
+            if (header == null) {
+                return new Range(0, size, false);
+            }
+            return parseRangeHeader(header, size);
+        }
+        long first = offset != null ? offset : 0;
+        if (first < 0 || (length != null && length < 0)) {
+            throw new IllegalArgumentException("offset and length must not be negative");
+        }
+        if (first >= size && (size > 0 || first > 0)) {
+            return null;
+        }
+        long count = length != null ? Math.min(length, size - first) : size - first;
+        return new Range(first, count, first > 0 || count < size);
+    }
+
+    private static Range parseRangeHeader(String header, long size) {
+        String spec = header.trim();
+        if (!spec.startsWith("bytes=") || spec.indexOf(',') >= 0) {
+            // unsupported units or multiple ranges: the header is ignored, as HTTP allows.
+            return new Range(0, size, false);
+        }
+        spec = spec.substring("bytes=".length()).trim();
+        int dash = spec.indexOf('-');
+        if (dash < 0) {
+            return new Range(0, size, false);
+        }
+        try {
+            String firstText = spec.substring(0, dash).trim();
+            String lastText = spec.substring(dash + 1).trim();
+            if (firstText.isEmpty()) {
+                // suffix range: the last n bytes.
+                long suffix = Long.parseLong(lastText);
+                if (suffix <= 0) {
+                    return null;
+                }
+                long count = Math.min(suffix, size);
+                return new Range(size - count, count, count < size);
+            }
+            long first = Long.parseLong(firstText);
+            long last = lastText.isEmpty() ? size - 1 : Math.min(Long.parseLong(lastText), size - 1);
+            if (first >= size || last < first) {
+                return null;
+            }
+            return new Range(first, last - first + 1, first > 0 || last < size - 1);
+        } catch (NumberFormatException e) {
+            return new Range(0, size, false);
+        }
+    }
+
+    /**
+     * AbortedException is thrown when an object fails after its content has started to be written: the status
+     * and part of the body are sent, so no error can be reported and the response must be aborted.
+     */
+    static final class AbortedException extends IOException {
+        AbortedException(Exception cause) {
+            super("Object transfer aborted: " + cause.getMessage(), cause);
+        }
+    }
+
+    /**
+     * Writes the status, headers and content of the given range of the object to the response. The first bytes
+     * are read before the status and headers are set, so that an object that cannot be read fails before the
+     * response is committed, and its error can still be reported; a failure after that throws AbortedException.
+     * @param storage Storage service object of the endpoint to read from
+     * @param blob object to serve, whose generation is pinned
+     * @param range range to serve, or null to answer 416 Range Not Satisfiable
+     * @param chunkSize maximum number of bytes fetched from the endpoint per request
+     * @param timer timer of the request
+     */
+    static void serve(Storage storage, Blob blob, Range range, int chunkSize, HttpResponse response,
+                      RequestTimer timer) throws IOException {
+        long size = blob.getSize() != null ? blob.getSize() : 0;
+        if (range == null) {
+            response.setStatusCode(416);
+            response.appendHeader("Accept-Ranges", "bytes");
+            response.appendHeader("Content-Range", "bytes */" + size);
+            return;
+        }
+        if (range.length == 0) {
+            writeHeaders(blob, range, size, response);
+            return;
+        }
+
+        byte[] buffer = buffers.get();
+        try (ReadChannel reader = timer.time(storage.reader(blob.getBlobId()))) {
+            reader.seek(range.offset);
+            long remaining = range.length;
+            int n = read(reader, buffer, range, remaining, chunkSize);
+
+            writeHeaders(blob, range, size, response);
+            try {
+                OutputStream out = response.getOutputStream();
+                while (true) {
+                    out.write(buffer, 0, n);
+                    remaining -= n;
+                    if (remaining == 0) {
+                        break;
+                    }
+                    n = read(reader, buffer, range, remaining, chunkSize);
+                }
+                out.flush();
+            } catch (IOException | RuntimeException e) {
+                throw new AbortedException(e);
+            }
+        }
+    }
+
+    private static void writeHeaders(Blob blob, Range range, long size, HttpResponse response) {
+        response.appendHeader("Accept-Ranges", "bytes");
+        if (range.partial) {
+            response.setStatusCode(206);
+            response.appendHeader("Content-Range",
+                    "bytes " + range.offset + "-" + (range.offset + range.length - 1) + "/" + size);
+        }
+        response.setContentType(blob.getContentType() != null ? blob.getContentType() : "application/octet-stream");
+        if (blob.getContentEncoding() != null) {
+            response.appendHeader("Content-Encoding", blob.getContentEncoding());
+        }
+        if (blob.getEtag() != null) {
+            response.appendHeader("ETag", blob.getEtag());
+        }
+        response.appendHeader("Content-Length", String.valueOf(range.length));
+    }
+
+    /**
+     * Reads the next bytes of the range, of which 'remaining' are left, into the buffer.
+     * @return number of bytes read, at least 1
+     */
+    private static int read(ReadChannel reader, byte[] buffer, Range range, long remaining, int chunkSize)
+            throws IOException {
+        // never fetch past the end of the range: the channel requests max(dst, chunkSize) bytes at once.
+        reader.setChunkSize((int) Math.min(chunkSize, remaining));
+        int n;
+        do {
+            n = reader.read(ByteBuffer.wrap(buffer, 0, (int) Math.min(buffer.length, remaining)));
+        } while (n == 0);
+        if (n < 0) {
+            throw new IOException("Unexpected end of object at offset " + (range.offset + range.length - remaining));
+        }
+        return n;
+    }
+}
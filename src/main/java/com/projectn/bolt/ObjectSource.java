@@ -0,0 +1,95 @@
+package com.projectn.bolt;
+
+import com.google.cloud.ReadChannel;
+import com.google.cloud.storage.Blob;
+import com.google.cloud.storage.Storage;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * ObjectSource reads the content of an object from Bolt/GS. Objects larger than chunkSize are read as
+ * concurrent byte ranges (see RangedDownload), smaller ones with a single request.
+ */
+final class ObjectSource {
+
+    private final Storage storage;
+    private final Blob blob;
+    private final RangedDownload download;
+
+    /**
+     * @param storage Storage service object of the endpoint to read from
+     * @param blob object to read
+     * @param chunkSize size of each byte range
+     * @param concurrency number of byte ranges fetched concurrently
+     */
+    ObjectSource(Storage storage, Blob blob, int chunkSize, int concurrency) {
+        this.storage = storage;
+        this.blob = blob;
+        this.download = RangedDownload.worthwhile(blob.getSize(), chunkSize, concurrency) ?
+                new RangedDownload(storage, blob, chunkSize, concurrency) : null;
+    }
+
+    Blob blob() {
+        return blob;
+    }
+
+    /**
+     * Returns a stream of the (raw) object content.
+     */
+    InputStream open() {
+        return download != null ? download.open() : Channels.newInputStream(reader());
+    }
+
+    /**
+     * Reads the object and returns its MD5 hash.
+     * @param gunzip if true, the object is decompressed before computing its MD5.
+     */
+    String md5(boolean gunzip) throws IOException {
+        return md5(gunzip, null);
+    }
+
+    /**
+     * Reads the object and returns its MD5 hash, recording the time to first byte, transfer time and bytes
+     * read in the given timer.
+     * @param gunzip if true, the object is decompressed before computing its MD5.
+     * @param timer timer of the request, or null
+     */
+    String md5(boolean gunzip, RequestTimer timer) throws IOException {
+        return digest(gunzip, ObjectDigests.Algorithm.MD5, timer);
+    }
+
+    /**
+     * Reads the object and returns its digest, recording the time to first byte, transfer time and bytes
+     * read in the given timer.
+     * @param gunzip if true, the object is decompressed before computing its digest.
+     * @param algorithm digest to compute
+     * @param timer timer of the request, or null
+     */
+    String digest(boolean gunzip, ObjectDigests.Algorithm algorithm, RequestTimer timer) throws IOException {
+        if (download != null) {
+            InputStream in = download.open();
+            return ObjectDigests.digest(timer != null ? timer.time(in) : in, gunzip, algorithm);
+        }
+        ReadChannel reader = reader();
+        return ObjectDigests.digest(timer != null ? timer.time(reader) : reader, gunzip, algorithm);
+    }
+
+    // Read through the given Storage service object (not the blob's own), so that reads are guarded by Resilience,
+    // in chunks of READ_CHUNK_SIZE rather than the library's 2 MiB, whether the channel is hashed or streamed.
+    private ReadChannel reader() {
+        ReadChannel reader = storage.reader(blob.getBlobId());
+        reader.setChunkSize(ObjectDigests.READ_CHUNK_SIZE);
+        return reader;
+    }
+
+    /**
+     * Returns the timings of the byte ranges read so far; empty if the object is read with a single request.
+     */
+    List<RangedDownload.ChunkTiming> timings() {
+        return download != null ? download.timings() : Collections.emptyList();
+    }
+}
@@ -0,0 +1,268 @@
+package com.projectn.bolt;
+
+import com.google.cloud.storage.Blob;
+import com.google.cloud.storage.BlobId;
+import com.google.cloud.storage.Storage;
+import com.google.cloud.storage.StorageException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.Future;
+
+/**
+ * ObjectValidator validates a single object by reading it from Bolt and, unless the source bucket is cleaned,
+ * from GS. Both copies are read concurrently.
+ */
+final class ObjectValidator {
+
+    private final Storage gsStorage;
+    private final Storage boltStorage;
+    private final BoltGSValidateObjHandler.BucketClean bucketClean;
+    private final BoltGSValidateObjHandler.Compare compare;
+    private final int chunkSize;
+    private final int concurrency;
+
+    ObjectValidator(Storage gsStorage, Storage boltStorage, BoltGSValidateObjHandler.BucketClean bucketClean,
+                    BoltGSValidateObjHandler.Compare compare, int chunkSize, int concurrency) {
+        if (compare == BoltGSValidateObjHandler.Compare.BYTES &&
+                bucketClean == BoltGSValidateObjHandler.BucketClean.ON) {
+            throw new IllegalArgumentException("compare=bytes requires bucketClean OFF");
+        }
+        this.gsStorage = gsStorage;
+        this.boltStorage = boltStorage;
+        this.bucketClean = bucketClean;
+        this.compare = compare;
+        this.chunkSize = chunkSize;
+        this.concurrency = concurrency;
+    }
+
+    /**
+     * Storage service object of the endpoint that holds the reference copy of the objects, i.e. GS
+     * unless the source bucket is cleaned post crunch.
+     */
+    Storage referenceStorage() {
+        return bucketClean == BoltGSValidateObjHandler.BucketClean.OFF ? gsStorage : boltStorage;
+    }
+
+    /**
+     * Indicates if objects are validated from their metadata where possible (compare=metadata).
+     */
+    boolean comparesMetadata() {
+        return compare == BoltGSValidateObjHandler.Compare.METADATA;
+    }
+
+    /**
+     * Validates the given object.
+     * @param bucketName bucket name
+     * @param objectName object name
+     * @param listed metadata of the object as listed from referenceStorage(), or null if not known
+     * @return result of the validation
+     * @throws IOException
+     */
+    Result validate(String bucketName, String objectName, Blob listed) throws IOException {
+        // Get Object metadata from Bolt, and from GS if bucket clean is off, concurrently.
+        BlobId blobId = BlobId.of(bucketName, objectName);
+        boolean gsReference = bucketClean == BoltGSValidateObjHandler.BucketClean.OFF;
+        Blob gsBlob = gsReference ? listed : null;
+        Blob boltBlob = gsReference ? null : listed;
+
+        Future<Blob> boltBlobFuture = boltBlob == null ? Workers.io().submit(() -> boltStorage.get(blobId)) : null;
+        Future<Blob> gsBlobFuture = gsReference && gsBlob == null ?
+                Workers.io().submit(() -> gsStorage.get(blobId)) : null;
+        if (boltBlobFuture != null) {
+            boltBlob = Workers.await(boltBlobFuture);
+        }
+        if (gsBlobFuture != null) {
+            gsBlob = Workers.await(gsBlobFuture);
+        }
+        if (boltBlob == null || (gsReference && gsBlob == null)) {
+            throw new StorageException(404, "Object " + objectName + " not found in " +
+                    (boltBlob == null ? "Bolt" : "GS"));
+        }
+
+        // If Object is gzip encoded, compute MD5 on the decompressed object.
+        boolean gunzip = ObjectDigests.isGzip(gsBlob != null ? gsBlob : boltBlob, objectName);
+
+        ObjectSource boltSource = new ObjectSource(boltStorage, boltBlob, chunkSize, concurrency);
+        ObjectSource gsSource = gsBlob != null ? new ObjectSource(gsStorage, gsBlob, chunkSize, concurrency) : null;
+
+        Result result = new Result(objectName, boltBlob.getSize(), gsSource, boltSource);
+        if (compare == BoltGSValidateObjHandler.Compare.METADATA) {
+            compareChecksums(gsBlob, boltBlob, gunzip, result);
+        } else if (compare == BoltGSValidateObjHandler.Compare.BYTES) {
+            long start = System.nanoTime();
+            result.mismatchOffset = firstMismatch(gsSource, boltSource, gunzip);
+            // both copies are read in lockstep, so each read takes the full comparison time.
+            result.gsNanos = result.boltNanos = System.nanoTime() - start;
+        } else {
+            // MD5 of the GS and Bolt objects, computed concurrently.
+            Future<String> boltMd5 = Workers.io().submit(() -> timedMd5(boltSource, gunzip, result, false));
+            Future<String> gsMd5 = gsSource != null ?
+                    Workers.io().submit(() -> timedMd5(gsSource, gunzip, result, true)) : null;
+            result.gsMd5 = gsMd5 != null ? Workers.await(gsMd5) : null;
+            result.boltMd5 = Workers.await(boltMd5);
+        }
+        if (!result.downloaded()) {
+            return result;
+        }
+        LatencyHistograms.record("VALIDATE_READ", BoltGSOpsClient.SdkType.BOLT.name(), result.boltNanos,
+                result.size);
+        if (gsSource != null) {
+            LatencyHistograms.record("VALIDATE_READ", BoltGSOpsClient.SdkType.GS.name(), result.gsNanos,
+                    result.size);
+        }
+        return result;
+    }
+
+    /**
+     * Compares the server side checksums (CRC32C, else MD5) and sizes of both copies, as found in their metadata.
+     * The objects are only downloaded, and their CRC32C computed, if a checksum is missing or differs, or if the
+     * object is gzip encoded (checksums in metadata cover the compressed object). Objects of different sizes
+     * mismatch without being downloaded.
+     */
+    private static void compareChecksums(Blob gsBlob, Blob boltBlob, boolean gunzip, Result result)
+            throws IOException {
+        if (gsBlob != null && !Objects.equals(gsBlob.getSize(), boltBlob.getSize())) {
+            result.checksumSource = "metadata-size";
+            result.gsChecksum = "size=" + gsBlob.getSize();
+            result.boltChecksum = "size=" + boltBlob.getSize();
+            return;
+        }
+        if (!gunzip) {
+            String gsCrc32c = gsBlob != null ? gsBlob.getCrc32c() : null;
+            String gsMd5 = gsBlob != null ? gsBlob.getMd5() : null;
+            if (boltBlob.getCrc32c() != null && (gsBlob == null || gsCrc32c != null)) {
+                if (gsBlob == null || gsCrc32c.equals(boltBlob.getCrc32c())) {
+                    result.checksumSource = "metadata-crc32c";
+                    result.gsChecksum = gsCrc32c;
+                    result.boltChecksum = boltBlob.getCrc32c();
+                    return;
+                }
+            } else if (boltBlob.getMd5() != null && (gsBlob == null || gsMd5 != null)) {
+                if (gsBlob == null || gsMd5.equals(boltBlob.getMd5())) {
+                    result.checksumSource = "metadata-md5";
+                    result.gsChecksum = gsMd5;
+                    result.boltChecksum = boltBlob.getMd5();
+                    return;
+                }
+            }
+        }
+
+        // CRC32C of the GS and Bolt objects, computed concurrently.
+        result.checksumSource = "download-crc32c";
+        Future<String> boltCrc32c = Workers.io().submit(() ->
+                timedDigest(result.boltSource, gunzip, ObjectDigests.Algorithm.CRC32C, result, false));
+        Future<String> gsCrc32c = result.gsSource != null ? Workers.io().submit(() ->
+                timedDigest(result.gsSource, gunzip, ObjectDigests.Algorithm.CRC32C, result, true)) : null;
+        result.gsChecksum = gsCrc32c != null ? Workers.await(gsCrc32c) : null;
+        result.boltChecksum = Workers.await(boltCrc32c);
+    }
+
+    private static String timedMd5(ObjectSource source, boolean gunzip, Result result, boolean gs)
+            throws IOException {
+        return timedDigest(source, gunzip, ObjectDigests.Algorithm.MD5, result, gs);
+    }
+
+    private static String timedDigest(ObjectSource source, boolean gunzip, ObjectDigests.Algorithm algorithm,
+                                      Result result, boolean gs) throws IOException {
+        long start = System.nanoTime();
+        String digest = ObjectCache.digest(gs ? BoltGSOpsClient.SdkType.GS : BoltGSOpsClient.SdkType.BOLT, source,
+                gunzip, algorithm, null);
+        if (gs) {
+            result.gsNanos = System.nanoTime() - start;
+        } else {
+            result.boltNanos = System.nanoTime() - start;
+        }
+        return digest;
+    }
+
+    /**
+     * Reads the GS and Bolt objects side by side and compares them byte by byte, stopping at the first
+     * difference. If gunzip is true, the decompressed objects are compared.
+     * @return offset of the first differing byte, or -1 if the objects are identical
+     */
+    private static long firstMismatch(ObjectSource gsSource, ObjectSource boltSource, boolean gunzip)
+            throws IOException {
+        byte[] gsBuffer = new byte[ObjectDigests.BUFFER_SIZE];
+        byte[] boltBuffer = new byte[ObjectDigests.BUFFER_SIZE];
+        long offset = 0;
+
+        try (InputStream gs = open(gsSource, gunzip); InputStream bolt = open(boltSource, gunzip)) {
+            while (true) {
+                int gsLen = gs.readNBytes(gsBuffer, 0, gsBuffer.length);
+                int boltLen = bolt.readNBytes(boltBuffer, 0, boltBuffer.length);
+                int mismatch = Arrays.mismatch(gsBuffer, 0, gsLen, boltBuffer, 0, boltLen);
+                if (mismatch >= 0) {
+                    return offset + mismatch;
+                }
+                if (gsLen < gsBuffer.length) {
+                    return -1;
+                }
+                offset += gsLen;
+            }
+        }
+    }
+
+    private static InputStream open(ObjectSource source, boolean gunzip) throws IOException {
+        InputStream in = source.open();
+        return gunzip ? ParallelGunzip.open(in) : in;
+    }
+
+    /**
+     * Result is the outcome of validating one object.
+     */
+    static final class Result {
+        final String key;
+        final long size;
+        private final ObjectSource gsSource;
+        private final ObjectSource boltSource;
+        // set when comparing MD5s; gsMd5 is null if the source bucket is cleaned.
+        String gsMd5;
+        String boltMd5;
+        // set when comparing bytes.
+        long mismatchOffset = -1;
+        // set when comparing checksums: where the checksums come from (e.g. metadata-crc32c or download-crc32c)
+        // and the checksum of each copy, base64 encoded as in object metadata; gsChecksum is null if the source
+        // bucket is cleaned.
+        String checksumSource;
+        String gsChecksum;
+        String boltChecksum;
+        // time spent reading each copy; gsNanos is 0 if the source bucket is cleaned.
+        volatile long gsNanos;
+        volatile long boltNanos;
+
+        private Result(String key, Long size, ObjectSource gsSource, ObjectSource boltSource) {
+            this.key = key;
+            this.size = size != null ? size : 0;
+            this.gsSource = gsSource;
+            this.boltSource = boltSource;
+        }
+
+        /**
+         * Indicates if the Bolt copy matches the GS copy. Always true if the source bucket is cleaned.
+         */
+        boolean matches() {
+            return mismatchOffset < 0 && (gsMd5 == null || gsMd5.equals(boltMd5)) &&
+                    (gsChecksum == null || gsChecksum.equals(boltChecksum));
+        }
+
+        /**
+         * Indicates if the objects were read, i.e. not validated from their metadata alone.
+         */
+        boolean downloaded() {
+            return checksumSource == null || checksumSource.startsWith("download");
+        }
+
+        List<RangedDownload.ChunkTiming> gsTimings() {
+            return gsSource != null ? gsSource.timings() : Collections.emptyList();
+        }
+
+        List<RangedDownload.ChunkTiming> boltTimings() {
+            return boltSource.timings();
+        }
+    }
+}
@@ -0,0 +1,314 @@
+package com.projectn.bolt;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.io.SequenceInputStream;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+/**
+ * ParallelGunzip decompresses multi-member gzip streams whose members carry their compressed size, i.e. BGZF
+ * as written by bgzip and other htslib tools, inflating several members at a time. Only BGZF streams are
+ * parallelized: other multi-member streams, e.g. written by pigz, have no BC subfield and are inflated
+ * sequentially.
+ *
+ * Members are read from the source in order and grouped into batches of up to BATCH_BYTES; batches are inflated
+ * concurrently on Workers.io() while the source is being read, and their output is returned in order, so that
+ * a digest computed over the stream is the same as with GZIPInputStream. Each member's CRC32 and size are
+ * verified. Inflaters and batch buffers are pooled across requests; the pool keeps what one stream's window
+ * needs, and the buffers of concurrent streams beyond that are left to the garbage collector.
+ *
+ * Other gzip streams (a single member, or members without a BGZF size field, whose end can only be found by
+ * inflating them) are decompressed sequentially by GZIPInputStream.
+ */
+final class ParallelGunzip extends InputStream {
+
+    // Compressed and decompressed size of a batch; a BGZF member is at most 64 KiB either way.
+    static final int BATCH_BYTES = 1024 * 1024;
+    private static final int MAX_MEMBER_SIZE = 64 * 1024;
+    // Number of batches read ahead of the one being returned.
+    private static final int WINDOW = Math.max(2, 2 * Runtime.getRuntime().availableProcessors());
+    // Buffers one stream holds at most: a batch being read, WINDOW in flight and the one being returned.
+    private static final int POOL_SIZE = WINDOW + 2;
+
+    private static final int HEADER_SIZE = 12;
+    private static final int TRAILER_SIZE = 8;
+    private static final int FEXTRA = 4;
+
+    private static final BlockingQueue<byte[]> buffers = new ArrayBlockingQueue<>(POOL_SIZE);
+    private static final BlockingQueue<Inflater> inflaters = new ArrayBlockingQueue<>(WINDOW);
+
+    private final InputStream source;
+    private final byte[] header = new byte[HEADER_SIZE];
+    // Batches being inflated, in stream order.
+    private final ArrayDeque<Future<Batch>> inFlight = new ArrayDeque<>();
+    private boolean sourceDone;
+    // Remainder of the stream, once a member without a BGZF size field was found.
+    private InputStream tail;
+
+    private Batch current;
+    private int position;
+
+    private ParallelGunzip(InputStream source) {
+        this.source = source;
+    }
+
+    /**
+     * Returns a stream of the decompressed content of the given gzip stream; BGZF streams are inflated in
+     * parallel, others sequentially. Closing the returned stream closes the given one.
+     */
+    static InputStream open(InputStream in) throws IOException {
+        PushbackInputStream pushback = new PushbackInputStream(in, HEADER_SIZE + 6);
+        byte[] start = new byte[HEADER_SIZE + 6];
+        int len = pushback.readNBytes(start, 0, start.length);
+        pushback.unread(start, 0, len);
+        if (len == start.length && isBgzf(start)) {
+            return new ParallelGunzip(pushback);
+        }
+        return new GZIPInputStream(pushback, ObjectDigests.BUFFER_SIZE);
+    }
+
+    // bgzip writes a single BC extra subfield (XLEN 6) and no other optional header fields.
+    private static boolean isBgzf(byte[] start) {
+        return isGzipHeader(start) && (start[3] & 0xff) == FEXTRA && uint16(start, 10) == 6 &&
+                start[12] == 'B' && start[13] == 'C' && uint16(start, 14) == 2;
+    }
+
+    private static boolean isGzipHeader(byte[] header) {
+        return (header[0] & 0xff) == 0x1f && (header[1] & 0xff) == 0x8b && header[2] == 8;
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] one = new byte[1];
+        return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        while (current == null || position == current.length) {
+            if (!advance()) {
+                return tail != null ? tail.read(b, off, len) : -1;
+            }
+        }
+        int n = Math.min(len, current.length - position);
+        System.arraycopy(current.output, position, b, off, n);
+        position += n;
+        return n;
+    }
+
+    // Moves on to the next inflated batch; false once all batches were returned.
+    private boolean advance() throws IOException {
+        if (current != null) {
+            current.release();
+            current = null;
+        }
+        fill();
+        Future<Batch> next = inFlight.poll();
+        if (next == null) {
+            return false;
+        }
+        current = Workers.await(next);
+        position = 0;
+        fill();
+        return true;
+    }
+
+    // Reads members from the source until WINDOW batches are in flight.
+    private void fill() throws IOException {
+        while (!sourceDone && inFlight.size() < WINDOW) {
+            Batch batch = readBatch();
+            if (batch.members > 0) {
+                inFlight.add(Workers.io().submit(batch::inflate));
+            } else {
+                batch.release();
+            }
+        }
+    }
+
+    // Reads whole members into a new batch, up to BATCH_BYTES compressed and decompressed.
+    private Batch readBatch() throws IOException {
+        Batch batch = new Batch();
+        while (batch.compressedLength + MAX_MEMBER_SIZE <= BATCH_BYTES &&
+                batch.length + MAX_MEMBER_SIZE <= BATCH_BYTES) {
+            int n = source.readNBytes(header, 0, HEADER_SIZE);
+            if (n == 0) {
+                sourceDone = true;
+                break;
+            }
+            if (n < HEADER_SIZE) {
+                throw new EOFException("Unexpected end of gzip member header");
+            }
+            boolean extraOnly = isGzipHeader(header) && (header[3] & 0xff) == FEXTRA;
+            int xlen = extraOnly ? uint16(header, 10) : 0;
+            byte[] extra = source.readNBytes(xlen);
+            int blockSize = extraOnly ? blockSize(extra) : -1;
+            if (blockSize < 0) {
+                // not a BGZF member; the rest of the stream is inflated sequentially, after the batches.
+                InputStream member = new ByteArrayInputStream(concat(header, extra));
+                tail = new GZIPInputStream(new SequenceInputStream(member, source), ObjectDigests.BUFFER_SIZE);
+                sourceDone = true;
+                break;
+            }
+            int dataLength = blockSize - HEADER_SIZE - xlen - TRAILER_SIZE;
+            if (dataLength < 0 || dataLength + TRAILER_SIZE > MAX_MEMBER_SIZE) {
+                throw new ZipException("Invalid BGZF block size " + blockSize);
+            }
+            int offset = batch.compressedLength;
+            int remaining = dataLength + TRAILER_SIZE;
+            if (source.readNBytes(batch.compressed, offset, remaining) < remaining) {
+                throw new EOFException("Unexpected end of gzip member");
+            }
+            batch.add(offset, dataLength);
+        }
+        return batch;
+    }
+
+    // Returns the total size of the member given by its BC subfield, or -1 if there is none.
+    private static int blockSize(byte[] extra) {
+        int i = 0;
+        while (i + 4 <= extra.length) {
+            int length = uint16(extra, i + 2);
+            if (extra[i] == 'B' && extra[i + 1] == 'C' && length == 2 && i + 6 <= extra.length) {
+                return uint16(extra, i + 4) + 1;
+            }
+            i += 4 + length;
+        }
+        return -1;
+    }
+
+    private static int uint16(byte[] b, int offset) {
+        return (b[offset] & 0xff) | (b[offset + 1] & 0xff) << 8;
+    }
+
+    private static int int32(byte[] b, int offset) {
+        return uint16(b, offset) | uint16(b, offset + 2) << 16;
+    }
+
+    private static byte[] concat(byte[] a, byte[] b) {
+        byte[] result = new byte[a.length + b.length];
+        System.arraycopy(a, 0, result, 0, a.length);
+        System.arraycopy(b, 0, result, a.length, b.length);
+        return result;
+    }
+
+    @Override
+    public void close() throws IOException {
+        for (Future<Batch> batch : inFlight) {
+            batch.cancel(true);
+        }
+        inFlight.clear();
+        if (current != null) {
+            current.release();
+            current = null;
+        }
+        try {
+            if (tail != null) {
+                tail.close();
+            }
+        } finally {
+            source.close();
+        }
+    }
+
+    private static byte[] buffer() {
+        byte[] buffer = buffers.poll();
+        return buffer != null ? buffer : new byte[BATCH_BYTES];
+    }
+
+    private static Inflater inflater() {
+        Inflater inflater = inflaters.poll();
+        return inflater != null ? inflater : new Inflater(true);
+    }
+
+    /**
+     * Batch holds consecutive compressed members and, once inflated, their decompressed content.
+     */
+    private static final class Batch {
+        private final byte[] compressed = buffer();
+        private int compressedLength;
+        // offset and length of the deflate data of each member, in 'compressed'.
+        private int[] offsets = new int[16];
+        private int[] lengths = new int[16];
+        private int members;
+
+        private byte[] output;
+        private int length;
+
+        private void add(int offset, int dataLength) {
+            if (members == offsets.length) {
+                offsets = Arrays.copyOf(offsets, members * 2);
+                lengths = Arrays.copyOf(lengths, members * 2);
+            }
+            offsets[members] = offset;
+            lengths[members] = dataLength;
+            members++;
+            compressedLength = offset + dataLength + TRAILER_SIZE;
+            length += int32(compressed, compressedLength - 4);
+        }
+
+        private Batch inflate() throws IOException {
+            output = buffer();
+            Inflater inflater = inflater();
+            CRC32 crc = new CRC32();
+            int written = 0;
+            try {
+                for (int i = 0; i < members; i++) {
+                    int trailer = offsets[i] + lengths[i];
+                    int size = int32(compressed, trailer + 4);
+                    if (size < 0 || size > MAX_MEMBER_SIZE) {
+                        throw new ZipException("Invalid BGZF member size " + size);
+                    }
+                    inflater.reset();
+                    inflater.setInput(compressed, offsets[i], lengths[i]);
+                    int n = 0;
+                    while (n < size && !inflater.finished()) {
+                        int inflated = inflater.inflate(output, written + n, size - n);
+                        if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                            break;
+                        }
+                        n += inflated;
+                    }
+                    crc.reset();
+                    crc.update(output, written, n);
+                    if (n != size || (int) crc.getValue() != int32(compressed, trailer)) {
+                        throw new ZipException("Corrupt GZIP trailer");
+                    }
+                    written += n;
+                }
+            } catch (DataFormatException e) {
+                throw new ZipException(e.getMessage());
+            } finally {
+                if (!inflaters.offer(inflater)) {
+                    inflater.end();
+                }
+                buffers.offer(compressed);
+            }
+            return this;
+        }
+
+        // Returns the buffers to the pool; compressed is returned by inflate().
+        private void release() {
+            if (output != null) {
+                buffers.offer(output);
+                output = null;
+            } else if (members == 0) {
+                buffers.offer(compressed);
+            }
+        }
+    }
+}
@@ -0,0 +1,157 @@
+package com.projectn.bolt;
+
+import com.google.cloud.ReadChannel;
+import com.google.cloud.storage.BlobId;
+import com.google.cloud.storage.Storage;
+import com.google.cloud.storage.StorageException;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Prefetcher warms Bolt's cache ahead of traffic by reading objects through the Bolt endpoint, 'parallelism'
+ * objects at a time. Object data is read into a reused buffer and discarded: it is neither hashed nor kept.
+ *
+ * Objects are all objects under a prefix or a list of keys (see KeyCursor). Once the time budget runs out, no
+ * further objects are started and a resume token is returned, so that a later invocation continues the prefetch.
+ */
+final class Prefetcher {
+
+    // Time after which a prefetch stops reading further objects, below the default function timeout.
+    static final long DEFAULT_TIME_BUDGET_MS = 50_000;
+
+    // Interval between progress lines.
+    private static final long PROGRESS_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private static final ThreadLocal<ByteBuffer> buffers =
+            ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(ObjectDigests.BUFFER_SIZE));
+
+    private Prefetcher() {
+    }
+
+    /**
+     * Reads all objects under a prefix, or in a list of keys, from the given (Bolt) endpoint. A progress line is
+     * written (and flushed) about every second, along with one line per object that could not be read, followed
+     * by a summary and, if the time budget ran out, a resume token.
+     * @param storage Storage service object of the endpoint to read from
+     * @param bucketName bucket name
+     * @param prefix key prefix, used if keys is null
+     * @param keys key names, or null
+     * @param parallelism number of objects read concurrently, at least 1
+     * @param resumeToken token returned by a previous prefetch that ran out of time, or null
+     * @param timeBudgetMs time after which no further objects are read
+     * @param writer response writer
+     * @return number of bytes read
+     */
+    static long prefetch(Storage storage, String bucketName, String prefix, List<String> keys, int parallelism,
+                         String resumeToken, long timeBudgetMs, BufferedWriter writer) throws IOException {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("parallelism must be at least 1");
+        }
+        long start = System.nanoTime();
+        long deadline = start + TimeUnit.MILLISECONDS.toNanos(timeBudgetMs);
+        KeyCursor cursor = keys != null ?
+                KeyCursor.forKeys(keys, resumeToken) :
+                KeyCursor.forPrefix(storage, bucketName, prefix, KeyCursor.DEFAULT_PAGE_SIZE, resumeToken);
+
+        long objects = 0, errors = 0, bytes = 0;
+        long nextProgress = start + PROGRESS_INTERVAL_NANOS;
+        ArrayDeque<Future<Long>> inFlight = new ArrayDeque<>();
+        ArrayDeque<String> inFlightKeys = new ArrayDeque<>();
+        boolean outOfTime = false;
+
+        while (true) {
+            // Keep up to 'parallelism' objects in flight, unless the time budget has run out.
+            while (inFlight.size() < parallelism && !(outOfTime = System.nanoTime() > deadline)) {
+                KeyCursor.Entry entry = cursor.next();
+                if (entry == null) {
+                    break;
+                }
+                BlobId blobId = BlobId.of(bucketName, entry.key);
+                inFlight.add(Workers.io().submit(() -> read(storage, blobId)));
+                inFlightKeys.add(entry.key);
+            }
+            Future<Long> next = inFlight.poll();
+            if (next == null) {
+                break;
+            }
+            String key = inFlightKeys.poll();
+            objects++;
+            try {
+                bytes += Workers.await(next);
+            } catch (StorageException e) {
+                errors++;
+                writer.write(key + ": ERROR " + e.getCode() + " " + e.getMessage());
+                writer.newLine();
+            } catch (InterruptedIOException e) {
+                throw e;
+            } catch (Exception e) {
+                errors++;
+                writer.write(key + ": ERROR " + e.getMessage());
+                writer.newLine();
+            }
+
+            long now = System.nanoTime();
+            if (now >= nextProgress) {
+                writer.write("progress: " + rates(objects, bytes, now - start));
+                writer.newLine();
+                writer.flush();
+                nextProgress = now + PROGRESS_INTERVAL_NANOS;
+            }
+        }
+
+        writer.write("objects: " + objects);
+        writer.newLine();
+        writer.write("errors: " + errors);
+        writer.newLine();
+        writer.write("bytes: " + bytes);
+        writer.newLine();
+        double seconds = (System.nanoTime() - start) / 1e9;
+        writer.write(String.format("objects-per-second: %.2f", seconds > 0 ? objects / seconds : 0));
+        writer.newLine();
+        writer.write(String.format("bytes-per-second: %.0f", seconds > 0 ? bytes / seconds : 0));
+        String nextToken = outOfTime ? cursor.resumeToken() : null;
+        if (nextToken != null) {
+            writer.newLine();
+            writer.write("resume-token: " + nextToken);
+        }
+        return bytes;
+    }
+
+    /**
+     * Reads the object to its end, discarding its data.
+     * @return number of bytes read
+     */
+    private static long read(Storage storage, BlobId blobId) throws IOException {
+        long start = System.nanoTime();
+        long size = 0;
+        ByteBuffer buffer = buffers.get();
+        try (ReadChannel reader = storage.reader(blobId)) {
+            reader.setChunkSize(ObjectDigests.READ_CHUNK_SIZE);
+            buffer.clear();
+            int n;
+            while ((n = reader.read(buffer)) >= 0) {
+                if (Thread.interrupted()) {
+                    throw new InterruptedIOException("Prefetch cancelled");
+                }
+                size += n;
+                buffer.clear();
+            }
+        }
+        LatencyHistograms.record("PREFETCH_READ", BoltGSOpsClient.SdkType.BOLT.name(), System.nanoTime() - start,
+                size);
+        return size;
+    }
+
+    private static String rates(long objects, long bytes, long nanos) {
+        double seconds = nanos / 1e9;
+        return String.format("objects=%d bytes=%d objects-per-second=%.2f bytes-per-second=%.0f", objects, bytes,
+                seconds > 0 ? objects / seconds : 0, seconds > 0 ? bytes / seconds : 0);
+    }
+}
@@ -0,0 +1,230 @@
+package com.projectn.bolt;
+
+import com.google.cloud.ReadChannel;
+import com.google.cloud.storage.Blob;
+import com.google.cloud.storage.BlobId;
+import com.google.cloud.storage.Storage;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Future;
+
+/**
+ * RangedDownload reads an object from Bolt/GS as a sequence of byte ranges (chunks) that are fetched
+ * concurrently, and exposes them, in order, as a single InputStream.
+ *
+ * At most 'concurrency' chunks are in flight (or buffered) at any time, so memory use is bounded by
+ * concurrency * chunkSize regardless of object size. All chunks are read from the same object generation.
+ */
+final class RangedDownload {
+
+    static final int DEFAULT_CHUNK_SIZE = 16 * 1024 * 1024;
+    static final int DEFAULT_CONCURRENCY = 4;
+
+    private final Storage storage;
+    private final BlobId blobId;
+    private final long size;
+    private final int chunkSize;
+    private final int concurrency;
+    private final int chunkCount;
+    private final long startNanos;
+    private final BlockingQueue<byte[]> buffers;
+    private final List<ChunkTiming> timings = Collections.synchronizedList(new ArrayList<>());
+
+    /**
+     * @param storage Storage service object of the endpoint to read from
+     * @param blob object to read. Its generation, if known, is pinned for all chunks.
+     * @param chunkSize size of each byte range
+     * @param concurrency number of byte ranges fetched concurrently
+     */
+    RangedDownload(Storage storage, Blob blob, int chunkSize, int concurrency) {
+        if (chunkSize <= 0 || concurrency <= 0) {
+            throw new IllegalArgumentException("chunkSize and concurrency must be positive");
+        }
+        this.storage = storage;
+        this.blobId = blob.getGeneration() != null ?
+                BlobId.of(blob.getBucket(), blob.getName(), blob.getGeneration()) :
+                BlobId.of(blob.getBucket(), blob.getName());
+        this.size = blob.getSize();
+        this.chunkSize = chunkSize;
+        this.concurrency = concurrency;
+        this.chunkCount = (int) ((size + chunkSize - 1) / chunkSize);
+        this.startNanos = System.nanoTime();
+        // one buffer per in-flight chunk, plus the one being consumed.
+        this.buffers = new ArrayBlockingQueue<>(concurrency + 1);
+    }
+
+    /**
+     * Indicates if an object of the given size benefits from a ranged download.
+     */
+    static boolean worthwhile(long size, int chunkSize, int concurrency) {
+        return concurrency > 1 && size > chunkSize;
+    }
+
+    int chunkCount() {
+        return chunkCount;
+    }
+
+    /**
+     * Returns the timing of each chunk fetched so far, ordered by chunk index.
+     */
+    List<ChunkTiming> timings() {
+        synchronized (timings) {
+            List<ChunkTiming> sorted = new ArrayList<>(timings);
+            sorted.sort((a, b) -> Integer.compare(a.index, b.index));
+            return sorted;
+        }
+    }
+
+    /**
+     * Starts fetching the object and returns a stream of its content, in order.
+     * Closing the stream cancels any chunks that are still in flight.
+     */
+    InputStream open() {
+        return new ChunkStream();
+    }
+
+    private Chunk fetch(int index) throws IOException, InterruptedException {
+        long offset = (long) index * chunkSize;
+        int length = (int) Math.min(chunkSize, size - offset);
+
+        byte[] buffer = buffers.poll();
+        if (buffer == null || buffer.length < length) {
+            buffer = new byte[chunkSize];
+        }
+
+        long fetchStart = System.nanoTime();
+        ByteBuffer target = ByteBuffer.wrap(buffer, 0, length);
+        try (ReadChannel reader = storage.reader(blobId)) {
+            // a single request is issued for the whole range, as exactly one chunk is read.
+            reader.setChunkSize(length);
+            reader.seek(offset);
+            while (target.hasRemaining()) {
+                if (reader.read(target) < 0) {
+                    throw new IOException("Unexpected end of object at offset " + (offset + target.position()));
+                }
+            }
+        }
+        long end = System.nanoTime();
+        timings.add(new ChunkTiming(index, offset, length, (fetchStart - startNanos) / 1e6, (end - fetchStart) / 1e6));
+        return new Chunk(buffer, length);
+    }
+
+    private static final class Chunk {
+        private final byte[] data;
+        private final int length;
+
+        private Chunk(byte[] data, int length) {
+            this.data = data;
+            this.length = length;
+        }
+    }
+
+    /**
+     * ChunkTiming is the timing of a single byte range fetch, in milliseconds since the download started.
+     */
+    static final class ChunkTiming {
+        final int index;
+        final long offset;
+        final int length;
+        final double startMillis;
+        final double fetchMillis;
+
+        private ChunkTiming(int index, long offset, int length, double startMillis, double fetchMillis) {
+            this.index = index;
+            this.offset = offset;
+            this.length = length;
+            this.startMillis = startMillis;
+            this.fetchMillis = fetchMillis;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("index=%d offset=%d length=%d start=%.3fms fetch=%.3fms", index, offset, length,
+                    startMillis, fetchMillis);
+        }
+    }
+
+    /**
+     * ChunkStream yields the chunks in order, keeping up to 'concurrency' chunks in flight ahead of the reader.
+     */
+    private final class ChunkStream extends InputStream {
+        private final ArrayDeque<Future<Chunk>> inFlight = new ArrayDeque<>();
+        private int nextToSubmit;
+        private Chunk current;
+        private int position;
+        private boolean closed;
+
+        private ChunkStream() {
+            fill();
+        }
+
+        private void fill() {
+            while (inFlight.size() < concurrency && nextToSubmit < chunkCount) {
+                int index = nextToSubmit++;
+                inFlight.add(Workers.io().submit(() -> fetch(index)));
+            }
+        }
+
+        // Returns false at end of object.
+        private boolean advance() throws IOException {
+            if (current != null && position < current.length) {
+                return true;
+            }
+            if (current != null) {
+                buffers.offer(current.data);
+                current = null;
+            }
+            Future<Chunk> next = inFlight.poll();
+            if (next == null) {
+                return false;
+            }
+            current = Workers.await(next);
+            position = 0;
+            fill();
+            return true;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (closed || !advance()) {
+                return -1;
+            }
+            return current.data[position++] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (closed || !advance()) {
+                return -1;
+            }
+            int n = Math.min(len, current.length - position);
+            System.arraycopy(current.data, position, b, off, n);
+            position += n;
+            return n;
+        }
+
+        @Override
+        public void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            for (Future<Chunk> future : inFlight) {
+                future.cancel(true);
+            }
+            inFlight.clear();
+            current = null;
+        }
+    }
+}
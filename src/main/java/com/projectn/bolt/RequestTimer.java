@@ -0,0 +1,198 @@
+package com.projectn.bolt;
+
+import com.google.cloud.ReadChannel;
+import com.google.cloud.RestorableState;
+import com.google.cloud.functions.HttpResponse;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * RequestTimer records where the time of a single request is spent, split into named phases
+ * (e.g. resolve, client, metadata, ttfb, transfer, digest), along with the number of bytes moved.
+ *
+ * The breakdown is returned to the caller in a Server-Timing header and the total latency is recorded in
+ * LatencyHistograms. A RequestTimer is used by one request at a time, but its phases may be added from the
+ * threads that serve the request.
+ */
+final class RequestTimer {
+
+    private final long startNanos = System.nanoTime();
+    private final Map<String, Long> phases = new LinkedHashMap<>();
+    private String operation;
+    private String endpoint = BoltGSOpsClient.SdkType.GS.name();
+    private long lapNanos = startNanos;
+    // time attributed to phases via add() since the previous lap.
+    private long addedSinceLap;
+    private long bytes;
+
+    RequestTimer(String operation) {
+        this.operation = operation;
+    }
+
+    void setOperation(String operation) {
+        this.operation = operation;
+    }
+
+    void setEndpoint(String endpoint) {
+        this.endpoint = endpoint;
+    }
+
+    /**
+     * Attributes the time elapsed since the previous lap (or the start of the request), less the time
+     * already attributed to other phases via add(), to the given phase.
+     */
+    synchronized void lap(String phase) {
+        long now = System.nanoTime();
+        long remainder = now - lapNanos - addedSinceLap;
+        if (remainder > 0) {
+            phases.merge(phase, remainder, Long::sum);
+        }
+        lapNanos = now;
+        addedSinceLap = 0;
+    }
+
+    /**
+     * Adds time, spent on the request's own thread, to the given phase.
+     */
+    synchronized void add(String phase, long nanos) {
+        phases.merge(phase, nanos, Long::sum);
+        addedSinceLap += nanos;
+    }
+
+    /**
+     * Adds time spent concurrently with the request's own thread (e.g. on a worker) to the given phase.
+     * Unlike add(), it is not deducted from the next lap.
+     */
+    synchronized void note(String phase, long nanos) {
+        phases.merge(phase, nanos, Long::sum);
+    }
+
+    synchronized void addBytes(long count) {
+        bytes += count;
+    }
+
+    synchronized long bytes() {
+        return bytes;
+    }
+
+    /**
+     * Returns the breakdown in Server-Timing header format, e.g.
+     * "resolve;dur=0.012, client;dur=0.004, total;dur=52.100, bytes;desc=1024, endpoint;desc=BOLT"
+     */
+    synchronized String serverTiming() {
+        StringBuilder timing = new StringBuilder();
+        for (Map.Entry<String, Long> phase : phases.entrySet()) {
+            timing.append(phase.getKey()).append(";dur=").append(millis(phase.getValue())).append(", ");
+        }
+        return timing.append("total;dur=").append(millis(System.nanoTime() - startNanos))
+                .append(", bytes;desc=").append(bytes)
+                .append(", endpoint;desc=").append(endpoint)
+                .toString();
+    }
+
+    /**
+     * Records the request in LatencyHistograms and adds the Server-Timing header to the response. The header is
+     * only seen by the caller if the response has not been flushed yet.
+     */
+    void finish(HttpResponse response) {
+        LatencyHistograms.record(operation, endpoint, System.nanoTime() - startNanos, bytes());
+        response.appendHeader("Server-Timing", serverTiming());
+    }
+
+    /**
+     * Wraps a stream of object data, attributing the time until the first byte arrives to 'ttfb', the time
+     * spent waiting for further data to 'transfer', and counting the bytes read.
+     */
+    InputStream time(InputStream in) {
+        return new FilterInputStream(in) {
+            private final Transfer transfer = new Transfer();
+
+            @Override
+            public int read() throws IOException {
+                long start = System.nanoTime();
+                int b = super.read();
+                transfer.done(start, b < 0 ? -1 : 1);
+                return b;
+            }
+
+            @Override
+            public int read(byte[] buffer, int off, int len) throws IOException {
+                long start = System.nanoTime();
+                int n = super.read(buffer, off, len);
+                transfer.done(start, n);
+                return n;
+            }
+        };
+    }
+
+    /**
+     * Wraps a channel of object data, attributing the time until the first byte arrives to 'ttfb', the time
+     * spent waiting for further data to 'transfer', and counting the bytes read.
+     */
+    ReadChannel time(ReadChannel channel) {
+        return new ReadChannel() {
+            private final Transfer transfer = new Transfer();
+
+            @Override
+            public int read(ByteBuffer dst) throws IOException {
+                long start = System.nanoTime();
+                int n = channel.read(dst);
+                transfer.done(start, n);
+                return n;
+            }
+
+            @Override
+            public boolean isOpen() {
+                return channel.isOpen();
+            }
+
+            @Override
+            public void close() {
+                channel.close();
+            }
+
+            @Override
+            public void seek(long position) throws IOException {
+                channel.seek(position);
+            }
+
+            @Override
+            public void setChunkSize(int chunkSize) {
+                channel.setChunkSize(chunkSize);
+            }
+
+            @Override
+            public RestorableState<ReadChannel> capture() {
+                return channel.capture();
+            }
+        };
+    }
+
+    // Tracks the reads of one stream of object data.
+    private final class Transfer {
+        private final long openNanos = System.nanoTime();
+        private boolean firstByte;
+
+        void done(long readStart, int count) {
+            long now = System.nanoTime();
+            if (!firstByte && count > 0) {
+                firstByte = true;
+                add("ttfb", now - openNanos);
+            } else {
+                add("transfer", now - readStart);
+            }
+            if (count > 0) {
+                addBytes(count);
+            }
+        }
+    }
+
+    private static String millis(long nanos) {
+        return String.format("%.3f", nanos / 1e6);
+    }
+}
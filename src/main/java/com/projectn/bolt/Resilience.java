@@ -0,0 +1,744 @@
+package com.projectn.bolt;
+
+import com.google.api.gax.paging.Page;
+import com.google.cloud.ReadChannel;
+import com.google.cloud.RestorableState;
+import com.google.cloud.storage.Storage;
+import com.google.cloud.storage.StorageException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Resilience guards the storage calls made to each endpoint (GS, Bolt) with deadlines, retries and a circuit
+ * breaker, so that a struggling endpoint fails requests fast instead of having every request spend the function
+ * timeout in retries.
+ *
+ * Deadlines: a request's invocation budget is the function timeout ('FUNCTION_TIMEOUT_SEC', 60 s by default) less
+ * a margin to write the response. Each attempt of a storage call runs on the calling thread with a deadline of
+ * 'RESILIENCE_ATTEMPT_TIMEOUT_MS', or what is left of the budget if that is less: the HTTP requests it sends (see
+ * watch()) are aborted once the deadline passes, so that a stalled or trickling transfer fails with 504 instead of
+ * outliving the function timeout. No attempt starts once the budget is spent, and no retry is made whose backoff
+ * would outlast it.
+ *
+ * Retries: calls that fail with a transient error (timeout, 408, 429, 5xx, I/O error) and can safely be repeated
+ * (reads, and writes conditional on the generation they replace) are retried with exponential backoff and full
+ * jitter, as long as the deadline allows. Retries are limited by a per endpoint retry budget: a retry spends a
+ * token and a successful call earns a tenth of one, so that once the initial tokens are spent, retries add at most
+ * ~10% to the calls sent to a failing endpoint.
+ *
+ * Circuit breaker: once 'RESILIENCE_ERROR_RATE' (half by default) of the last 20 calls to an endpoint failed, calls
+ * to it fail fast for 'RESILIENCE_OPEN_MS', after which a single probe call decides whether it closes again.
+ * Meanwhile BoltGSOpsClient sends reads to the other endpoint (see divert()).
+ *
+ * The Storage service objects built by StorageClients do not retry on their own: their calls go through guard().
+ */
+final class Resilience {
+
+    // Function timeout of Cloud Functions, unless configured otherwise.
+    private static final long DEFAULT_FUNCTION_TIMEOUT_SEC = 60;
+    // Time kept, at the end of the invocation budget, to write the response.
+    private static final long DEFAULT_MARGIN_MS = 2_000;
+    private static final long DEFAULT_ATTEMPT_TIMEOUT_MS = 20_000;
+    private static final long DEFAULT_OPEN_MS = 5_000;
+    private static final double DEFAULT_ERROR_RATE = 0.5;
+
+    private static final int MAX_ATTEMPTS = 4;
+    private static final long BASE_BACKOFF_NANOS = TimeUnit.MILLISECONDS.toNanos(50);
+    private static final long MAX_BACKOFF_NANOS = TimeUnit.SECONDS.toNanos(2);
+    private static final double MAX_RETRY_TOKENS = 10;
+    private static final double TOKENS_PER_SUCCESS = 0.1;
+
+    // Number of recent calls the error rate is computed over, and the number needed before the breaker opens.
+    private static final int WINDOW = 20;
+    private static final int MIN_CALLS = 10;
+
+    private static final long budgetNanos = TimeUnit.SECONDS.toNanos(
+            envLong("FUNCTION_TIMEOUT_SEC", DEFAULT_FUNCTION_TIMEOUT_SEC)) -
+            TimeUnit.MILLISECONDS.toNanos(envLong("RESILIENCE_MARGIN_MS", DEFAULT_MARGIN_MS));
+    private static final long attemptNanos =
+            TimeUnit.MILLISECONDS.toNanos(envLong("RESILIENCE_ATTEMPT_TIMEOUT_MS", DEFAULT_ATTEMPT_TIMEOUT_MS));
+    private static final long openNanos =
+            TimeUnit.MILLISECONDS.toNanos(envLong("RESILIENCE_OPEN_MS", DEFAULT_OPEN_MS));
+    private static final double errorRate = envDouble("RESILIENCE_ERROR_RATE", DEFAULT_ERROR_RATE);
+    private static final boolean divertReads = !"false".equalsIgnoreCase(System.getenv("RESILIENCE_DIVERT"));
+
+    private static final Map<BoltGSOpsClient.SdkType, Endpoint> endpoints =
+            new EnumMap<>(BoltGSOpsClient.SdkType.class);
+
+    static {
+        for (BoltGSOpsClient.SdkType sdkType : BoltGSOpsClient.SdkType.values()) {
+            endpoints.put(sdkType, new Endpoint(sdkType));
+        }
+    }
+
+    // Options that make a write conditional on the current generation of the object.
+    private static final List<Object> generationPreconditions = Arrays.asList(
+            Storage.BlobTargetOption.doesNotExist(), Storage.BlobTargetOption.generationMatch(),
+            Storage.BlobWriteOption.doesNotExist(), Storage.BlobWriteOption.generationMatch(),
+            Storage.BlobSourceOption.generationMatch());
+
+    // Budget of the request served by the current thread, propagated to worker threads by Workers.
+    private static final ThreadLocal<Budget> current = new ThreadLocal<>();
+    // Storage call attempt running on the current thread.
+    private static final ThreadLocal<Attempt> attempts = new ThreadLocal<>();
+
+    private Resilience() {
+    }
+
+    /**
+     * Starts the invocation budget of a request served by the current thread, and of the tasks it hands to
+     * Workers.io(). end() must be called once the request is done.
+     */
+    static Budget begin() {
+        Budget budget = new Budget(System.nanoTime() + budgetNanos);
+        current.set(budget);
+        return budget;
+    }
+
+    static void end() {
+        current.remove();
+    }
+
+    /**
+     * Returns a task that runs the given one with the budget of the calling thread's request, if any.
+     */
+    static Runnable propagate(Runnable task) {
+        Budget budget = current.get();
+        if (budget == null) {
+            return task;
+        }
+        return () -> {
+            Budget previous = current.get();
+            current.set(budget);
+            try {
+                task.run();
+            } finally {
+                current.set(previous);
+            }
+        };
+    }
+
+    /**
+     * Returns the endpoint a read sent to the given endpoint should go to: the other endpoint while the breaker
+     * of the given one is open and the other's is closed, otherwise the given one.
+     * @param sdkType requested endpoint; null means GS
+     * @param boltConfigured whether reads may be sent to Bolt
+     */
+    static BoltGSOpsClient.SdkType divert(BoltGSOpsClient.SdkType sdkType, boolean boltConfigured) {
+        BoltGSOpsClient.SdkType requested = sdkType != null ? sdkType : BoltGSOpsClient.SdkType.GS;
+        BoltGSOpsClient.SdkType other = requested == BoltGSOpsClient.SdkType.BOLT ?
+                BoltGSOpsClient.SdkType.GS : BoltGSOpsClient.SdkType.BOLT;
+        if (!divertReads || (other == BoltGSOpsClient.SdkType.BOLT && !boltConfigured) ||
+                !endpoints.get(requested).isOpen() || endpoints.get(other).isOpen()) {
+            return sdkType;
+        }
+        endpoints.get(requested).diverted.incrementAndGet();
+        Budget budget = current.get();
+        if (budget != null) {
+            budget.diverted = requested + "->" + other;
+        }
+        return other;
+    }
+
+    /**
+     * Returns a Storage service object whose calls go through the circuit breaker of the given endpoint, are
+     * bounded by the deadline of the calling request and, if they can safely be repeated, retried. Object reads
+     * through reader() are resumed at the position reached when a read fails. Creates, deletes and composes are
+     * retried only with a generation precondition: repeating an unconditional write that did succeed could
+     * delete or overwrite an object written in between. Writes through writer() and batches are passed through
+     * unguarded.
+     */
+    static Storage guard(Storage storage, BoltGSOpsClient.SdkType sdkType) {
+        Endpoint endpoint = endpoints.get(sdkType);
+        return (Storage) Proxy.newProxyInstance(Storage.class.getClassLoader(), new Class<?>[] {Storage.class},
+                (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "get":
+                        case "list":
+                        case "readAllBytes":
+                            return page(endpoint, call(endpoint, true, () -> invoke(storage, method, args)));
+                        case "create":
+                        case "delete":
+                        case "compose":
+                            // data given as a stream is consumed by the first attempt.
+                            return call(endpoint, !hasStream(args) && hasGenerationPrecondition(args),
+                                    () -> invoke(storage, method, args));
+                        case "reader":
+                            return new GuardedReader(endpoint, current.get(),
+                                    () -> (ReadChannel) invoke(storage, method, args));
+                        default:
+                            return invoke(storage, method, args);
+                    }
+                });
+    }
+
+    private static Object invoke(Storage storage, Method method, Object[] args) {
+        try {
+            return method.invoke(storage, args);
+        } catch (InvocationTargetException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new StorageException(0, cause.getMessage(), cause);
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static boolean hasStream(Object[] args) {
+        if (args != null) {
+            for (Object arg : args) {
+                if (arg instanceof InputStream) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Indicates if a write is conditional on the generation it replaces (or on the object not existing), in which
+     * case a repeated attempt fails with 412 rather than changing the object again.
+     */
+    private static boolean hasGenerationPrecondition(Object[] args) {
+        if (args == null) {
+            return false;
+        }
+        for (Object arg : args) {
+            if (arg instanceof Object[] && hasGenerationPrecondition((Object[]) arg)) {
+                return true;
+            }
+            if (arg instanceof Storage.ComposeRequest &&
+                    hasGenerationPrecondition(((Storage.ComposeRequest) arg).getTargetOptions().toArray())) {
+                return true;
+            }
+            if (generationPreconditions.contains(arg)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Object page(Endpoint endpoint, Object result) {
+        return result instanceof Page ? new GuardedPage<>(endpoint, (Page<Object>) result) : result;
+    }
+
+    /**
+     * Returns the connect and read timeout of the transport, the longest an attempt of a storage call may take.
+     */
+    static int attemptTimeoutMillis() {
+        return (int) TimeUnit.NANOSECONDS.toMillis(attemptNanos);
+    }
+
+    /**
+     * Aborts an HTTP request sent by the calling thread, with the given action, once the deadline of the storage
+     * call attempt running on that thread passes. Requests sent outside of an attempt are not watched.
+     */
+    static void watch(Runnable abort) {
+        Attempt attempt = attempts.get();
+        if (attempt != null) {
+            attempt.watch(abort);
+        }
+    }
+
+    /**
+     * Runs a unary storage call: through the breaker, within the deadline of the calling request and, if
+     * retryable, retried with jittered backoff while the deadline and the retry budget allow.
+     */
+    private static <T> T call(Endpoint endpoint, boolean retryable, Supplier<T> call) {
+        Budget budget = current.get();
+        for (int attempt = 0; ; attempt++) {
+            boolean probe = endpoint.admit(budget);
+            Attempt deadline = Attempt.start(endpoint, budget);
+            try {
+                T result = call.get();
+                endpoint.record(probe, false, attempt == 0);
+                return result;
+            } catch (RuntimeException e) {
+                RuntimeException error = deadline.expired() ? deadline.exceeded(e) : e;
+                boolean failure = endpoint.failed(probe, error);
+                if (!failure || !retryable || !backoff(endpoint, budget, attempt)) {
+                    throw error;
+                }
+            } finally {
+                deadline.end();
+            }
+        }
+    }
+
+    /**
+     * Waits before the next attempt of a failed call.
+     * @return false if the call must not be retried: attempts, retry budget or deadline exhausted
+     */
+    private static boolean backoff(Endpoint endpoint, Budget budget, int attempt) {
+        if (attempt + 1 >= MAX_ATTEMPTS || Thread.currentThread().isInterrupted()) {
+            return false;
+        }
+        // full jitter: a random delay up to the exponential backoff.
+        long delay = ThreadLocalRandom.current().nextLong(Math.min(MAX_BACKOFF_NANOS, BASE_BACKOFF_NANOS << attempt));
+        if (budget != null && delay >= budget.remainingNanos()) {
+            return false;
+        }
+        if (!endpoint.spendRetryToken()) {
+            return false;
+        }
+        if (budget != null) {
+            budget.retries.incrementAndGet();
+        }
+        try {
+            TimeUnit.NANOSECONDS.sleep(delay);
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * Indicates if an error is the endpoint's failure (and worth retrying), rather than an answer such as 404 or
+     * 412 or a cancelled request.
+     */
+    private static boolean isFailure(Exception e) {
+        if (Thread.currentThread().isInterrupted() || e instanceof InterruptedIOException) {
+            return false;
+        }
+        if (e instanceof StorageException) {
+            int code = ((StorageException) e).getCode();
+            return code == 0 || code == 408 || code == 429 || code >= 500;
+        }
+        return e instanceof IOException;
+    }
+
+    /**
+     * Returns a header friendly summary of both endpoints, e.g.
+     * "BOLT state=open;error-rate=0.650;calls=140;failures=52;retries=9;fast-fails=31;opened=1;diverted=12;
+     * retry-tokens=0.4, GS state=closed;..."
+     */
+    static String describe() {
+        StringBuilder description = new StringBuilder();
+        for (Endpoint endpoint : endpoints.values()) {
+            if (description.length() > 0) {
+                description.append(", ");
+            }
+            description.append(endpoint.sdkType).append(' ').append(endpoint.describe());
+        }
+        return description.toString();
+    }
+
+    /**
+     * Budget is the invocation budget of a single request, along with what the resilience layer did for it.
+     */
+    static final class Budget {
+        private final long deadline;
+        private final AtomicInteger retries = new AtomicInteger();
+        private final AtomicInteger fastFails = new AtomicInteger();
+        private volatile String diverted;
+
+        private Budget(long deadline) {
+            this.deadline = deadline;
+        }
+
+        long remainingNanos() {
+            return deadline - System.nanoTime();
+        }
+
+        /**
+         * Returns a header friendly description of the request's retries and fast failures, any diversion, and
+         * the state of both breakers, e.g. "retries=1;fast-fails=0;diverted=BOLT->GS;BOLT=open;GS=closed"
+         */
+        String describe() {
+            StringBuilder description = new StringBuilder()
+                    .append("retries=").append(retries.get())
+                    .append(";fast-fails=").append(fastFails.get());
+            if (diverted != null) {
+                description.append(";diverted=").append(diverted);
+            }
+            for (Endpoint endpoint : endpoints.values()) {
+                description.append(';').append(endpoint.sdkType).append('=').append(endpoint.state());
+            }
+            return description.toString();
+        }
+    }
+
+    /**
+     * Attempt is the deadline of one attempt of a storage call: the attempt timeout, or the rest of the request's
+     * budget if that is less. The HTTP requests sent by the attempt are aborted when it passes.
+     */
+    private static final class Attempt {
+        private final Endpoint endpoint;
+        private final long timeoutNanos;
+        private final long deadline;
+        private final List<ScheduledFuture<?>> timers = new ArrayList<>();
+        // attempt of an enclosing call on the same thread, if any.
+        private final Attempt enclosing = attempts.get();
+        private volatile boolean expired;
+
+        private Attempt(Endpoint endpoint, long timeoutNanos) {
+            this.endpoint = endpoint;
+            this.timeoutNanos = timeoutNanos;
+            this.deadline = System.nanoTime() + timeoutNanos;
+        }
+
+        static Attempt start(Endpoint endpoint, Budget budget) {
+            Attempt attempt = new Attempt(endpoint,
+                    budget != null ? Math.min(attemptNanos, budget.remainingNanos()) : attemptNanos);
+            attempts.set(attempt);
+            return attempt;
+        }
+
+        synchronized void watch(Runnable abort) {
+            timers.add(Workers.timer().schedule(() -> {
+                expired = true;
+                abort.run();
+            }, deadline - System.nanoTime(), TimeUnit.NANOSECONDS));
+        }
+
+        boolean expired() {
+            return expired;
+        }
+
+        StorageException exceeded(Exception cause) {
+            return new StorageException(504, String.format("Deadline exceeded: %s did not answer within %.3fms",
+                    endpoint.sdkType, timeoutNanos / 1e6), cause);
+        }
+
+        synchronized void end() {
+            if (enclosing != null) {
+                attempts.set(enclosing);
+            } else {
+                attempts.remove();
+            }
+            for (ScheduledFuture<?> timer : timers) {
+                timer.cancel(false);
+            }
+        }
+    }
+
+    private enum State {
+        CLOSED,
+        OPEN,
+        // open, with a probe call in flight.
+        HALF_OPEN
+    }
+
+    /**
+     * Endpoint is the circuit breaker and retry budget of one endpoint, shared by all requests of the instance.
+     */
+    private static final class Endpoint {
+        private final BoltGSOpsClient.SdkType sdkType;
+        // outcomes of the last WINDOW calls, true for a failure.
+        private final boolean[] window = new boolean[WINDOW];
+        private int outcomes;
+        private int next;
+        private int failures;
+        private State state = State.CLOSED;
+        private long openedAt;
+        private double retryTokens = MAX_RETRY_TOKENS;
+
+        private final AtomicLong calls = new AtomicLong();
+        private final AtomicLong failed = new AtomicLong();
+        private final AtomicLong retries = new AtomicLong();
+        private final AtomicLong fastFails = new AtomicLong();
+        private final AtomicLong opened = new AtomicLong();
+        private final AtomicLong diverted = new AtomicLong();
+
+        private Endpoint(BoltGSOpsClient.SdkType sdkType) {
+            this.sdkType = sdkType;
+        }
+
+        /**
+         * Lets a call through, or fails it fast if the breaker is open or the request is out of time.
+         * @return true if the call is the probe that decides whether an open breaker closes
+         */
+        boolean admit(Budget budget) {
+            if (budget != null && budget.remainingNanos() <= 0) {
+                throw new StorageException(504, "Deadline exceeded: invocation budget spent");
+            }
+            synchronized (this) {
+                calls.incrementAndGet();
+                if (state == State.CLOSED) {
+                    return false;
+                }
+                if (state == State.OPEN && System.nanoTime() - openedAt >= openNanos) {
+                    state = State.HALF_OPEN;
+                    return true;
+                }
+            }
+            fastFails.incrementAndGet();
+            if (budget != null) {
+                budget.fastFails.incrementAndGet();
+            }
+            throw new StorageException(503, "Circuit breaker of " + sdkType + " is open");
+        }
+
+        /**
+         * Records the outcome of a failed call.
+         * @return true if the error is a failure of the endpoint, false if it is an answer
+         */
+        boolean failed(boolean probe, Exception e) {
+            boolean failure = isFailure(e);
+            if (failure || !Thread.currentThread().isInterrupted()) {
+                record(probe, failure, false);
+            } else if (probe) {
+                // a cancelled probe tells nothing: the next call probes again.
+                synchronized (this) {
+                    state = State.OPEN;
+                    openedAt = System.nanoTime() - openNanos;
+                }
+            }
+            return failure;
+        }
+
+        synchronized void record(boolean probe, boolean failure, boolean firstAttempt) {
+            if (failure) {
+                failed.incrementAndGet();
+            } else if (firstAttempt) {
+                retryTokens = Math.min(MAX_RETRY_TOKENS, retryTokens + TOKENS_PER_SUCCESS);
+            }
+            if (probe) {
+                if (failure) {
+                    state = State.OPEN;
+                    openedAt = System.nanoTime();
+                } else {
+                    state = State.CLOSED;
+                    outcomes = next = failures = 0;
+                }
+                return;
+            }
+
+            if (outcomes == WINDOW && window[next]) {
+                failures--;
+            }
+            window[next] = failure;
+            next = (next + 1) % WINDOW;
+            outcomes = Math.min(WINDOW, outcomes + 1);
+            if (failure) {
+                failures++;
+            }
+            if (state == State.CLOSED && outcomes >= MIN_CALLS && failures >= errorRate * outcomes) {
+                state = State.OPEN;
+                openedAt = System.nanoTime();
+                opened.incrementAndGet();
+            }
+        }
+
+        synchronized boolean spendRetryToken() {
+            if (retryTokens < 1) {
+                return false;
+            }
+            retryTokens--;
+            retries.incrementAndGet();
+            return true;
+        }
+
+        // Open and not yet due for a probe, or probing.
+        synchronized boolean isOpen() {
+            return state == State.HALF_OPEN || (state == State.OPEN && System.nanoTime() - openedAt < openNanos);
+        }
+
+        synchronized String state() {
+            return state.name().toLowerCase().replace('_', '-');
+        }
+
+        synchronized String describe() {
+            return String.format("state=%s;error-rate=%.3f;calls=%d;failures=%d;retries=%d;fast-fails=%d;" +
+                            "opened=%d;diverted=%d;retry-tokens=%.1f", state(),
+                    outcomes > 0 ? (double) failures / outcomes : 0, calls.get(), failed.get(), retries.get(),
+                    fastFails.get(), opened.get(), diverted.get(), retryTokens);
+        }
+    }
+
+    /**
+     * GuardedReader reads an object through the breaker of its endpoint. A read that fails with a transient error
+     * is retried, within the deadline and retry budget, on a new channel that resumes at the position reached.
+     */
+    private static final class GuardedReader implements ReadChannel {
+        private final Endpoint endpoint;
+        private final Budget budget;
+        private final Supplier<ReadChannel> open;
+        private ReadChannel channel;
+        private long position;
+        private int chunkSize;
+        // whether a read succeeded, after which the channel's reads are no longer counted as calls.
+        private boolean answered;
+
+        private GuardedReader(Endpoint endpoint, Budget budget, Supplier<ReadChannel> open) {
+            this.endpoint = endpoint;
+            this.budget = budget;
+            this.open = open;
+            this.channel = open.get();
+        }
+
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            for (int attempt = 0; ; attempt++) {
+                boolean probe = false;
+                if (!answered) {
+                    probe = endpoint.admit(budget);
+                } else if (budget != null && budget.remainingNanos() <= 0) {
+                    throw new StorageException(504, "Deadline exceeded: invocation budget spent");
+                }
+                Attempt deadline = Attempt.start(endpoint, budget);
+                try {
+                    int n = channel.read(dst);
+                    if (!answered) {
+                        answered = true;
+                        endpoint.record(probe, false, attempt == 0);
+                    }
+                    if (n > 0) {
+                        position += n;
+                    }
+                    return n;
+                } catch (IOException | RuntimeException e) {
+                    Exception error = deadline.expired() ? deadline.exceeded(e) : e;
+                    if (!endpoint.failed(probe, error) || !backoff(endpoint, budget, attempt)) {
+                        if (error instanceof IOException) {
+                            throw (IOException) error;
+                        }
+                        throw (RuntimeException) error;
+                    }
+                    answered = false;
+                    reopen();
+                } finally {
+                    deadline.end();
+                }
+            }
+        }
+
+        private void reopen() throws IOException {
+            try {
+                channel.close();
+            } catch (RuntimeException e) {
+                // the failed channel is discarded either way.
+            }
+            channel = open.get();
+            if (chunkSize > 0) {
+                channel.setChunkSize(chunkSize);
+            }
+            channel.seek(position);
+        }
+
+        @Override
+        public boolean isOpen() {
+            return channel.isOpen();
+        }
+
+        @Override
+        public void close() {
+            channel.close();
+        }
+
+        @Override
+        public void seek(long position) throws IOException {
+            channel.seek(position);
+            this.position = position;
+        }
+
+        @Override
+        public void setChunkSize(int chunkSize) {
+            channel.setChunkSize(chunkSize);
+            this.chunkSize = chunkSize;
+        }
+
+        @Override
+        public RestorableState<ReadChannel> capture() {
+            return channel.capture();
+        }
+    }
+
+    /**
+     * GuardedPage fetches the following pages of a listing through the breaker, with retries.
+     */
+    private static final class GuardedPage<T> implements Page<T> {
+        private final Endpoint endpoint;
+        private final Page<T> page;
+
+        private GuardedPage(Endpoint endpoint, Page<T> page) {
+            this.endpoint = endpoint;
+            this.page = page;
+        }
+
+        @Override
+        public boolean hasNextPage() {
+            return page.hasNextPage();
+        }
+
+        @Override
+        public String getNextPageToken() {
+            return page.getNextPageToken();
+        }
+
+        @Override
+        public Page<T> getNextPage() {
+            if (!page.hasNextPage()) {
+                return null;
+            }
+            Page<T> nextPage = call(endpoint, true, page::getNextPage);
+            return nextPage != null ? new GuardedPage<>(endpoint, nextPage) : null;
+        }
+
+        @Override
+        public Iterable<T> getValues() {
+            return page.getValues();
+        }
+
+        @Override
+        public Iterable<T> iterateAll() {
+            return () -> new Iterator<T>() {
+                private Page<T> current = GuardedPage.this;
+                private Iterator<T> values = page.getValues().iterator();
+
+                @Override
+                public boolean hasNext() {
+                    while (!values.hasNext() && current != null && current.hasNextPage()) {
+                        current = current.getNextPage();
+                        values = current != null ? current.getValues().iterator() : values;
+                    }
+                    return values.hasNext();
+                }
+
+                @Override
+                public T next() {
+                    if (!hasNext()) {
+                        throw new NoSuchElementException();
+                    }
+                    return values.next();
+                }
+            };
+        }
+    }
+
+    private static long envLong(String name, long defaultValue) {
+        String value = System.getenv(name);
+        return value != null && !value.isEmpty() ? Long.parseLong(value) : defaultValue;
+    }
+
+    private static double envDouble(String name, double defaultValue) {
+        String value = System.getenv(name);
+        return value != null && !value.isEmpty() ? Double.parseDouble(value) : defaultValue;
+    }
+}
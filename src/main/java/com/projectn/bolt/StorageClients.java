@@ -0,0 +1,223 @@
+package com.projectn.bolt;
+
+import com.google.api.client.http.HttpTransport;
+import com.google.api.client.http.apache.v2.ApacheHttpTransport;
+import com.google.cloud.NoCredentials;
+import com.google.cloud.ServiceOptions;
+import com.google.cloud.http.HttpTransportOptions;
+import com.google.cloud.storage.Storage;
+import com.google.cloud.storage.StorageOptions;
+
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.protocol.HttpContext;
+
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * StorageClients is a process-wide registry of Google/Bolt Storage service objects.
+ *
+ * Storage service objects are thread-safe and expensive to build (credentials lookup, transport setup),
+ * so a warm function instance builds one per endpoint and reuses it across invocations. All clients share
+ * a single HTTP transport, so connections to GS and Bolt are kept alive and pooled between requests.
+ * Clients do not retry on their own: their calls are guarded, and retried, by Resilience. Each attempt is bounded
+ * by the transport's connect and read timeouts (see Resilience.attemptTimeoutMillis()), and by its deadline: the
+ * transport hands its requests to Resilience.watch(), which aborts them when the deadline passes.
+ *
+ * If 'STORAGE_EMULATOR_HOST' is set (e.g. to a StorageEmulator), GS requests are sent to that host instead, and
+ * no client sends credentials.
+ */
+final class StorageClients {
+
+    // Registry key of the Google Cloud Storage client. Bolt clients are keyed by their resolved host.
+    private static final String GS_KEY = "GS";
+
+    // Pooled keep-alive connections per destination.
+    private static final int MAX_CONNECTIONS_PER_HOST = 32;
+
+    // Host of a Storage emulator, or null.
+    private static final String emulatorHost = emulatorHost(System.getenv("STORAGE_EMULATOR_HOST"));
+
+    // Requests are watched, so that they are aborted once the deadline of the call they serve passes: unlike
+    // the JDK's HttpURLConnection, an Apache request can be aborted while a read is blocked.
+    private static final HttpTransport transport = new ApacheHttpTransport(new WatchedHttpClient(
+            ApacheHttpTransport.newDefaultHttpClientBuilder()
+                    .setMaxConnPerRoute(MAX_CONNECTIONS_PER_HOST)
+                    .build()));
+    private static final ConcurrentHashMap<String, Entry> clients = new ConcurrentHashMap<>();
+
+    private StorageClients() {
+    }
+
+    /**
+     * Returns the shared Storage service object for the given endpoint, building it on first use.
+     * @param sdkType endpoint to which requests are sent. If null, Google Cloud Storage is used.
+     * @param boltUrl resolved Bolt service url, used when sdkType is BOLT
+     * @return shared Storage service object along with the cost of acquiring it
+     */
+    static Acquired acquire(BoltGSOpsClient.SdkType sdkType, String boltUrl) {
+        long start = System.nanoTime();
+        boolean bolt = sdkType == BoltGSOpsClient.SdkType.BOLT;
+        String key = bolt ? boltUrl : GS_KEY;
+
+        Entry entry = clients.get(key);
+        boolean cached = entry != null;
+        if (!cached) {
+            entry = clients.computeIfAbsent(key, k -> build(bolt ? k : null));
+        }
+        return new Acquired(entry, cached, System.nanoTime() - start);
+    }
+
+    /**
+     * Returns the shared Google Cloud Storage service object.
+     */
+    static Storage gs() {
+        return acquire(BoltGSOpsClient.SdkType.GS, null).storage();
+    }
+
+    /**
+     * Returns the shared Bolt Storage service object for the given Bolt service url.
+     * @param boltUrl resolved Bolt service url
+     */
+    static Storage bolt(String boltUrl) {
+        return acquire(BoltGSOpsClient.SdkType.BOLT, boltUrl).storage();
+    }
+
+    /**
+     * Builds a new Storage service object for the given endpoint that is not registered, not guarded by
+     * Resilience and does not retry, so that each call it makes is a single request to the endpoint. It shares
+     * the transport, and so the connection pool, of the registry's clients.
+     * @param sdkType endpoint to which requests are sent
+     * @param boltUrl resolved Bolt service url, used when sdkType is BOLT
+     */
+    static Storage unguarded(BoltGSOpsClient.SdkType sdkType, String boltUrl) {
+        return options(sdkType == BoltGSOpsClient.SdkType.BOLT ? boltUrl : null).getService();
+    }
+
+    private static Entry build(String host) {
+        long start = System.nanoTime();
+        Storage storage = Resilience.guard(options(host).getService(),
+                host != null ? BoltGSOpsClient.SdkType.BOLT : BoltGSOpsClient.SdkType.GS);
+        return new Entry(storage, System.nanoTime() - start);
+    }
+
+    private static StorageOptions options(String host) {
+        HttpTransportOptions transportOptions = HttpTransportOptions.newBuilder()
+                .setHttpTransportFactory(() -> transport)
+                .setConnectTimeout(Resilience.attemptTimeoutMillis())
+                .setReadTimeout(Resilience.attemptTimeoutMillis())
+                .build();
+
+        StorageOptions.Builder builder = StorageOptions.newBuilder()
+                .setTransportOptions(transportOptions)
+                .setRetrySettings(ServiceOptions.getNoRetrySettings());
+        if (host != null) {
+            builder.setHost(host);
+        } else if (emulatorHost != null) {
+            builder.setHost(emulatorHost);
+        }
+        if (emulatorHost != null) {
+            builder.setCredentials(NoCredentials.getInstance()).setProjectId("emulator");
+        }
+        return builder.build();
+    }
+
+    /**
+     * WatchedHttpClient hands each request it executes to Resilience.watch(), to be aborted if it outlives the
+     * deadline of the storage call attempt it belongs to.
+     */
+    private static final class WatchedHttpClient extends CloseableHttpClient {
+        private final CloseableHttpClient client;
+
+        private WatchedHttpClient(CloseableHttpClient client) {
+            this.client = client;
+        }
+
+        @Override
+        protected CloseableHttpResponse doExecute(HttpHost target, HttpRequest request, HttpContext context)
+                throws IOException {
+            if (request instanceof HttpUriRequest) {
+                Resilience.watch(((HttpUriRequest) request)::abort);
+            }
+            return client.execute(target, request, context);
+        }
+
+        @Override
+        public void close() throws IOException {
+            client.close();
+        }
+
+        @Override
+        @SuppressWarnings("deprecation")
+        public org.apache.http.params.HttpParams getParams() {
+            return client.getParams();
+        }
+
+        @Override
+        @SuppressWarnings("deprecation")
+        public org.apache.http.conn.ClientConnectionManager getConnectionManager() {
+            return client.getConnectionManager();
+        }
+    }
+
+    private static String emulatorHost(String host) {
+        if (host == null || host.isEmpty()) {
+            return null;
+        }
+        return host.contains("://") ? host : "http://" + host;
+    }
+
+    private static final class Entry {
+        private final Storage storage;
+        private final long buildNanos;
+
+        private Entry(Storage storage, long buildNanos) {
+            this.storage = storage;
+            this.buildNanos = buildNanos;
+        }
+    }
+
+    /**
+     * Acquired is a shared Storage service object together with what it cost to obtain it.
+     * buildMillis is the construction cost paid once per instance, i.e. the latency saved by every
+     * warm request that finds the client already cached.
+     */
+    static final class Acquired {
+        private final Entry entry;
+        private final boolean cached;
+        private final long acquireNanos;
+
+        private Acquired(Entry entry, boolean cached, long acquireNanos) {
+            this.entry = entry;
+            this.cached = cached;
+            this.acquireNanos = acquireNanos;
+        }
+
+        Storage storage() {
+            return entry.storage;
+        }
+
+        boolean cached() {
+            return cached;
+        }
+
+        double acquireMillis() {
+            return acquireNanos / 1e6;
+        }
+
+        double buildMillis() {
+            return entry.buildNanos / 1e6;
+        }
+
+        /**
+         * Returns a header friendly description, e.g. "cached=true;acquire=0.004ms;build=412.310ms"
+         */
+        String describe() {
+            return String.format("cached=%s;acquire=%.3fms;build=%.3fms", cached, acquireMillis(), buildMillis());
+        }
+    }
+}
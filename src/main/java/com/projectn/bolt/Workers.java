@@ -0,0 +1,90 @@
+package com.projectn.bolt;
+
+import com.google.cloud.storage.StorageException;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Workers holds the thread pool shared by all concurrent storage operations of a function instance.
+ *
+ * Threads are created on demand and idle ones expire, so an idle instance holds no threads. Callers bound
+ * their own parallelism (e.g. the number of in-flight byte ranges), not the pool. Tasks run with the invocation
+ * budget (see Resilience) of the request that submitted them.
+ */
+final class Workers {
+
+    // A cached thread pool, as built by Executors.newCachedThreadPool.
+    private static final ExecutorService io = new ThreadPoolExecutor(0, Integer.MAX_VALUE, 60L, TimeUnit.SECONDS,
+            new SynchronousQueue<>(), daemonThreads("bolt-io")) {
+        @Override
+        public void execute(Runnable command) {
+            super.execute(Resilience.propagate(command));
+        }
+    };
+
+    // Runs the deadlines of storage calls (see Resilience); its tasks only abort requests. Cancelled deadlines are
+    // removed at once, rather than keeping their requests until they would have run.
+    private static final ScheduledThreadPoolExecutor timer =
+            new ScheduledThreadPoolExecutor(1, daemonThreads("bolt-deadline"));
+
+    static {
+        timer.setRemoveOnCancelPolicy(true);
+    }
+
+    private Workers() {
+    }
+
+    static ExecutorService io() {
+        return io;
+    }
+
+    static ScheduledExecutorService timer() {
+        return timer;
+    }
+
+    /**
+     * Waits for the given task and returns its result. StorageExceptions and IOExceptions thrown by the
+     * task are rethrown as is, so that they are reported the same way as on the calling thread.
+     */
+    static <T> T await(Future<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            future.cancel(true);
+            throw new InterruptedIOException("Interrupted while waiting for storage operation");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof StorageException) {
+                throw (StorageException) cause;
+            }
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    private static ThreadFactory daemonThreads(String prefix) {
+        AtomicInteger count = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, prefix + "-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+}